@@ -4,14 +4,23 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 public class AvailableFrameTracker {
 	public interface FrameAddedListener {
 		public void informFrameAdded(Set<String> newFrames);
 	}
 
+	/**
+	 * Informed once for each TF message, after all of its transforms have been added to the transform tree
+	 */
+	public interface TransformUpdateListener {
+		public void informTransformsUpdated();
+	}
+
 	private SortedSet<String> availableFrames = new TreeSet<String>();
 	private Set<FrameAddedListener> listeners = new HashSet<FrameAddedListener>();
+	private Set<TransformUpdateListener> updateListeners = new CopyOnWriteArraySet<TransformUpdateListener>();
 
 	public void receivedMessage(geometry_msgs.TransformStamped transformStamped) {
 		receivedFrame(transformStamped.getChildFrameId());
@@ -43,6 +52,19 @@ public class AvailableFrameTracker {
 	public void removeListener(FrameAddedListener l) {
 		listeners.remove(l);
 	}
+
+	public void transformsUpdated() {
+		for(TransformUpdateListener l : updateListeners)
+			l.informTransformsUpdated();
+	}
+
+	public void addUpdateListener(TransformUpdateListener l) {
+		updateListeners.add(l);
+	}
+
+	public void removeUpdateListener(TransformUpdateListener l) {
+		updateListeners.remove(l);
+	}
 	
 	
 	public Set<String> getAvailableFrames() {
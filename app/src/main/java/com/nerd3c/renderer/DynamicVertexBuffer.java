@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.renderer;
+
+import java.nio.Buffer;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * A GL_ARRAY_BUFFER which grows geometrically and is updated in place. Data which grows at the end, like a path or a trail, only uploads what changed with glBufferSubData, and the buffer is only reallocated when it runs out of room, at which point its capacity doubles.
+ *
+ * OpenGL ES 2.0 can't copy between buffers, so a reallocation loses the contents and the caller must upload everything again. All methods must be called from the GL thread.
+ */
+public class DynamicVertexBuffer {
+	private static final int MIN_CAPACITY = 4096;
+
+	private final int[] handle = new int[1];
+	private int capacity = 0;
+
+	/**
+	 * Make sure the buffer can hold the given number of bytes, binding it
+	 *
+	 * @return true if the buffer was reallocated and has to be filled again
+	 */
+	public boolean reserve(int bytes) {
+		if(bytes <= capacity) {
+			GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, handle[0]);
+			return false;
+		}
+		if(capacity == 0)
+			GLES20.glGenBuffers(1, handle, 0);
+		int newCapacity = Math.max(capacity, MIN_CAPACITY);
+		while(newCapacity < bytes)
+			newCapacity *= 2;
+		Log.i("DynamicVertexBuffer", "Growing buffer to " + newCapacity + " bytes");
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, handle[0]);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, newCapacity, null, GLES20.GL_DYNAMIC_DRAW);
+		capacity = newCapacity;
+		return true;
+	}
+
+	/**
+	 * Write part of the buffer. The buffer must be bound and large enough.
+	 *
+	 * @param data
+	 *            source data, read from its current position
+	 * @param offset
+	 *            byte offset in the vertex buffer
+	 * @param bytes
+	 *            number of bytes to write
+	 */
+	public void write(Buffer data, int offset, int bytes) {
+		if(bytes > 0)
+			GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, offset, bytes, data);
+	}
+
+	public void bind() {
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, handle[0]);
+	}
+
+	public void unbind() {
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+	}
+
+	public void cleanup() {
+		if(capacity > 0)
+			GLES20.glDeleteBuffers(1, handle, 0);
+		capacity = 0;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.renderer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * A static GL_TRIANGLES index buffer for a band of rows of a row-major vertex grid, two triangles per grid cell. OpenGL ES 2.0 only guarantees 16 bit indices, so large grids are drawn as several bands of at most 65536 vertices each. Consecutive bands share a row, and every band uses the same indices with the vertex attributes pointed at the first vertex of the band.
+ *
+ * The indices are only rebuilt when the grid width or the band height changes. All methods must be called from the GL thread.
+ */
+public class GridIndexBuffer {
+	public static final int MAX_BAND_VERTICES = 65536;
+
+	private final int[] handle = new int[1];
+	private boolean created = false;
+	private int width = -1;
+	private int rows = -1;
+
+	/**
+	 * @return the number of vertex rows in a full band of a grid, or 0 if a single row is too wide to be indexed
+	 */
+	public static int getRowsPerBand(int width, int height) {
+		int rows = Math.min(height, MAX_BAND_VERTICES / Math.max(width, 1));
+		return (rows >= 2) ? rows : 0;
+	}
+
+	/**
+	 * Bind the indices for bands of the given size, building them if needed
+	 */
+	public void bind(int width, int rows) {
+		if(!created) {
+			GLES20.glGenBuffers(1, handle, 0);
+			created = true;
+		}
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, handle[0]);
+		if(width != this.width || rows != this.rows) {
+			Log.i("GridIndexBuffer", "Building indices for a " + width + " x " + rows + " band");
+			ShortBuffer indices = ByteBuffer.allocateDirect(getIndexCount(width, rows) * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+			for(int r = 0; r < rows - 1; r++) {
+				for(int c = 0; c < width - 1; c++) {
+					int topLeft = r * width + c;
+					int bottomLeft = topLeft + width;
+					indices.put((short) topLeft);
+					indices.put((short) bottomLeft);
+					indices.put((short) (topLeft + 1));
+					indices.put((short) (topLeft + 1));
+					indices.put((short) bottomLeft);
+					indices.put((short) (bottomLeft + 1));
+				}
+			}
+			indices.position(0);
+			GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indices.capacity() * 2, indices, GLES20.GL_STATIC_DRAW);
+			this.width = width;
+			this.rows = rows;
+		}
+	}
+
+	/**
+	 * Draw one band. Rows are in vertex rows, a partial last band draws a prefix of the indices.
+	 */
+	public void drawBand(int rows) {
+		GLES20.glDrawElements(GLES20.GL_TRIANGLES, getIndexCount(width, Math.min(rows, this.rows)), GLES20.GL_UNSIGNED_SHORT, 0);
+	}
+
+	public void unbind() {
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+
+	private static int getIndexCount(int width, int rows) {
+		return Math.max(rows - 1, 0) * Math.max(width - 1, 0) * 6;
+	}
+
+	public void cleanup() {
+		if(created)
+			GLES20.glDeleteBuffers(1, handle, 0);
+		created = false;
+		width = -1;
+		rows = -1;
+	}
+}
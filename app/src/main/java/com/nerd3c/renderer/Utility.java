@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import com.nerd3c.renderer.shapes.Color;
+import org.ros.message.Time;
 import org.ros.namespace.GraphName;
 import org.ros.rosjava_geometry.FrameTransform;
 import org.ros.rosjava_geometry.FrameTransformTree;
@@ -131,6 +132,34 @@ public final class Utility {
 		return t.getTransform();
 	}
 
+	private static final int MAX_TF_DEPTH = 64;
+
+	/**
+	 * Look up the transform from source to target at a specific time. Each frame is followed up to the root of its tree using the transform closest to the given time, and the two chains are composed through the root.
+	 * 
+	 * @return the transform, or null if the two frames aren't connected
+	 */
+	public static Transform lookUpTransform(FrameTransformTree ftt, GraphName source, GraphName target, Time time) {
+		Transform sourceToRoot = Transform.identity();
+		GraphName sourceRoot = source;
+		FrameTransform ft;
+		for(int depth = 0; depth < MAX_TF_DEPTH && (ft = ftt.lookUp(sourceRoot, time)) != null; depth++) {
+			sourceToRoot = ft.getTransform().multiply(sourceToRoot);
+			sourceRoot = ft.getTargetFrame();
+		}
+
+		Transform targetToRoot = Transform.identity();
+		GraphName targetRoot = target;
+		for(int depth = 0; depth < MAX_TF_DEPTH && (ft = ftt.lookUp(targetRoot, time)) != null; depth++) {
+			targetToRoot = ft.getTransform().multiply(targetToRoot);
+			targetRoot = ft.getTargetFrame();
+		}
+
+		if(!sourceRoot.equals(targetRoot))
+			return null;
+		return targetToRoot.invert().multiply(sourceToRoot);
+	}
+
 	/**
 	 * @param q
 	 * @return Angle in radians
@@ -151,20 +180,6 @@ public final class Utility {
 		}
 	}
 
-	public static float arrayMax(float[] arr) {
-		float max = Float.MIN_VALUE;
-		for(float f : arr)
-			max = Math.max(f, max);
-		return max;
-	}
-
-	public static float arrayMin(float[] arr) {
-		float min = Float.MIN_VALUE;
-		for(float f : arr)
-			min = Math.min(f, min);
-		return min;
-	}
-
 	public static Vector3 crossProduct(Vector3 lhs, Vector3 rhs) {
 		return new Vector3(lhs.getY() * rhs.getZ() - lhs.getZ() * rhs.getY(), lhs.getZ() * rhs.getX() - lhs.getX() * rhs.getZ(), lhs.getX() * rhs.getY() - lhs.getY() * rhs.getX());
 	}
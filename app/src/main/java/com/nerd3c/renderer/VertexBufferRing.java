@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.renderer;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+
+/**
+ * A small ring of GL_ARRAY_BUFFER objects. Each upload goes to the next buffer in the ring, so a buffer the GPU may still be reading for a previous frame is never rewritten in place. A buffer is reallocated (orphaned) with glBufferData when the new data doesn't fit and updated with glBufferSubData otherwise.
+ *
+ * All methods must be called from the GL thread.
+ */
+public class VertexBufferRing {
+	private final int[] handles;
+	private final int[] capacities;
+	private int current = -1;
+	private boolean created = false;
+
+	public VertexBufferRing(int size) {
+		if(size < 1)
+			throw new IllegalArgumentException("A buffer ring must contain at least one buffer!");
+		handles = new int[size];
+		capacities = new int[size];
+	}
+
+	/**
+	 * Copy the first bytes of data into the next buffer in the ring and make it the current buffer.
+	 *
+	 * @param data
+	 *            direct buffer holding the vertex data, read from position 0
+	 * @param bytes
+	 *            number of bytes to upload
+	 * @return the handle of the buffer which now holds the data
+	 */
+	public int upload(Buffer data, int bytes) {
+		if(!created) {
+			GLES20.glGenBuffers(handles.length, handles, 0);
+			created = true;
+		}
+
+		current = (current + 1) % handles.length;
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, handles[current]);
+		data.position(0);
+		if(bytes > capacities[current]) {
+			GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, bytes, data, GLES20.GL_STREAM_DRAW);
+			capacities[current] = bytes;
+		} else {
+			GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, bytes, data);
+		}
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		return handles[current];
+	}
+
+	public void bind() {
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, handles[current]);
+	}
+
+	public void unbind() {
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+	}
+
+	public void cleanup() {
+		if(created)
+			GLES20.glDeleteBuffers(handles.length, handles, 0);
+		Arrays.fill(capacities, 0);
+		created = false;
+		current = -1;
+	}
+}
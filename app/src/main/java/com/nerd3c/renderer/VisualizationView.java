@@ -153,6 +153,7 @@ public class VisualizationView extends GLSurfaceView implements NodeMain {
 					frameTransformTree.update(transform);
 					frameTracker.receivedMessage(transform);
 				}
+				frameTracker.transformsUpdated();
 			}
 		}, TF_MESSAGE_QUEUE);
 	}
@@ -29,13 +29,24 @@ import com.nerd3c.renderer.VisualizationView;
 import com.nerd3c.renderer.layer.DefaultLayer;
 import com.nerd3c.renderer.layer.Layer;
 import com.nerd3c.rviz_for_android.layers.AxisLayer;
+import com.nerd3c.rviz_for_android.layers.CompressedImageLayer;
+import com.nerd3c.rviz_for_android.layers.DepthCloudLayer;
+import com.nerd3c.rviz_for_android.layers.GridCellsLayer;
 import com.nerd3c.rviz_for_android.layers.GridLayer;
+import com.nerd3c.rviz_for_android.layers.ImageLayer;
 import com.nerd3c.rviz_for_android.layers.InteractiveMarkerLayer;
+import com.nerd3c.rviz_for_android.layers.LaserScanLayer;
 import com.nerd3c.rviz_for_android.layers.MapLayer;
 import com.nerd3c.rviz_for_android.layers.MarkerLayer;
+import com.nerd3c.rviz_for_android.layers.OdometryLayer;
 import com.nerd3c.rviz_for_android.layers.ParentableOrbitCameraControlLayer;
+import com.nerd3c.rviz_for_android.layers.PathLayer;
+import com.nerd3c.rviz_for_android.layers.PersistentScanLayer;
 import com.nerd3c.rviz_for_android.layers.PointCloud2Layer;
 import com.nerd3c.rviz_for_android.layers.PointCloudLayer;
+import com.nerd3c.rviz_for_android.layers.PolygonLayer;
+import com.nerd3c.rviz_for_android.layers.RangeLayer;
+import com.nerd3c.rviz_for_android.layers.PoseArrayLayer;
 import com.nerd3c.rviz_for_android.layers.RobotModelLayer;
 import com.nerd3c.rviz_for_android.layers.TfFrameLayer;
 import com.nerd3c.rviz_for_android.prop.LayerWithProperties;
@@ -86,6 +97,17 @@ public class MainActivity extends RosActivity {
         Map("Map"),
         PointCloud("Point Cloud"),
         PointCloud2("Point Cloud2"),
+        LaserScan("Laser Scan"),
+        PersistentScan("Persistent Scan"),
+        Image("Image"),
+        CompressedImage("Compressed Image"),
+        DepthCloud("Depth Cloud"),
+        Path("Path"),
+        PoseArray("Pose Array"),
+        Odometry("Odometry"),
+        GridCells("Grid Cells"),
+        Polygon("Polygon"),
+        Range("Range"),
         TFLayer("TF"),
         Marker("Marker"),
         InteractiveMarker("Interactive Marker");
@@ -328,6 +350,39 @@ public class MainActivity extends RosActivity {
             case PointCloud2:
                 newLayer = new PointCloud2Layer(GraphName.of("/lots_of_points2"), cam, this);
                 break;
+            case LaserScan:
+                newLayer = new LaserScanLayer(GraphName.of("/scan"), cam, this);
+                break;
+            case PersistentScan:
+                newLayer = new PersistentScanLayer(GraphName.of("/scan"), cam);
+                break;
+            case Image:
+                newLayer = new ImageLayer(GraphName.of("/camera/image_raw"), cam, this);
+                break;
+            case CompressedImage:
+                newLayer = new CompressedImageLayer(GraphName.of("/camera/image_raw/compressed"), cam, this);
+                break;
+            case DepthCloud:
+                newLayer = new DepthCloudLayer(GraphName.of("/camera/depth/image_raw"), cam, this);
+                break;
+            case Path:
+                newLayer = new PathLayer(GraphName.of("/path"), cam);
+                break;
+            case PoseArray:
+                newLayer = new PoseArrayLayer(GraphName.of("/particlecloud"), cam);
+                break;
+            case Odometry:
+                newLayer = new OdometryLayer(GraphName.of("/odom"), cam);
+                break;
+            case GridCells:
+                newLayer = new GridCellsLayer(GraphName.of("/grid_cells"), cam);
+                break;
+            case Polygon:
+                newLayer = new PolygonLayer(GraphName.of("/polygon"), cam);
+                break;
+            case Range:
+                newLayer = new RangeLayer(GraphName.of("/range"), cam);
+                break;
             case TFLayer:
                 newLayer = new TfFrameLayer(cam);
                 break;
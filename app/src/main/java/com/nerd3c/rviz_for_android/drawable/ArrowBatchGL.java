@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.VertexBufferRing;
+import com.nerd3c.renderer.shapes.BaseShape;
+import com.nerd3c.renderer.shapes.Cleanable;
+import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
+
+import geometry_msgs.Point;
+import geometry_msgs.Pose;
+import geometry_msgs.Quaternion;
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Draws a set of poses as line arrows pointing along their X axis. Every arrow is transformed on the CPU when the poses arrive and baked into a single vertex buffer, so the whole set is drawn with one glDrawArrays call no matter how many poses there are.
+ */
+public class ArrowBatchGL extends BaseShape implements Cleanable {
+	// Each arrow is a shaft and two head lines
+	private static final int VERTICES_PER_ARROW = 6;
+	private static final int FLOATS_PER_ARROW = VERTICES_PER_ARROW * 3;
+	private static final float HEAD_LENGTH = 0.3f;
+	private static final float HEAD_WIDTH = 0.1f;
+
+	private volatile float length = 0.3f;
+
+	private static class StagedArrows {
+		FloatBuffer data;
+		int arrowCount;
+
+		int getByteCount() {
+			return arrowCount * FLOATS_PER_ARROW * 4;
+		}
+	}
+
+	private final AtomicReference<StagedArrows> mailbox = new AtomicReference<StagedArrows>();
+	private final ConcurrentLinkedQueue<StagedArrows> freeArrows = new ConcurrentLinkedQueue<StagedArrows>();
+
+	// GL thread state
+	private final VertexBufferRing vbos = new VertexBufferRing(2);
+	private StagedArrows drawn;
+	private boolean cleanUp = false;
+
+	public ArrowBatchGL(Camera cam) {
+		super(cam);
+		super.setProgram(GLSLProgram.FlatColor());
+	}
+
+	/**
+	 * Bake the poses into arrows and stage them for upload
+	 */
+	public void setData(Collection<Pose> poses) {
+		StagedArrows arrows = freeArrows.poll();
+		if(arrows == null)
+			arrows = new StagedArrows();
+		arrows.arrowCount = poses.size();
+
+		int floats = arrows.arrowCount * FLOATS_PER_ARROW;
+		if(arrows.data == null || arrows.data.capacity() < floats) {
+			Log.i("ArrowBatch", "Allocating a new staging buffer for " + arrows.arrowCount + " arrows");
+			arrows.data = ByteBuffer.allocateDirect(floats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+
+		FloatBuffer data = arrows.data;
+		data.position(0);
+		float shaft = length;
+		float head = length * HEAD_LENGTH;
+		float width = length * HEAD_WIDTH;
+		for(Pose pose : poses) {
+			Point p = pose.getPosition();
+			Quaternion q = pose.getOrientation();
+			float px = (float) p.getX();
+			float py = (float) p.getY();
+			float pz = (float) p.getZ();
+			float qx = (float) q.getX();
+			float qy = (float) q.getY();
+			float qz = (float) q.getZ();
+			float qw = (float) q.getW();
+
+			// First two columns of the rotation matrix, the arrow's X and Y axes
+			float xx = 1 - 2 * (qy * qy + qz * qz);
+			float xy = 2 * (qx * qy + qz * qw);
+			float xz = 2 * (qx * qz - qy * qw);
+			float yx = 2 * (qx * qy - qz * qw);
+			float yy = 1 - 2 * (qx * qx + qz * qz);
+			float yz = 2 * (qy * qz + qx * qw);
+
+			float tipX = px + shaft * xx;
+			float tipY = py + shaft * xy;
+			float tipZ = pz + shaft * xz;
+			float baseX = tipX - head * xx;
+			float baseY = tipY - head * xy;
+			float baseZ = tipZ - head * xz;
+
+			data.put(px).put(py).put(pz);
+			data.put(tipX).put(tipY).put(tipZ);
+			data.put(tipX).put(tipY).put(tipZ);
+			data.put(baseX + width * yx).put(baseY + width * yy).put(baseZ + width * yz);
+			data.put(tipX).put(tipY).put(tipZ);
+			data.put(baseX - width * yx).put(baseY - width * yy).put(baseZ - width * yz);
+		}
+		data.position(0);
+
+		StagedArrows stale = mailbox.getAndSet(arrows);
+		if(stale != null)
+			freeArrows.offer(stale);
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		if(cleanUp) {
+			vbos.cleanup();
+			return;
+		}
+
+		StagedArrows arrows = mailbox.getAndSet(null);
+		if(arrows != null) {
+			vbos.upload(arrows.data, arrows.getByteCount());
+			if(drawn != null)
+				freeArrows.offer(drawn);
+			drawn = arrows;
+		}
+
+		if(drawn == null || drawn.arrowCount == 0)
+			return;
+
+		super.draw(glUnused);
+		calcMVP();
+		GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
+		GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
+
+		vbos.bind();
+		GLES20.glEnableVertexAttribArray(ShaderVal.POSITION.loc);
+		GLES20.glVertexAttribPointer(ShaderVal.POSITION.loc, 3, GLES20.GL_FLOAT, false, 0, 0);
+		GLES20.glDrawArrays(GLES20.GL_LINES, 0, drawn.arrowCount * VERTICES_PER_ARROW);
+		vbos.unbind();
+	}
+
+	/**
+	 * Set the length of the arrows, applied to the next set of poses
+	 */
+	public void setLength(float length) {
+		this.length = length;
+	}
+
+	public float getLength() {
+		return length;
+	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+	}
+}
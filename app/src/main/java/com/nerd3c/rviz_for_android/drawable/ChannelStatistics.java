@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of the packed fields of a point cloud: the range of each of x, y, z and the color channel and a fixed-bin histogram of the color channel. Instances are filled in by {@link PointCloud2Packer} while packing and must not be modified after they have been handed to another thread.
+ *
+ * The histogram is built in the same pass as the ranges, so its bins can't span the range of the cloud itself. They span a range given before packing, normally the channel range of the previous cloud, and values outside it are counted in the end bins.
+ */
+public class ChannelStatistics {
+	public static final int FIELDS = PointCloud2Packer.FLOATS_PER_POINT;
+	public static final int CHANNEL = FIELDS - 1;
+	public static final int BINS = 256;
+
+	final float[] min = new float[FIELDS];
+	final float[] max = new float[FIELDS];
+	final int[] histogram = new int[BINS];
+	int histogramCount = 0;
+	float histogramMin = 0f;
+	float histogramMax = 0f;
+
+	public ChannelStatistics() {
+		reset();
+	}
+
+	void reset() {
+		Arrays.fill(min, Float.POSITIVE_INFINITY);
+		Arrays.fill(max, Float.NEGATIVE_INFINITY);
+		Arrays.fill(histogram, 0);
+		histogramCount = 0;
+		histogramMin = 0f;
+		histogramMax = 0f;
+	}
+
+	/**
+	 * Combine the ranges of another set of statistics into this one
+	 */
+	void mergeRange(ChannelStatistics other) {
+		for(int i = 0; i < FIELDS; i++) {
+			if(other.min[i] < min[i])
+				min[i] = other.min[i];
+			if(other.max[i] > max[i])
+				max[i] = other.max[i];
+		}
+	}
+
+	/**
+	 * Add the histogram bins of another set of statistics to this one
+	 */
+	void mergeHistogram(ChannelStatistics other) {
+		for(int i = 0; i < BINS; i++)
+			histogram[i] += other.histogram[i];
+		histogramCount += other.histogramCount;
+	}
+
+	public boolean hasData(int field) {
+		return min[field] <= max[field];
+	}
+
+	public float getMin(int field) {
+		return min[field];
+	}
+
+	public float getMax(int field) {
+		return max[field];
+	}
+
+	/**
+	 * Estimate a percentile of the color channel from the histogram. The result is accurate to within half a bin width, except in the end bins, where it's limited to the range of the channel. Without a usable histogram range the full range of the channel is returned.
+	 *
+	 * @param fraction
+	 *            percentile to compute, between 0 and 1
+	 * @return the estimated channel value
+	 */
+	public float getChannelPercentile(float fraction) {
+		float lo = min[CHANNEL];
+		float hi = max[CHANNEL];
+		if(!hasData(CHANNEL))
+			return 0f;
+		if(histogramCount == 0 || !(histogramMin < histogramMax))
+			return (fraction < 0.5f) ? lo : hi;
+
+		int target = (int) Math.ceil(fraction * histogramCount);
+		int seen = 0;
+		for(int i = 0; i < BINS; i++) {
+			seen += histogram[i];
+			if(seen >= target) {
+				float value = histogramMin + (histogramMax - histogramMin) * (i + 0.5f) / BINS;
+				return Math.max(lo, Math.min(hi, value));
+			}
+		}
+		return hi;
+	}
+}
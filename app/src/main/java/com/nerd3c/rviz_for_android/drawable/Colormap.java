@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.opengl.GLES20;
+
+/**
+ * Built-in colormaps, stored as the rows of one small RGBA texture. A shader colors a value normalized to [0, 1] with a single texture lookup instead of
+ * branching on the value. The vertical coordinate is {@link #getRow(int)}, and the shader maps the value to the horizontal coordinate so that 0 and 1 land on the
+ * centers of the first and last texels.
+ *
+ * The texture is created the first time it's bound. Binding and cleanup must happen on the GL thread.
+ */
+public class Colormap {
+	public static final String[] NAMES = new String[] { "Turbo", "Jet", "Viridis", "Rainbow", "Grayscale" };
+	public static final int TURBO = 0;
+	public static final int JET = 1;
+	public static final int VIRIDIS = 2;
+	public static final int RAINBOW = 3;
+	public static final int GRAYSCALE = 4;
+
+	private static final int WIDTH = 256;
+	// Power of two dimensions, so the texture is complete on every OpenGL ES 2.0 device
+	private static final int HEIGHT = 8;
+
+	private static ByteBuffer pixels;
+
+	private final int[] handle = new int[1];
+	private boolean created = false;
+
+	/**
+	 * @return the vertical texture coordinate of the center of a colormap's row
+	 */
+	public static float getRow(int map) {
+		return (map + 0.5f) / HEIGHT;
+	}
+
+	/**
+	 * Bind the colormap texture to a texture unit, creating it if needed
+	 */
+	public void bind(int unit) {
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+		if(!created) {
+			GLES20.glGenTextures(1, handle, 0);
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, handle[0]);
+			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, WIDTH, HEIGHT, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, getPixels());
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+			created = true;
+		} else {
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, handle[0]);
+		}
+	}
+
+	public void cleanup() {
+		if(created)
+			GLES20.glDeleteTextures(1, handle, 0);
+		created = false;
+	}
+
+	private static synchronized ByteBuffer getPixels() {
+		if(pixels == null) {
+			pixels = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4).order(ByteOrder.nativeOrder());
+			float[] rgb = new float[3];
+			for(int row = 0; row < HEIGHT; row++) {
+				for(int i = 0; i < WIDTH; i++) {
+					sample(Math.min(row, NAMES.length - 1), i / (WIDTH - 1f), rgb);
+					for(int k = 0; k < 3; k++)
+						pixels.put((byte) Math.round(Math.max(0f, Math.min(1f, rgb[k])) * 255f));
+					pixels.put((byte) 255);
+				}
+			}
+		}
+		pixels.position(0);
+		return pixels;
+	}
+
+	/**
+	 * Evaluate a colormap at a normalized value
+	 */
+	public static void sample(int map, float t, float[] rgb) {
+		switch(map) {
+		case TURBO:
+			// Polynomial approximation of Turbo by Anton Mikhailov
+			rgb[0] = poly(t, 0.13572138f, 4.61539260f, -42.66032258f, 132.13108234f, -152.94239396f, 59.28637943f, 0f);
+			rgb[1] = poly(t, 0.09140261f, 2.19418839f, 4.84296658f, -14.18503333f, 4.27729857f, 2.82956604f, 0f);
+			rgb[2] = poly(t, 0.10667330f, 12.64194608f, -60.58204836f, 110.36276771f, -89.90310912f, 27.34824973f, 0f);
+			break;
+		case JET:
+			rgb[0] = 1.5f - Math.abs(4f * t - 3f);
+			rgb[1] = 1.5f - Math.abs(4f * t - 2f);
+			rgb[2] = 1.5f - Math.abs(4f * t - 1f);
+			break;
+		case VIRIDIS:
+			// Least squares polynomial fit of viridis
+			rgb[0] = poly(t, 0.2777273272f, 0.1050930431f, -0.3308618287f, -4.634230499f, 6.228269936f, 4.776384998f, -5.435455856f);
+			rgb[1] = poly(t, 0.0054073445f, 1.404613530f, 0.2148475595f, -5.799100973f, 14.17993337f, -13.74514538f, 4.645852612f);
+			rgb[2] = poly(t, 0.3340998053f, 1.384590163f, 0.0950951630f, -19.33244096f, 56.69055260f, -65.35303263f, 26.31243525f);
+			break;
+		case RAINBOW:
+			// Red through yellow, green and cyan to blue
+			float h = Math.max(0f, Math.min(1f, t)) * 4f;
+			rgb[0] = Math.min(1f, Math.max(0f, 2f - h));
+			rgb[1] = Math.min(1f, Math.min(h, 4f - h));
+			rgb[2] = Math.min(1f, Math.max(0f, h - 2f));
+			break;
+		default:
+			rgb[0] = t;
+			rgb[1] = t;
+			rgb[2] = t;
+		}
+	}
+
+	private static float poly(float t, float c0, float c1, float c2, float c3, float c4, float c5, float c6) {
+		return c0 + t * (c1 + t * (c2 + t * (c3 + t * (c4 + t * (c5 + t * c6)))));
+	}
+}
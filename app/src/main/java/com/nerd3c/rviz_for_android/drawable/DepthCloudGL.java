@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.Utility;
+import com.nerd3c.renderer.VertexBufferRing;
+import com.nerd3c.renderer.shapes.BaseShape;
+import com.nerd3c.renderer.shapes.Cleanable;
+import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
+
+import sensor_msgs.CameraInfo;
+import sensor_msgs.Image;
+import android.content.Context;
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Draws a depth image as a point cloud, unprojecting it on the GPU. Each message only uploads the raw depth values. The pixel coordinates are kept in a static vertex buffer which is rebuilt when the image size changes, and the vertex shader turns each pixel into a point in the optical frame with the pinhole intrinsics from the camera info.
+ */
+public class DepthCloudGL extends BaseShape implements Cleanable {
+	// Values of uColorMode in the shader
+	private static final int SHADER_DEPTH = 0;
+	private static final int SHADER_FLAT = 1;
+
+	// 16UC1 depth images are in millimeters
+	private static final float MILLIMETERS = 0.001f;
+	// Stays within the range a highp float is guaranteed to represent
+	private static final float MAX_VALID_DEPTH = 1.0e6f;
+
+	private final GLSLProgram program;
+	private final Colormap colormap = new Colormap();
+	private volatile int colormapIndex = Colormap.RAINBOW;
+	private volatile boolean depthColorMode = true;
+	private volatile float minDepth = 0f;
+	private volatile float maxDepth = 10f;
+
+	// Intrinsics of the most recent camera info, in pixels of the camera info's image size
+	private volatile float[] intrinsics;
+
+	/**
+	 * A depth image staged for upload, with the row padding removed. Buffers only grow, so a steady stream of images doesn't allocate anything.
+	 */
+	private static class StagedDepth {
+		ByteBuffer data;
+		int width;
+		int height;
+		boolean floatDepth;
+
+		int getByteCount() {
+			return width * height * (floatDepth ? 4 : 2);
+		}
+	}
+
+	// Images are handed to the GL thread through a single slot mailbox, latest wins, and recycled once uploaded
+	private final AtomicReference<StagedDepth> mailbox = new AtomicReference<StagedDepth>();
+	private final ConcurrentLinkedQueue<StagedDepth> freeImages = new ConcurrentLinkedQueue<StagedDepth>();
+
+	// GL thread state
+	private final VertexBufferRing vbos = new VertexBufferRing(2);
+	private StagedDepth drawn;
+	private final int[] pixelHandle = new int[1];
+	private int pixelWidth = -1;
+	private int pixelHeight = -1;
+	private boolean cleanUp = false;
+
+	public DepthCloudGL(Camera cam, Context context) {
+		super(cam);
+		program = new GLSLProgram(Utility.assetToString(context, "DepthCloud.vsh"), Utility.assetToString(context, "PointCloud2Shader.fsh"));
+		program.setAttributeName(ShaderVal.TEXCOORD, "aPixel");
+		program.setAttributeName(ShaderVal.A_EXTRA, "aDepth");
+
+		program.setAttributeName(ShaderVal.MVP_MATRIX, "uMvp");
+		program.setAttributeName(ShaderVal.UNIFORM_COLOR, "uColor");
+		program.setAttributeName(ShaderVal.EXTRA, "uColorMode");
+		program.setAttributeName(ShaderVal.EXTRA_2, "uMinVal");
+		program.setAttributeName(ShaderVal.EXTRA_3, "uMaxVal");
+		program.setAttributeName(ShaderVal.EXTRA_4, "uIntrinsics");
+		program.setAttributeName(ShaderVal.EXTRA_5, "uDepthParams");
+		program.setAttributeName(ShaderVal.TEXTURE, "uColormap");
+		program.setAttributeName(ShaderVal.COLORMAP_ROW, "uColormapRow");
+		super.setProgram(program);
+	}
+
+	/**
+	 * Use the intrinsics of a camera info message for the following images
+	 */
+	public void setCameraInfo(CameraInfo info) {
+		double[] k = info.getK();
+		if(k.length < 6 || k[0] == 0 || k[4] == 0 || info.getWidth() == 0 || info.getHeight() == 0)
+			return;
+		intrinsics = new float[] { (float) k[0], (float) k[4], (float) k[2], (float) k[5], info.getWidth(), info.getHeight() };
+	}
+
+	public boolean hasCameraInfo() {
+		return intrinsics != null;
+	}
+
+	/**
+	 * Stage a depth image for upload
+	 *
+	 * @return false if the image encoding isn't 16UC1 or 32FC1
+	 */
+	public boolean setData(Image msg) {
+		String encoding = msg.getEncoding();
+		boolean floatDepth;
+		if(encoding.equals("16UC1") || encoding.equals("mono16"))
+			floatDepth = false;
+		else if(encoding.equals("32FC1"))
+			floatDepth = true;
+		else
+			return false;
+
+		int width = msg.getWidth();
+		int height = msg.getHeight();
+		int rowBytes = width * (floatDepth ? 4 : 2);
+		int step = msg.getStep();
+		ChannelBuffer raw = msg.getData();
+		if(width <= 0 || height <= 0 || step < rowBytes || (long) step * (height - 1) + rowBytes > raw.capacity())
+			return false;
+
+		StagedDepth depth = freeImages.poll();
+		if(depth == null)
+			depth = new StagedDepth();
+		depth.width = width;
+		depth.height = height;
+		depth.floatDepth = floatDepth;
+		if(depth.data == null || depth.data.capacity() < depth.getByteCount()) {
+			Log.i("DepthCloud", "Allocating a new staging buffer for a " + width + " x " + height + " depth image");
+			depth.data = ByteBuffer.allocateDirect(depth.getByteCount()).order(ByteOrder.nativeOrder());
+		}
+
+		ByteBuffer src = ByteBuffer.wrap(raw.array(), raw.arrayOffset(), raw.capacity());
+		ByteOrder order = msg.getIsBigendian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		depth.data.clear();
+		if(order == ByteOrder.nativeOrder()) {
+			for(int row = 0; row < height; row++) {
+				src.limit(raw.arrayOffset() + row * step + rowBytes);
+				src.position(raw.arrayOffset() + row * step);
+				depth.data.put(src);
+			}
+		} else {
+			// The GPU reads the depth in native byte order
+			src.order(order);
+			for(int row = 0; row < height; row++) {
+				int base = raw.arrayOffset() + row * step;
+				if(floatDepth) {
+					for(int i = 0; i < width; i++)
+						depth.data.putFloat(src.getFloat(base + i * 4));
+				} else {
+					for(int i = 0; i < width; i++)
+						depth.data.putShort(src.getShort(base + i * 2));
+				}
+			}
+		}
+		depth.data.flip();
+
+		StagedDepth stale = mailbox.getAndSet(depth);
+		if(stale != null)
+			freeImages.offer(stale);
+		return true;
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		if(cleanUp) {
+			vbos.cleanup();
+			colormap.cleanup();
+			if(pixelWidth >= 0)
+				GLES20.glDeleteBuffers(1, pixelHandle, 0);
+			pixelWidth = -1;
+			pixelHeight = -1;
+			return;
+		}
+
+		StagedDepth depth = mailbox.getAndSet(null);
+		if(depth != null) {
+			vbos.upload(depth.data, depth.getByteCount());
+			updatePixels(depth.width, depth.height);
+			if(drawn != null)
+				freeImages.offer(drawn);
+			drawn = depth;
+		}
+
+		float[] k = intrinsics;
+		if(drawn == null || k == null)
+			return;
+
+		super.draw(glUnused);
+		calcMVP();
+		GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
+
+		// The camera info can describe a different resolution than the image, when the depth image is binned
+		float sx = drawn.width / k[4];
+		float sy = drawn.height / k[5];
+		GLES20.glUniform4f(getUniform(ShaderVal.EXTRA_4), k[0] * sx, k[1] * sy, k[2] * sx, k[3] * sy);
+		GLES20.glUniform3f(getUniform(ShaderVal.EXTRA_5), drawn.floatDepth ? 1f : MILLIMETERS, 0f, MAX_VALID_DEPTH);
+
+		if(depthColorMode) {
+			GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), SHADER_DEPTH);
+			GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_2), minDepth);
+			GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_3), maxDepth);
+			colormap.bind(0);
+			GLES20.glUniform1i(getUniform(ShaderVal.TEXTURE), 0);
+			GLES20.glUniform1f(getUniform(ShaderVal.COLORMAP_ROW), Colormap.getRow(colormapIndex));
+		} else {
+			GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), SHADER_FLAT);
+			GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
+		}
+
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, pixelHandle[0]);
+		GLES20.glEnableVertexAttribArray(ShaderVal.TEXCOORD.loc);
+		GLES20.glVertexAttribPointer(ShaderVal.TEXCOORD.loc, 2, GLES20.GL_UNSIGNED_SHORT, false, 0, 0);
+
+		vbos.bind();
+		GLES20.glEnableVertexAttribArray(ShaderVal.A_EXTRA.loc);
+		if(drawn.floatDepth)
+			GLES20.glVertexAttribPointer(ShaderVal.A_EXTRA.loc, 1, GLES20.GL_FLOAT, false, 0, 0);
+		else
+			GLES20.glVertexAttribPointer(ShaderVal.A_EXTRA.loc, 1, GLES20.GL_UNSIGNED_SHORT, false, 0, 0);
+
+		GLES20.glDrawArrays(GLES20.GL_POINTS, 0, drawn.width * drawn.height);
+		vbos.unbind();
+	}
+
+	/**
+	 * Rebuild the pixel coordinate buffer if the image size changed
+	 */
+	private void updatePixels(int width, int height) {
+		if(width == pixelWidth && height == pixelHeight)
+			return;
+		Log.i("DepthCloud", "Building pixel coordinates for a " + width + " x " + height + " image");
+		if(pixelWidth < 0)
+			GLES20.glGenBuffers(1, pixelHandle, 0);
+		ShortBuffer pixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder()).asShortBuffer();
+		for(int row = 0; row < height; row++) {
+			for(int col = 0; col < width; col++) {
+				pixels.put((short) col);
+				pixels.put((short) row);
+			}
+		}
+		pixels.position(0);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, pixelHandle[0]);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, width * height * 4, pixels, GLES20.GL_STATIC_DRAW);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		pixelWidth = width;
+		pixelHeight = height;
+	}
+
+	/**
+	 * Color points by their depth through a colormap instead of with the flat color
+	 */
+	public void setDepthColorMode(boolean depthColorMode) {
+		this.depthColorMode = depthColorMode;
+	}
+
+	/**
+	 * Select the colormap used to color depths, one of the {@link Colormap} constants
+	 */
+	public void setColormap(int colormapIndex) {
+		this.colormapIndex = Math.max(0, Math.min(colormapIndex, Colormap.NAMES.length - 1));
+	}
+
+	/**
+	 * Set the depths, in meters, mapped to the ends of the colormap
+	 */
+	public void setDepthRange(float min, float max) {
+		if(min == max)
+			throw new IllegalArgumentException("Min and max can't be equal!");
+		minDepth = min;
+		maxDepth = max;
+	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+	}
+}
@@ -38,7 +38,7 @@ public class GLSLProgram {
 		// Attributes - location refers to OpenGL index
 		POSITION(false, 0), ATTRIB_COLOR(false, 1), TEXCOORD(false, 2), NORMAL(false, 3), AX(false, 4), AY(false, 5), AZ(false, 6), A_EXTRA(false,7),
 		// Uniforms - location refers to uniform int array
-		MVP_MATRIX(true, 0), TIME(true, 1), UNIFORM_COLOR(true, 3), MV_MATRIX(true, 4), LIGHTPOS(true, 5), M_MATRIX(true, 6), LIGHTVEC(true, 7), TEXTURE(true, 8), EXTRA(true, 9), EXTRA_2(true, 10), EXTRA_3(true, 11), NORM_MATRIX(true, 12);
+		MVP_MATRIX(true, 0), TIME(true, 1), UNIFORM_COLOR(true, 3), MV_MATRIX(true, 4), LIGHTPOS(true, 5), M_MATRIX(true, 6), LIGHTVEC(true, 7), TEXTURE(true, 8), EXTRA(true, 9), EXTRA_2(true, 10), EXTRA_3(true, 11), NORM_MATRIX(true, 12), EXTRA_4(true, 13), COLORMAP_ROW(true, 14), EXTRA_5(true, 15);
 
 		private boolean isUniform = false;
 		public int loc = -1;
@@ -67,6 +67,8 @@ public class GLSLProgram {
 	private static final GLSLProgram FlatShadedInstance = MakeFlatShaded();
 	private static final GLSLProgram ColoredVertexInstance = MakeColoredVertex();
 	private static final GLSLProgram TexturedShadedInstance = MakeTexturedShaded();
+	private static final GLSLProgram TexturedInstance = MakeTextured();
+	private static final GLSLProgram PaletteTexturedInstance = MakePaletteTextured();
 
 	public static GLSLProgram FlatColor() {
 		return FlatColorInstance;
@@ -84,6 +86,14 @@ public class GLSLProgram {
 		return TexturedShadedInstance;
 	}
 
+	public static GLSLProgram Textured() {
+		return TexturedInstance;
+	}
+
+	public static GLSLProgram PaletteTextured() {
+		return PaletteTexturedInstance;
+	}
+
 	private static GLSLProgram MakeFlatColor() {
 		String vertexShader = "uniform mat4 u_MVPMatrix;\n" + "uniform vec4 u_Color;\n" + "attribute vec4 a_Position;\n" + "varying vec4 v_Color;\n" + "void main()\n" + "{\n" + "   v_Color = u_Color;\n" + "   gl_PointSize = 3.0;\n" + "   gl_Position = u_MVPMatrix * a_Position;\n" + "}\n";
 		String fragmentShader = "precision mediump float;\n" + "varying vec4 v_Color;\n" + "void main()\n" + "{\n" + "   gl_FragColor = v_Color;\n" + "}";
@@ -141,6 +151,37 @@ public class GLSLProgram {
 		return retval;
 	}
 
+	private static GLSLProgram MakeTextured() {
+		String vertexShader = "attribute vec2 a_texCoord;\n" + "attribute vec4 a_Position;\n" + "uniform mat4 u_MVPMatrix;\n" + "varying vec2 v_texCoord;\n" + "void main()\n" + "{\n" + "		v_texCoord = a_texCoord;\n" + "		gl_Position = u_MVPMatrix * a_Position;\n" + "}";
+		String fragmentShader = "precision mediump float;\n" + "uniform sampler2D u_texture;\n" + "uniform vec4 u_Color;\n" + "varying vec2 v_texCoord;\n" + "void main()\n" + "{\n" + "		gl_FragColor = u_Color*texture2D(u_texture, v_texCoord);\n" + "}";
+		GLSLProgram retval = new GLSLProgram(vertexShader, fragmentShader);
+		// Attributes
+		retval.setAttributeName(ShaderVal.POSITION, "a_Position");
+		retval.setAttributeName(ShaderVal.TEXCOORD, "a_texCoord");
+		// Uniforms
+		retval.setAttributeName(ShaderVal.MVP_MATRIX, "u_MVPMatrix");
+		retval.setAttributeName(ShaderVal.TEXTURE, "u_texture");
+		retval.setAttributeName(ShaderVal.UNIFORM_COLOR, "u_Color");
+		return retval;
+	}
+
+	private static GLSLProgram MakePaletteTextured() {
+		String vertexShader = "attribute vec2 a_texCoord;\n" + "attribute vec4 a_Position;\n" + "uniform mat4 u_MVPMatrix;\n" + "varying vec2 v_texCoord;\n" + "void main()\n" + "{\n" + "		v_texCoord = a_texCoord;\n" + "		gl_Position = u_MVPMatrix * a_Position;\n" + "}";
+		// The luminance texture holds 8 bit indices, which select a texel center of the 256 entry palette row
+		String fragmentShader = "precision mediump float;\n" + "uniform sampler2D u_texture;\n" + "uniform sampler2D u_palette;\n" + "uniform float u_paletteRow;\n" + "uniform vec4 u_Color;\n" + "varying vec2 v_texCoord;\n" + "void main()\n" + "{\n" + "		float index = texture2D(u_texture, v_texCoord).r;\n" + "		gl_FragColor = u_Color*texture2D(u_palette, vec2(index*(255.0/256.0) + 0.5/256.0, u_paletteRow));\n" + "}";
+		GLSLProgram retval = new GLSLProgram(vertexShader, fragmentShader);
+		// Attributes
+		retval.setAttributeName(ShaderVal.POSITION, "a_Position");
+		retval.setAttributeName(ShaderVal.TEXCOORD, "a_texCoord");
+		// Uniforms
+		retval.setAttributeName(ShaderVal.MVP_MATRIX, "u_MVPMatrix");
+		retval.setAttributeName(ShaderVal.TEXTURE, "u_texture");
+		retval.setAttributeName(ShaderVal.EXTRA, "u_palette");
+		retval.setAttributeName(ShaderVal.COLORMAP_ROW, "u_paletteRow");
+		retval.setAttributeName(ShaderVal.UNIFORM_COLOR, "u_Color");
+		return retval;
+	}
+
 	public GLSLProgram(String vertex, String fragment) {
 		if(vertex == null || fragment == null)
 			throw new IllegalArgumentException("Vertex/fragment shader program cannot be null!");
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.VertexBufferRing;
+import com.nerd3c.renderer.shapes.BaseShape;
+import com.nerd3c.renderer.shapes.Cleanable;
+import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
+
+import geometry_msgs.Point;
+import nav_msgs.GridCells;
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Draws nav_msgs/GridCells as flat squares. All cells of a message are expanded into one vertex buffer of quad corners, and every quad is drawn from the same static index buffer, so a message of thousands of cells takes one draw call per {@link #QUADS_PER_DRAW} cells.
+ */
+public class GridCellsGL extends BaseShape implements Cleanable {
+	private static final int FLOATS_PER_QUAD = 4 * 3;
+	// Indices are unsigned shorts, which can address this many quads
+	private static final int QUADS_PER_DRAW = 65536 / 4;
+	private static final int INDICES_PER_QUAD = 6;
+
+	private static class StagedCells {
+		FloatBuffer data;
+		int cellCount;
+
+		int getByteCount() {
+			return cellCount * FLOATS_PER_QUAD * 4;
+		}
+	}
+
+	private final AtomicReference<StagedCells> mailbox = new AtomicReference<StagedCells>();
+	private final ConcurrentLinkedQueue<StagedCells> freeCells = new ConcurrentLinkedQueue<StagedCells>();
+
+	// GL thread state
+	private final VertexBufferRing vbos = new VertexBufferRing(2);
+	private StagedCells drawn;
+	private final int[] indexHandle = new int[1];
+	private boolean hasIndices = false;
+	private boolean cleanUp = false;
+
+	public GridCellsGL(Camera cam) {
+		super(cam);
+		super.setProgram(GLSLProgram.FlatColor());
+	}
+
+	/**
+	 * Expand the cells into quads and stage them for upload
+	 */
+	public void setData(GridCells msg) {
+		List<Point> cells = msg.getCells();
+		float halfWidth = msg.getCellWidth() / 2f;
+		float halfHeight = msg.getCellHeight() / 2f;
+
+		StagedCells staged = freeCells.poll();
+		if(staged == null)
+			staged = new StagedCells();
+		staged.cellCount = cells.size();
+
+		int floats = staged.cellCount * FLOATS_PER_QUAD;
+		if(staged.data == null || staged.data.capacity() < floats) {
+			Log.i("GridCells", "Allocating a new staging buffer for " + staged.cellCount + " cells");
+			staged.data = ByteBuffer.allocateDirect(floats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+
+		FloatBuffer data = staged.data;
+		data.position(0);
+		for(int i = 0; i < staged.cellCount; i++) {
+			Point p = cells.get(i);
+			float x = (float) p.getX();
+			float y = (float) p.getY();
+			float z = (float) p.getZ();
+			data.put(x - halfWidth).put(y - halfHeight).put(z);
+			data.put(x + halfWidth).put(y - halfHeight).put(z);
+			data.put(x + halfWidth).put(y + halfHeight).put(z);
+			data.put(x - halfWidth).put(y + halfHeight).put(z);
+		}
+		data.position(0);
+
+		StagedCells stale = mailbox.getAndSet(staged);
+		if(stale != null)
+			freeCells.offer(stale);
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		if(cleanUp) {
+			vbos.cleanup();
+			if(hasIndices)
+				GLES20.glDeleteBuffers(1, indexHandle, 0);
+			hasIndices = false;
+			return;
+		}
+
+		StagedCells staged = mailbox.getAndSet(null);
+		if(staged != null) {
+			vbos.upload(staged.data, staged.getByteCount());
+			if(drawn != null)
+				freeCells.offer(drawn);
+			drawn = staged;
+		}
+
+		if(drawn == null || drawn.cellCount == 0)
+			return;
+		if(!hasIndices)
+			buildIndices();
+
+		super.draw(glUnused);
+		calcMVP();
+		GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
+		GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
+
+		vbos.bind();
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexHandle[0]);
+		GLES20.glEnableVertexAttribArray(ShaderVal.POSITION.loc);
+		for(int first = 0; first < drawn.cellCount; first += QUADS_PER_DRAW) {
+			int quads = Math.min(QUADS_PER_DRAW, drawn.cellCount - first);
+			GLES20.glVertexAttribPointer(ShaderVal.POSITION.loc, 3, GLES20.GL_FLOAT, false, 0, first * FLOATS_PER_QUAD * 4);
+			GLES20.glDrawElements(GLES20.GL_TRIANGLES, quads * INDICES_PER_QUAD, GLES20.GL_UNSIGNED_SHORT, 0);
+		}
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+		vbos.unbind();
+	}
+
+	/**
+	 * Build the index buffer shared by every quad, two triangles per four corners
+	 */
+	private void buildIndices() {
+		ShortBuffer indices = ByteBuffer.allocateDirect(QUADS_PER_DRAW * INDICES_PER_QUAD * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+		for(int i = 0; i < QUADS_PER_DRAW; i++) {
+			int v = i * 4;
+			indices.put((short) v).put((short) (v + 1)).put((short) (v + 2));
+			indices.put((short) (v + 2)).put((short) (v + 3)).put((short) v);
+		}
+		indices.position(0);
+		GLES20.glGenBuffers(1, indexHandle, 0);
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexHandle[0]);
+		GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indices.capacity() * 2, indices, GLES20.GL_STATIC_DRAW);
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+		hasIndices = true;
+	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+	}
+}
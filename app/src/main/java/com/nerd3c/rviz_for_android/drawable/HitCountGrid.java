@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.shapes.Cleanable;
+import com.nerd3c.renderer.shapes.Color;
+import org.ros.rosjava_geometry.Quaternion;
+import org.ros.rosjava_geometry.Transform;
+import org.ros.rosjava_geometry.Vector3;
+
+import android.opengl.GLES20;
+
+/**
+ * A fixed resolution 2D grid counting how many times each cell has been hit, displayed through streaming {@link TextureTile}s. Each cell is drawn in the grid color with an opacity proportional to its hit count, so the display costs the same no matter how many hits have been accumulated.
+ *
+ * The grid is square and centered on the point given to {@link #reset(float, float, float)}. Hits outside of the grid are ignored.
+ */
+public class HitCountGrid implements Cleanable {
+	public static final int TILE_SIZE = 1024;
+
+	private final Camera cam;
+	private final int tileCount;
+	private final int size;
+	private final int[] hits;
+	private TextureTile[][] tiles;
+	// Replaced tiles whose textures still have to be deleted on the GL thread
+	private final List<TextureTile> retired = new ArrayList<TextureTile>();
+	private Color color = new Color(1f, 1f, 1f, 1f);
+
+	private float resolution = 0.05f;
+	private float originX;
+	private float originY;
+	private int hitsToSaturate = 5;
+	private boolean isReset = false;
+
+	// Dirty row band of each tile since the last flush
+	private final int[] dirtyStart;
+	private final int[] dirtyEnd;
+
+	private volatile boolean cleanUp = false;
+
+	/**
+	 * @param tileCount
+	 *            number of tiles along each side of the grid
+	 */
+	public HitCountGrid(Camera cam, int tileCount) {
+		this.cam = cam;
+		this.tileCount = tileCount;
+		this.size = tileCount * TILE_SIZE;
+		this.hits = new int[size * size];
+		this.dirtyStart = new int[tileCount * tileCount];
+		this.dirtyEnd = new int[tileCount * tileCount];
+		Arrays.fill(dirtyStart, TILE_SIZE);
+	}
+
+	/**
+	 * Clear the grid and center it on a new point
+	 */
+	public synchronized void reset(float centerX, float centerY, float z) {
+		Arrays.fill(hits, 0);
+		float halfSize = size * resolution / 2f;
+		originX = (float) Math.floor(centerX / resolution) * resolution - halfSize;
+		originY = (float) Math.floor(centerY / resolution) * resolution - halfSize;
+
+		// The old tiles are released on the GL thread when they're next drawn
+		if(tiles != null) {
+			for(TextureTile[] row : tiles) {
+				for(TextureTile t : row) {
+					t.cleanup();
+					retired.add(t);
+				}
+			}
+		}
+
+		TextureTile[][] newTiles = new TextureTile[tileCount][tileCount];
+		float tileScale = TILE_SIZE * resolution;
+		for(int row = 0; row < tileCount; row++) {
+			for(int col = 0; col < tileCount; col++) {
+				TextureTile t = new TextureTile(cam, TILE_SIZE, TILE_SIZE, GLES20.GL_LUMINANCE_ALPHA, GLES20.GL_UNSIGNED_BYTE);
+				t.setTransform(new Transform(new Vector3(originX + tileScale * col, originY + tileScale * row, z), Quaternion.identity()));
+				t.setScale(tileScale, tileScale);
+				t.setColor(color);
+				// Luminance is always full, the hit count is in the alpha channel
+				ByteBuffer px = t.getPixels();
+				for(int i = 0; i < TILE_SIZE * TILE_SIZE; i++) {
+					px.put(2 * i, (byte) 255);
+					px.put(2 * i + 1, (byte) 0);
+				}
+				newTiles[row][col] = t;
+			}
+		}
+		tiles = newTiles;
+		Arrays.fill(dirtyStart, TILE_SIZE);
+		Arrays.fill(dirtyEnd, 0);
+		isReset = true;
+	}
+
+	public synchronized boolean isReset() {
+		return isReset;
+	}
+
+	/**
+	 * Count hits at a set of points. Points are read as interleaved x, y pairs.
+	 */
+	public synchronized void addHits(float[] xy, int count) {
+		if(!isReset)
+			return;
+		for(int i = 0; i < count; i++) {
+			int u = (int) Math.floor((xy[2 * i] - originX) / resolution);
+			int v = (int) Math.floor((xy[2 * i + 1] - originY) / resolution);
+			if(u < 0 || v < 0 || u >= size || v >= size)
+				continue;
+			int idx = v * size + u;
+			if(hits[idx] == Integer.MAX_VALUE)
+				continue;
+			int h = ++hits[idx];
+			// Cells already at full opacity don't need to be redrawn
+			if(h > hitsToSaturate)
+				continue;
+			int tileIdx = (v / TILE_SIZE) * tileCount + (u / TILE_SIZE);
+			int tileRow = v % TILE_SIZE;
+			TextureTile t = tiles[v / TILE_SIZE][u / TILE_SIZE];
+			synchronized(t) {
+				t.getPixels().put(2 * (tileRow * TILE_SIZE + u % TILE_SIZE) + 1, alphaOf(h));
+			}
+			if(tileRow < dirtyStart[tileIdx])
+				dirtyStart[tileIdx] = tileRow;
+			if(tileRow + 1 > dirtyEnd[tileIdx])
+				dirtyEnd[tileIdx] = tileRow + 1;
+		}
+		flushDirty();
+	}
+
+	private byte alphaOf(int h) {
+		return (byte) Math.min(255, (h * 255) / hitsToSaturate);
+	}
+
+	private void flushDirty() {
+		for(int i = 0; i < dirtyStart.length; i++) {
+			if(dirtyStart[i] < dirtyEnd[i])
+				tiles[i / tileCount][i % tileCount].markDirty(dirtyStart[i], dirtyEnd[i]);
+			dirtyStart[i] = TILE_SIZE;
+			dirtyEnd[i] = 0;
+		}
+	}
+
+	/**
+	 * Set the size of a cell. This clears the grid.
+	 */
+	public synchronized void setResolution(float resolution) {
+		this.resolution = resolution;
+		isReset = false;
+	}
+
+	/**
+	 * Set the number of hits at which a cell is drawn fully opaque. Every cell is recolored.
+	 */
+	public synchronized void setHitsToSaturate(int hitsToSaturate) {
+		this.hitsToSaturate = Math.max(1, hitsToSaturate);
+		if(tiles == null)
+			return;
+		for(int row = 0; row < tileCount; row++) {
+			for(int col = 0; col < tileCount; col++) {
+				TextureTile t = tiles[row][col];
+				synchronized(t) {
+					ByteBuffer px = t.getPixels();
+					for(int v = 0; v < TILE_SIZE; v++) {
+						int base = (row * TILE_SIZE + v) * size + col * TILE_SIZE;
+						for(int u = 0; u < TILE_SIZE; u++)
+							px.put(2 * (v * TILE_SIZE + u) + 1, alphaOf(Math.min(hits[base + u], this.hitsToSaturate)));
+					}
+				}
+				t.markAllDirty();
+			}
+		}
+	}
+
+	public synchronized void setColor(Color color) {
+		this.color = color;
+		if(tiles != null)
+			for(TextureTile[] row : tiles)
+				for(TextureTile t : row)
+					t.setColor(color);
+	}
+
+	public Color getColor() {
+		return color;
+	}
+
+	public void draw(GL10 glUnused) {
+		TextureTile[][] drawTiles;
+		synchronized(this) {
+			for(TextureTile t : retired)
+				t.draw(glUnused);
+			retired.clear();
+			drawTiles = tiles;
+		}
+		if(drawTiles == null)
+			return;
+		for(TextureTile[] row : drawTiles) {
+			for(TextureTile t : row) {
+				if(cleanUp)
+					t.cleanup();
+				t.draw(glUnused);
+			}
+		}
+	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+	}
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.Utility;
+import com.nerd3c.renderer.Vertices;
+import com.nerd3c.renderer.shapes.BaseShape;
+import com.nerd3c.renderer.shapes.Cleanable;
+import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
+
+import sensor_msgs.CompressedImage;
+import sensor_msgs.Image;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.opengl.Matrix;
+import android.util.Log;
+
+/**
+ * Streams camera images into a texture, drawn either as a billboard in front of the camera's optical frame or as an overlay in the corner of the screen.
+ *
+ * Raw images are copied row by row into pooled buffers without any conversion. YUV 4:2:2 and Bayer images are uploaded as they are and converted to RGB by the fragment shader. Compressed images are decoded on a small worker pool into reused bitmaps.
+ *
+ * There are two textures. Each new frame is uploaded into the texture which isn't being drawn, and is drawn from the next frame on, so an upload never has to wait for the GPU to finish drawing the previous image.
+ */
+public class ImageGL extends BaseShape implements Cleanable {
+	// Values of uEncoding in the shader
+	private static final int SHADER_DIRECT = 0;
+	private static final int SHADER_UYVY = 1;
+	private static final int SHADER_YUYV = 2;
+	private static final int SHADER_BAYER = 3;
+
+	private static final int DECODE_THREADS = 2;
+
+	private final GLSLProgram program;
+
+	/**
+	 * An image ready for upload, either raw pixels or a decoded bitmap
+	 */
+	private static class ImageFrame {
+		ByteBuffer pixels;
+		Bitmap bitmap;
+		long sequence;
+		int width;
+		int height;
+		int format;
+		int encoding;
+		boolean swapRedBlue;
+		int bayerRedX;
+		int bayerRedY;
+	}
+
+	// Frames are handed to the GL thread through a single slot mailbox, latest wins, and recycled once uploaded
+	private final AtomicReference<ImageFrame> mailbox = new AtomicReference<ImageFrame>();
+	private final ConcurrentLinkedQueue<ImageFrame> freeFrames = new ConcurrentLinkedQueue<ImageFrame>();
+	private final AtomicLong nextSequence = new AtomicLong();
+	private final AtomicLong publishedSequence = new AtomicLong(-1);
+
+	// Compressed images are decoded into bitmaps from this pool, through BitmapFactory.Options.inBitmap
+	private final ConcurrentLinkedQueue<Bitmap> freeBitmaps = new ConcurrentLinkedQueue<Bitmap>();
+	private final ExecutorService decodeExecutor = Executors.newFixedThreadPool(DECODE_THREADS);
+	private final AtomicInteger decodesInFlight = new AtomicInteger();
+	private final AtomicInteger droppedFrames = new AtomicInteger();
+
+	// Double buffered textures, only touched by the GL thread
+	private final int[] textures = new int[2];
+	private final int[] texWidth = new int[2];
+	private final int[] texHeight = new int[2];
+	private final int[] texFormat = new int[2];
+	private boolean texturesCreated = false;
+	private int front = -1;
+	private int pending = -1;
+	private ImageFrame frontFrame;
+	private ImageFrame pendingFrame;
+	private boolean cleanUp = false;
+
+	// A unit quad centered on the origin, texture rows run down the image like the y axis of an optical frame
+	private static final float[] QUAD = new float[] { -0.5f, -0.5f, 0f, 0f, 0f, 0.5f, -0.5f, 0f, 1f, 0f, -0.5f, 0.5f, 0f, 0f, 1f, 0.5f, 0.5f, 0f, 1f, 1f };
+	private static final int QUAD_STRIDE = 5 * 4;
+	private final FloatBuffer quad = Vertices.toFloatBuffer(QUAD);
+	private final float[] overlayMvp = new float[16];
+
+	private volatile boolean overlay = false;
+	private volatile float billboardWidth = 1f;
+	private volatile float billboardDistance = 1f;
+	private volatile float overlaySize = 0.33f;
+
+	public ImageGL(Camera cam, Context context) {
+		super(cam);
+		program = new GLSLProgram(Utility.assetToString(context, "Image.vsh"), Utility.assetToString(context, "Image.fsh"));
+		program.setAttributeName(ShaderVal.POSITION, "aPosition");
+		program.setAttributeName(ShaderVal.TEXCOORD, "aTexCoord");
+		program.setAttributeName(ShaderVal.MVP_MATRIX, "uMvp");
+		program.setAttributeName(ShaderVal.TEXTURE, "uTexture");
+		program.setAttributeName(ShaderVal.EXTRA, "uEncoding");
+		program.setAttributeName(ShaderVal.EXTRA_2, "uTexSize");
+		program.setAttributeName(ShaderVal.EXTRA_3, "uBayerRed");
+		program.setAttributeName(ShaderVal.EXTRA_4, "uSwapRedBlue");
+		super.setProgram(program);
+	}
+
+	/**
+	 * Stage a raw image for upload
+	 *
+	 * @return null if the image was staged, otherwise why it couldn't be
+	 */
+	public String setData(Image msg) {
+		String encoding = msg.getEncoding();
+		ImageFrame frame = takeFrame();
+		int bytesPerPixel;
+		if(encoding.equals("rgb8") || encoding.equals("bgr8")) {
+			setFormat(frame, GLES20.GL_RGB, SHADER_DIRECT, encoding.equals("bgr8"));
+			bytesPerPixel = 3;
+		} else if(encoding.equals("rgba8") || encoding.equals("bgra8")) {
+			setFormat(frame, GLES20.GL_RGBA, SHADER_DIRECT, encoding.equals("bgra8"));
+			bytesPerPixel = 4;
+		} else if(encoding.equals("mono8") || encoding.equals("8UC1")) {
+			setFormat(frame, GLES20.GL_LUMINANCE, SHADER_DIRECT, false);
+			bytesPerPixel = 1;
+		} else if(encoding.equals("yuv422")) {
+			setFormat(frame, GLES20.GL_LUMINANCE_ALPHA, SHADER_UYVY, false);
+			bytesPerPixel = 2;
+		} else if(encoding.equals("yuv422_yuy2")) {
+			setFormat(frame, GLES20.GL_LUMINANCE_ALPHA, SHADER_YUYV, false);
+			bytesPerPixel = 2;
+		} else if(encoding.startsWith("bayer_") && encoding.endsWith("8")) {
+			// The position of the red pixel in each 2x2 block
+			int red = encoding.indexOf('r', 6) - 6;
+			setFormat(frame, GLES20.GL_LUMINANCE, SHADER_BAYER, false);
+			frame.bayerRedX = red % 2;
+			frame.bayerRedY = red / 2;
+			bytesPerPixel = 1;
+		} else {
+			freeFrames.offer(frame);
+			return "Unsupported image encoding " + encoding;
+		}
+
+		int width = msg.getWidth();
+		int height = msg.getHeight();
+		int rowBytes = width * bytesPerPixel;
+		int step = msg.getStep();
+		ChannelBuffer raw = msg.getData();
+		if(width <= 0 || height <= 0) {
+			freeFrames.offer(frame);
+			return "Invalid image size " + width + " x " + height;
+		}
+		if(step < rowBytes) {
+			freeFrames.offer(frame);
+			return "Image step " + step + " is shorter than a row of " + rowBytes + " bytes";
+		}
+		if((long) step * (height - 1) + rowBytes > raw.capacity()) {
+			freeFrames.offer(frame);
+			return "Image data is smaller than " + height + " rows of " + step + " bytes";
+		}
+
+		if(frame.pixels == null || frame.pixels.capacity() < rowBytes * height) {
+			Log.i("Image", "Allocating a new staging buffer for a " + width + " x " + height + " " + encoding + " image");
+			frame.pixels = ByteBuffer.allocateDirect(rowBytes * height).order(ByteOrder.nativeOrder());
+		}
+		ByteBuffer src = ByteBuffer.wrap(raw.array(), raw.arrayOffset(), raw.capacity());
+		frame.pixels.clear();
+		if(step == rowBytes) {
+			src.limit(raw.arrayOffset() + rowBytes * height);
+			frame.pixels.put(src);
+		} else {
+			// OpenGL ES 2.0 can't skip row padding, so the rows are packed while copying
+			for(int row = 0; row < height; row++) {
+				src.limit(raw.arrayOffset() + row * step + rowBytes);
+				src.position(raw.arrayOffset() + row * step);
+				frame.pixels.put(src);
+			}
+		}
+		frame.pixels.flip();
+		frame.width = width;
+		frame.height = height;
+		publish(frame);
+		return null;
+	}
+
+	/**
+	 * Queue a compressed image for decoding. Images which arrive while every decoder is busy are dropped.
+	 */
+	public void setData(final CompressedImage msg) {
+		if(decodesInFlight.get() >= DECODE_THREADS || decodeExecutor.isShutdown()) {
+			droppedFrames.incrementAndGet();
+			return;
+		}
+		decodesInFlight.incrementAndGet();
+		final long sequence = nextSequence.getAndIncrement();
+		decodeExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					decode(msg, sequence);
+				} finally {
+					decodesInFlight.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	private void decode(CompressedImage msg, long sequence) {
+		ChannelBuffer raw = msg.getData();
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inMutable = true;
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		options.inBitmap = freeBitmaps.poll();
+
+		Bitmap bitmap;
+		try {
+			bitmap = BitmapFactory.decodeByteArray(raw.array(), raw.arrayOffset(), raw.capacity(), options);
+		} catch(IllegalArgumentException e) {
+			// The pooled bitmap is too small for this image
+			options.inBitmap = null;
+			bitmap = BitmapFactory.decodeByteArray(raw.array(), raw.arrayOffset(), raw.capacity(), options);
+		}
+		if(bitmap == null) {
+			Log.w("Image", "Unable to decode a " + msg.getFormat() + " image");
+			if(options.inBitmap != null)
+				freeBitmaps.offer(options.inBitmap);
+			return;
+		}
+
+		ImageFrame frame = takeFrame();
+		frame.sequence = sequence;
+		frame.bitmap = bitmap;
+		frame.width = bitmap.getWidth();
+		frame.height = bitmap.getHeight();
+		setFormat(frame, GLES20.GL_RGBA, SHADER_DIRECT, false);
+		publish(frame);
+	}
+
+	private ImageFrame takeFrame() {
+		ImageFrame frame = freeFrames.poll();
+		if(frame == null)
+			frame = new ImageFrame();
+		frame.sequence = nextSequence.getAndIncrement();
+		return frame;
+	}
+
+	private static void setFormat(ImageFrame frame, int format, int encoding, boolean swapRedBlue) {
+		frame.format = format;
+		frame.encoding = encoding;
+		frame.swapRedBlue = swapRedBlue;
+		frame.bayerRedX = 0;
+		frame.bayerRedY = 0;
+	}
+
+	/**
+	 * Hand a frame to the GL thread, unless a newer frame has already been handed over
+	 */
+	private void publish(ImageFrame frame) {
+		long last;
+		do {
+			last = publishedSequence.get();
+			if(frame.sequence <= last) {
+				droppedFrames.incrementAndGet();
+				recycle(frame);
+				return;
+			}
+		} while(!publishedSequence.compareAndSet(last, frame.sequence));
+
+		ImageFrame stale = mailbox.getAndSet(frame);
+		if(stale != null) {
+			droppedFrames.incrementAndGet();
+			recycle(stale);
+		}
+	}
+
+	private void recycle(ImageFrame frame) {
+		if(frame.bitmap != null)
+			freeBitmaps.offer(frame.bitmap);
+		frame.bitmap = null;
+		freeFrames.offer(frame);
+	}
+
+	/**
+	 * @return the number of images which were replaced by a newer image before they were drawn
+	 */
+	public int getDroppedCount() {
+		return droppedFrames.get();
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		if(cleanUp) {
+			if(texturesCreated)
+				GLES20.glDeleteTextures(2, textures, 0);
+			texturesCreated = false;
+			front = -1;
+			pending = -1;
+			return;
+		}
+		if(!texturesCreated) {
+			GLES20.glGenTextures(2, textures, 0);
+			texturesCreated = true;
+		}
+
+		// The image uploaded last frame is drawn from now on, which frees the old front texture for the next upload
+		if(pending >= 0) {
+			if(frontFrame != null)
+				recycle(frontFrame);
+			front = pending;
+			frontFrame = pendingFrame;
+			pending = -1;
+			pendingFrame = null;
+		}
+
+		ImageFrame frame = mailbox.getAndSet(null);
+		if(frame != null) {
+			pending = (front == 0) ? 1 : 0;
+			pendingFrame = frame;
+			upload(pending, frame);
+		}
+
+		if(front < 0)
+			return;
+
+		cam.pushM();
+		super.draw(glUnused);
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[front]);
+		GLES20.glUniform1i(getUniform(ShaderVal.TEXTURE), 0);
+		GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), frontFrame.encoding);
+		GLES20.glUniform2f(getUniform(ShaderVal.EXTRA_2), texWidth[front], texHeight[front]);
+		GLES20.glUniform2f(getUniform(ShaderVal.EXTRA_3), frontFrame.bayerRedX, frontFrame.bayerRedY);
+		GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_4), frontFrame.swapRedBlue ? 1f : 0f);
+
+		float aspect = (float) frontFrame.height / frontFrame.width;
+		boolean depthTest = GLES20.glIsEnabled(GLES20.GL_DEPTH_TEST);
+		if(overlay) {
+			// Place the quad in normalized device coordinates, in the lower right corner of the screen
+			float viewAspect = (float) cam.getViewport().getWidth() / cam.getViewport().getHeight();
+			float w = 2f * overlaySize;
+			float h = w * aspect * viewAspect;
+			Matrix.setIdentityM(overlayMvp, 0);
+			Matrix.translateM(overlayMvp, 0, 1f - w / 2f, -1f + h / 2f, 0f);
+			Matrix.scaleM(overlayMvp, 0, w, -h, 0f);
+			GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, overlayMvp, 0);
+			GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+		} else {
+			// A billboard in the image plane, along the z axis of the optical frame
+			cam.translateM(0f, 0f, billboardDistance);
+			cam.scaleM(billboardWidth, billboardWidth * aspect, 1f);
+			calcMVP();
+			GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
+		}
+
+		GLES20.glEnableVertexAttribArray(ShaderVal.POSITION.loc);
+		GLES20.glEnableVertexAttribArray(ShaderVal.TEXCOORD.loc);
+		quad.position(0);
+		GLES20.glVertexAttribPointer(ShaderVal.POSITION.loc, 3, GLES20.GL_FLOAT, false, QUAD_STRIDE, quad);
+		quad.position(3);
+		GLES20.glVertexAttribPointer(ShaderVal.TEXCOORD.loc, 2, GLES20.GL_FLOAT, false, QUAD_STRIDE, quad);
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+		if(overlay && depthTest)
+			GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+		cam.popM();
+	}
+
+	/**
+	 * Upload a frame into a texture, reallocating the texture only if the image size or format changed
+	 */
+	private void upload(int tex, ImageFrame frame) {
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[tex]);
+		GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+		boolean realloc = (texWidth[tex] != frame.width || texHeight[tex] != frame.height || texFormat[tex] != frame.format);
+		if(realloc) {
+			Log.i("Image", "Allocating a " + frame.width + " x " + frame.height + " texture");
+			// Raw encodings are converted texel by texel in the shader, interpolating would mix unrelated values
+			int filter = (frame.encoding == SHADER_DIRECT) ? GLES20.GL_LINEAR : GLES20.GL_NEAREST;
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, filter);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, filter);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+			texWidth[tex] = frame.width;
+			texHeight[tex] = frame.height;
+			texFormat[tex] = frame.format;
+		}
+		if(frame.bitmap != null) {
+			if(realloc)
+				GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, frame.bitmap, 0);
+			else
+				GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, frame.bitmap);
+		} else {
+			frame.pixels.position(0);
+			if(realloc)
+				GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, frame.format, frame.width, frame.height, 0, frame.format, GLES20.GL_UNSIGNED_BYTE, frame.pixels);
+			else
+				GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, frame.width, frame.height, frame.format, GLES20.GL_UNSIGNED_BYTE, frame.pixels);
+		}
+		GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+	}
+
+	/**
+	 * Draw the image as an overlay in the corner of the screen instead of as a billboard in the scene
+	 */
+	public void setOverlay(boolean overlay) {
+		this.overlay = overlay;
+	}
+
+	/**
+	 * Set the width of the billboard and its distance from the origin of the optical frame, in meters
+	 */
+	public void setBillboardSize(float width, float distance) {
+		this.billboardWidth = width;
+		this.billboardDistance = distance;
+	}
+
+	/**
+	 * Set the width of the overlay as a fraction of the width of the screen
+	 */
+	public void setOverlaySize(float overlaySize) {
+		this.overlaySize = Math.max(0.05f, Math.min(overlaySize, 1f));
+	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+		decodeExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.Utility;
+import com.nerd3c.renderer.VertexBufferRing;
+import com.nerd3c.renderer.shapes.BaseShape;
+import com.nerd3c.renderer.shapes.Cleanable;
+import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
+
+import sensor_msgs.LaserScan;
+import android.content.Context;
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Draws a LaserScan as points without converting it to Cartesian coordinates on the CPU. Only the ranges and intensities of each scan are uploaded, the beam angles are kept in a static vertex buffer which is rebuilt when the scan geometry changes, and the vertex shader computes each point and drops beams outside of the scan's valid range.
+ */
+public class LaserScanGL extends BaseShape implements Cleanable {
+	// Values of uColorMode in the shader
+	private static final int SHADER_INTENSITY = 0;
+	private static final int SHADER_FLAT = 1;
+
+	private final GLSLProgram program;
+	private final Colormap colormap = new Colormap();
+	private volatile int colormapIndex = Colormap.RAINBOW;
+	private volatile boolean intensityColorMode = false;
+	private volatile boolean autoRange = true;
+	private volatile float minVal = 0f;
+	private volatile float maxVal = 1f;
+
+	/**
+	 * A scan staged for upload. The ranges are followed by the intensities, if the scan has them. Buffers only grow, so a steady stream of scans doesn't allocate anything.
+	 */
+	private static class StagedScan {
+		FloatBuffer data;
+		int beamCount;
+		boolean hasIntensities;
+		float angleMin;
+		float angleIncrement;
+		float rangeMin;
+		float rangeMax;
+		float minIntensity;
+		float maxIntensity;
+
+		int getByteCount() {
+			return (hasIntensities ? 2 : 1) * beamCount * 4;
+		}
+	}
+
+	// Scans are handed to the GL thread through a single slot mailbox, latest wins, and recycled once uploaded
+	private final AtomicReference<StagedScan> mailbox = new AtomicReference<StagedScan>();
+	private final ConcurrentLinkedQueue<StagedScan> freeScans = new ConcurrentLinkedQueue<StagedScan>();
+
+	// GL thread state
+	private final VertexBufferRing vbos = new VertexBufferRing(2);
+	private StagedScan drawn;
+	private final int[] angleHandle = new int[1];
+	private FloatBuffer angles;
+	private int angleCount = -1;
+	private float angleMin = Float.NaN;
+	private float angleIncrement = Float.NaN;
+	private boolean cleanUp = false;
+
+	public LaserScanGL(Camera cam, Context context) {
+		super(cam);
+		program = new GLSLProgram(Utility.assetToString(context, "LaserScan.vsh"), Utility.assetToString(context, "PointCloud2Shader.fsh"));
+		program.setAttributeName(ShaderVal.AX, "aAngle");
+		program.setAttributeName(ShaderVal.AY, "aRange");
+		program.setAttributeName(ShaderVal.A_EXTRA, "aChannel");
+
+		program.setAttributeName(ShaderVal.MVP_MATRIX, "uMvp");
+		program.setAttributeName(ShaderVal.UNIFORM_COLOR, "uColor");
+		program.setAttributeName(ShaderVal.EXTRA, "uColorMode");
+		program.setAttributeName(ShaderVal.EXTRA_2, "uMinVal");
+		program.setAttributeName(ShaderVal.EXTRA_3, "uMaxVal");
+		program.setAttributeName(ShaderVal.EXTRA_4, "uRangeLimits");
+		program.setAttributeName(ShaderVal.TEXTURE, "uColormap");
+		program.setAttributeName(ShaderVal.COLORMAP_ROW, "uColormapRow");
+		super.setProgram(program);
+	}
+
+	/**
+	 * Stage a scan for upload. Only the ranges and intensities are copied.
+	 */
+	public void setData(LaserScan msg) {
+		float[] ranges = msg.getRanges();
+		float[] intensities = msg.getIntensities();
+
+		StagedScan scan = freeScans.poll();
+		if(scan == null)
+			scan = new StagedScan();
+		scan.beamCount = ranges.length;
+		scan.hasIntensities = (intensities.length >= ranges.length && ranges.length > 0);
+		scan.angleMin = msg.getAngleMin();
+		scan.angleIncrement = msg.getAngleIncrement();
+		scan.rangeMin = msg.getRangeMin();
+		scan.rangeMax = msg.getRangeMax();
+
+		int floats = scan.getByteCount() / 4;
+		if(scan.data == null || scan.data.capacity() < floats) {
+			Log.i("LaserScan", "Allocating a new staging buffer for " + scan.beamCount + " beams");
+			scan.data = ByteBuffer.allocateDirect(floats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+		scan.data.position(0);
+		scan.data.put(ranges);
+
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		if(scan.hasIntensities) {
+			scan.data.put(intensities, 0, scan.beamCount);
+			for(int i = 0; i < scan.beamCount; i++) {
+				// Only beams which will be drawn count towards the intensity range
+				float r = ranges[i];
+				if(!(r >= scan.rangeMin && r <= scan.rangeMax))
+					continue;
+				float v = intensities[i];
+				if(v < min)
+					min = v;
+				if(v > max)
+					max = v;
+			}
+		}
+		scan.minIntensity = (min <= max) ? min : 0f;
+		scan.maxIntensity = (min < max) ? max : scan.minIntensity + 1f;
+		scan.data.position(0);
+
+		StagedScan stale = mailbox.getAndSet(scan);
+		if(stale != null)
+			freeScans.offer(stale);
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		if(cleanUp) {
+			vbos.cleanup();
+			colormap.cleanup();
+			if(angleCount >= 0)
+				GLES20.glDeleteBuffers(1, angleHandle, 0);
+			angleCount = -1;
+			return;
+		}
+
+		StagedScan scan = mailbox.getAndSet(null);
+		if(scan != null) {
+			vbos.upload(scan.data, scan.getByteCount());
+			updateAngles(scan);
+			if(drawn != null)
+				freeScans.offer(drawn);
+			drawn = scan;
+		}
+
+		if(drawn == null || drawn.beamCount == 0)
+			return;
+
+		super.draw(glUnused);
+		calcMVP();
+		GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
+		GLES20.glUniform2f(getUniform(ShaderVal.EXTRA_4), drawn.rangeMin, drawn.rangeMax);
+
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, angleHandle[0]);
+		GLES20.glEnableVertexAttribArray(ShaderVal.AX.loc);
+		GLES20.glVertexAttribPointer(ShaderVal.AX.loc, 1, GLES20.GL_FLOAT, false, 0, 0);
+
+		vbos.bind();
+		GLES20.glEnableVertexAttribArray(ShaderVal.AY.loc);
+		GLES20.glVertexAttribPointer(ShaderVal.AY.loc, 1, GLES20.GL_FLOAT, false, 0, 0);
+
+		if(intensityColorMode && drawn.hasIntensities) {
+			GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), SHADER_INTENSITY);
+			GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_2), autoRange ? drawn.minIntensity : minVal);
+			GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_3), autoRange ? drawn.maxIntensity : maxVal);
+			GLES20.glEnableVertexAttribArray(ShaderVal.A_EXTRA.loc);
+			GLES20.glVertexAttribPointer(ShaderVal.A_EXTRA.loc, 1, GLES20.GL_FLOAT, false, 0, drawn.beamCount * 4);
+			colormap.bind(0);
+			GLES20.glUniform1i(getUniform(ShaderVal.TEXTURE), 0);
+			GLES20.glUniform1f(getUniform(ShaderVal.COLORMAP_ROW), Colormap.getRow(colormapIndex));
+		} else {
+			GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), SHADER_FLAT);
+			// The shader ignores the intensity, but it must still read from a valid buffer
+			GLES20.glEnableVertexAttribArray(ShaderVal.A_EXTRA.loc);
+			GLES20.glVertexAttribPointer(ShaderVal.A_EXTRA.loc, 1, GLES20.GL_FLOAT, false, 0, 0);
+			GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
+		}
+
+		GLES20.glDrawArrays(GLES20.GL_POINTS, 0, drawn.beamCount);
+		vbos.unbind();
+	}
+
+	/**
+	 * Rebuild the beam angle buffer if the scan geometry changed
+	 */
+	private void updateAngles(StagedScan scan) {
+		if(scan.beamCount == angleCount && scan.angleMin == angleMin && scan.angleIncrement == angleIncrement)
+			return;
+		Log.i("LaserScan", "Building angles for " + scan.beamCount + " beams");
+		if(angleCount < 0)
+			GLES20.glGenBuffers(1, angleHandle, 0);
+		if(angles == null || angles.capacity() < scan.beamCount)
+			angles = ByteBuffer.allocateDirect(scan.beamCount * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		for(int i = 0; i < scan.beamCount; i++)
+			angles.put(i, scan.angleMin + i * scan.angleIncrement);
+		angles.position(0);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, angleHandle[0]);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, scan.beamCount * 4, angles, GLES20.GL_STATIC_DRAW);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		angleCount = scan.beamCount;
+		angleMin = scan.angleMin;
+		angleIncrement = scan.angleIncrement;
+	}
+
+	public void setIntensityColorMode(boolean intensityColorMode) {
+		this.intensityColorMode = intensityColorMode;
+	}
+
+	/**
+	 * Select the colormap used to color intensities, one of the {@link Colormap} constants
+	 */
+	public void setColormap(int colormapIndex) {
+		this.colormapIndex = Math.max(0, Math.min(colormapIndex, Colormap.NAMES.length - 1));
+	}
+
+	/**
+	 * Color by the intensity range of each scan instead of a fixed range
+	 */
+	public void setAutoRange(boolean autoRange) {
+		this.autoRange = autoRange;
+	}
+
+	public void setRange(float min, float max) {
+		if(min == max)
+			throw new IllegalArgumentException("Min and max can't be equal!");
+		minVal = min;
+		maxVal = max;
+	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Copies rectangles of an occupancy grid into the pixel buffers of 8 bit palette textures. Large rectangles are copied in parallel bands of rows, and whole tiles can be generated as independent jobs on the same worker pool.
+ */
+public class OccupancyGridRasterizer {
+	private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+	// Bands smaller than this aren't worth handing to another thread
+	private static final int MIN_BAND_CELLS = 64 * 1024;
+
+	private static final long HASH_SEED = 0x9e3779b97f4a7c15L;
+	private static final long MIX_1 = 0xbf58476d1ce4e5b9L;
+	private static final long MIX_2 = 0x94d049bb133111ebL;
+	private static final long HASH_PRIME = 0x9fb21c651e98df25L;
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+	/**
+	 * Copy a rectangle of a grid into a texture's pixels
+	 * 
+	 * @param data
+	 *            occupancy values in row major order
+	 * @param offset
+	 *            index of cell (0, 0) in data
+	 * @param stride
+	 *            number of cells in a row of the grid
+	 * @param dst
+	 *            destination, rows of w pixels starting from row y of the grid. Its position is not changed.
+	 * @param lock
+	 *            held while each band is copied, never while waiting for the bands. The caller must not hold a lock which jobs on the pool can wait for.
+	 */
+	public void rasterize(final byte[] data, final int offset, final int stride, final int x, final int y, final int w, final int h, final ByteBuffer dst, final Object lock) {
+		int bands = Math.max(1, Math.min(THREADS, (w * h) / MIN_BAND_CELLS));
+		if(bands == 1 || executor.isShutdown()) {
+			synchronized(lock) {
+				copyRows(data, offset, stride, x, y, w, dst, 0, h);
+			}
+			return;
+		}
+
+		int rowsPerBand = (h + bands - 1) / bands;
+		List<Callable<Void>> jobs = new ArrayList<Callable<Void>>(bands);
+		for(int start = 0; start < h; start += rowsPerBand) {
+			final int bandStart = start;
+			final int bandEnd = Math.min(h, start + rowsPerBand);
+			jobs.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					synchronized(lock) {
+						copyRows(data, offset, stride, x, y, w, dst, bandStart, bandEnd);
+					}
+					return null;
+				}
+			});
+		}
+		try {
+			for(Future<Void> f : executor.invokeAll(jobs))
+				f.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Copy rows [startRow, endRow) of the rectangle. Each call has its own view of dst, so bands can be copied concurrently.
+	 */
+	public static void copyRows(byte[] data, int offset, int stride, int x, int y, int w, ByteBuffer dst, int startRow, int endRow) {
+		ByteBuffer out = dst.duplicate();
+		for(int v = startRow; v < endRow; v++) {
+			out.position(v * w);
+			out.put(data, offset + (y + v) * stride + x, w);
+		}
+	}
+
+	/**
+	 * Hash a rectangle of a grid, eight cells at a time. Every word is mixed before it's folded into the hash, so a change to any cell reaches every bit of the result. It's only meant to tell whether a region changed between two grids, not to resist deliberate collisions.
+	 * 
+	 * @return a 64 bit hash of the cells of the rectangle
+	 */
+	public static long hashRegion(byte[] data, int offset, int stride, int x, int y, int w, int h) {
+		ByteBuffer in = ByteBuffer.wrap(data);
+		long hash = HASH_SEED;
+		for(int v = 0; v < h; v++) {
+			int i = offset + (y + v) * stride + x;
+			int end = i + w;
+			for(; i + 8 <= end; i += 8)
+				hash = Long.rotateLeft(hash ^ mix(in.getLong(i)), 27) * HASH_PRIME;
+			for(; i < end; i++)
+				hash = Long.rotateLeft(hash ^ mix(data[i] & 0xff), 27) * HASH_PRIME;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * Spread every bit of a word over the whole word (the splitmix64 finalizer)
+	 */
+	private static long mix(long k) {
+		k ^= k >>> 30;
+		k *= MIX_1;
+		k ^= k >>> 27;
+		k *= MIX_2;
+		k ^= k >>> 31;
+		return k;
+	}
+
+	/**
+	 * Run a job on the rasterizer's worker pool. Jobs must not call {@link #rasterize(byte[], int, int, int, int, int, int, ByteBuffer, Object)}, which waits on the same pool, use {@link #copyRows(byte[], int, int, int, int, int, ByteBuffer, int, int)} instead.
+	 * 
+	 * @return false if the pool has been shut down
+	 */
+	public boolean submit(Runnable job) {
+		if(executor.isShutdown())
+			return false;
+		try {
+			executor.execute(job);
+		} catch(RejectedExecutionException e) {
+			return false;
+		}
+		return true;
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.opengl.GLES20;
+
+/**
+ * Color schemes for occupancy values, stored as the rows of one 256 entry RGBA texture. Map tiles hold the raw occupancy bytes and the shader looks each one up in the selected row, so changing scheme is a uniform change and the palette can make cells transparent.
+ *
+ * The texture is created the first time it's bound. Binding and cleanup must happen on the GL thread.
+ */
+public class OccupancyPalette {
+	public static final String[] NAMES = new String[] { "Map", "Costmap", "Raw" };
+	public static final int MAP = 0;
+	public static final int COSTMAP = 1;
+	public static final int RAW = 2;
+
+	private static final int WIDTH = 256;
+	// Power of two dimensions, so the texture is complete on every OpenGL ES 2.0 device
+	private static final int HEIGHT = 4;
+
+	private static ByteBuffer pixels;
+
+	private final int[] handle = new int[1];
+	private boolean created = false;
+	private volatile int scheme = MAP;
+
+	/**
+	 * @return the vertical texture coordinate of the center of a scheme's row
+	 */
+	public static float getRow(int scheme) {
+		return (scheme + 0.5f) / HEIGHT;
+	}
+
+	/**
+	 * Select the scheme used by tiles drawn with this palette, one of the scheme constants
+	 */
+	public void setScheme(int scheme) {
+		this.scheme = Math.max(0, Math.min(scheme, NAMES.length - 1));
+	}
+
+	public int getScheme() {
+		return scheme;
+	}
+
+	/**
+	 * Bind the palette texture to a texture unit, creating it if needed
+	 */
+	public void bind(int unit) {
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+		if(!created) {
+			GLES20.glGenTextures(1, handle, 0);
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, handle[0]);
+			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, WIDTH, HEIGHT, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, getPixels());
+			// Occupancy values are categories, neighboring entries must never be blended
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+			created = true;
+		} else {
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, handle[0]);
+		}
+	}
+
+	public void cleanup() {
+		if(created)
+			GLES20.glDeleteTextures(1, handle, 0);
+		created = false;
+	}
+
+	private static synchronized ByteBuffer getPixels() {
+		if(pixels == null) {
+			pixels = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4).order(ByteOrder.nativeOrder());
+			int[] rgba = new int[4];
+			for(int row = 0; row < HEIGHT; row++) {
+				for(int i = 0; i < WIDTH; i++) {
+					sample(Math.min(row, NAMES.length - 1), i, rgba);
+					for(int k = 0; k < 4; k++)
+						pixels.put((byte) rgba[k]);
+				}
+			}
+		}
+		pixels.position(0);
+		return pixels;
+	}
+
+	/**
+	 * Color of an occupancy value in a scheme
+	 * 
+	 * @param value
+	 *            the occupancy byte as an unsigned value, so unknown (-1) is 255
+	 */
+	public static void sample(int scheme, int value, int[] rgba) {
+		rgba[3] = 255;
+		switch(scheme) {
+		case MAP:
+			int gray = (value == 100) ? 0 : (value == 0) ? 255 : 127;
+			rgba[0] = rgba[1] = rgba[2] = gray;
+			break;
+		case COSTMAP:
+			if(value == 0) {
+				// Free space is left transparent so costmaps can be overlaid on a map
+				rgba[0] = rgba[1] = rgba[2] = rgba[3] = 0;
+			} else if(value <= 98) {
+				// Blue to red with increasing cost
+				int v = (255 * value) / 100;
+				rgba[0] = v;
+				rgba[1] = 0;
+				rgba[2] = 255 - v;
+			} else if(value == 99) {
+				// Inscribed obstacle
+				rgba[0] = 0;
+				rgba[1] = 255;
+				rgba[2] = 255;
+			} else if(value == 100) {
+				// Lethal obstacle
+				rgba[0] = 255;
+				rgba[1] = 0;
+				rgba[2] = 255;
+			} else if(value == 255) {
+				// Unknown
+				rgba[0] = 0x70;
+				rgba[1] = 0x89;
+				rgba[2] = 0x86;
+			} else {
+				// Values outside of the occupancy range
+				rgba[0] = 0;
+				rgba[1] = 255;
+				rgba[2] = 0;
+			}
+			break;
+		default:
+			rgba[0] = rgba[1] = rgba[2] = value;
+		}
+	}
+}
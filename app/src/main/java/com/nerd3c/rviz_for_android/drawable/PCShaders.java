@@ -19,25 +19,27 @@ package com.nerd3c.rviz_for_android.drawable;
 import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
 
 public class PCShaders {
-	private static final String vChannelShader = "attribute vec2 aChannel;\n" + "attribute vec4 aPosition;\n" + "uniform mat4 uMvp;\n" + "uniform float minVal;\n" + "uniform float maxVal;\n" + "varying vec4 vColor;\n" + "void main() {\n" + "	gl_Position = uMvp * aPosition;\n" + "	float mixlevel = max(min((aChannel.x - minVal)/(maxVal-minVal),1.0),0.0);\n" + "	vColor = mix(vec4(0.0, 0.0, 0.0, 1.0), vec4(1.0,1.0,1.0,1.0), mixlevel);\n" + "	gl_PointSize = 3.0;\n" + "}";
-	private static final ShaderVal[] channelParamTypes = new ShaderVal[] { ShaderVal.POSITION, ShaderVal.MVP_MATRIX, ShaderVal.ATTRIB_COLOR, ShaderVal.EXTRA, ShaderVal.EXTRA_2 };
-	private static final String[] channelParamNames = new String[] { "aPosition", "uMvp", "aChannel", "minVal", "maxVal" };
+	// Channel and gradient modes only compute a normalized value per vertex, the color is looked up in a Colormap texture by the fragment shader
+	private static final String vChannelShader = "attribute vec2 aChannel;\n" + "attribute vec4 aPosition;\n" + "uniform mat4 uMvp;\n" + "uniform float minVal;\n" + "uniform float maxVal;\n" + "varying float vMapCoord;\n" + "void main() {\n" + "	gl_Position = uMvp * aPosition;\n" + "	float t = clamp((aChannel.x - minVal)/(maxVal-minVal),0.0,1.0);\n" + "	vMapCoord = t * (255.0/256.0) + (0.5/256.0);\n" + "	gl_PointSize = 3.0;\n" + "}";
+	private static final ShaderVal[] channelParamTypes = new ShaderVal[] { ShaderVal.POSITION, ShaderVal.MVP_MATRIX, ShaderVal.ATTRIB_COLOR, ShaderVal.EXTRA, ShaderVal.EXTRA_2, ShaderVal.TEXTURE, ShaderVal.COLORMAP_ROW };
+	private static final String[] channelParamNames = new String[] { "aPosition", "uMvp", "aChannel", "minVal", "maxVal", "uColormap", "uColormapRow" };
 
-	private static final String hToRGB = "vec4 hToRGB(float h) {\n" + "   float hs = 2.0*h;\n" + "	float hi = floor(hs);\n" + "   float f = (hs) - floor(hs);\n" + "	float q = 1.0 - f;\n" + "	if (hi <= 0.0)\n" + "return vec4(1.0, f, 0.0, 1.0);\n" + "	if (hi <= 1.0)\n" + "return vec4(q, 1.0, 0.0, 1.0);\n" + "	if (hi <= 2.0)\n" + "return vec4(0.0, 1.0, f, 1.0);\n" + "	if (hi <= 3.0)\n" + "return vec4(0.0, q, 1.0, 1.0);\n" + "	if (hi <= 4.0)\n" + "return vec4(f, 0.0, 1.0, 1.0);\n" + "	else\n" + "return vec4(1.0, 0.0, q, 1.0);\n" + "}\n";
-	private static final String vFlatColorShader = "precision mediump float;\n" + "uniform mat4 uMvp;\n" + "uniform vec4 uColor;\n" + "attribute vec4 aPosition;\n" + "varying vec4 vColor;\n" + "void main() {\n" + "	gl_Position = uMvp * aPosition;\n" + "	vColor = uColor;\n" + "	gl_PointSize = 3.0;\n" + "}";
+	private static final String vFlatColorShader = "precision highp float;\n" + "uniform mat4 uMvp;\n" + "uniform vec4 uColor;\n" + "attribute vec4 aPosition;\n" + "varying vec4 vColor;\n" + "void main() {\n" + "	gl_Position = uMvp * aPosition;\n" + "	vColor = uColor;\n" + "	gl_PointSize = 3.0;\n" + "}";
 	private static final ShaderVal[] flatColorParamTypes = new ShaderVal[] { ShaderVal.POSITION, ShaderVal.UNIFORM_COLOR, ShaderVal.MVP_MATRIX };
 	private static final String[] flatColorParamNames = new String[] { "aPosition", "uColor", "uMvp" };
 
-	private static final String vGradientShader = "precision mediump float;\n" + "uniform mat4 uMvp;\n" + "uniform vec4 uColor;\n" + "uniform int uDirSelect;\n" + "attribute vec4 aPosition;\n" + "varying vec4 vColor;\n" + hToRGB + "void main() {\n" + "	gl_Position = uMvp * aPosition;\n" + "	vColor = hToRGB(mod(abs(aPosition[uDirSelect]),3.0));\n" + "	gl_PointSize = 3.0;\n" + "}";
-	private static final ShaderVal[] gradientParamTypes = new ShaderVal[] { ShaderVal.POSITION, ShaderVal.UNIFORM_COLOR, ShaderVal.MVP_MATRIX, ShaderVal.EXTRA };
-	private static final String[] gradientParamNames = new String[] { "aPosition", "uColor", "uMvp", "uDirSelect" };
+	// The gradient repeats every 3 meters along the selected axis
+	private static final String vGradientShader = "precision highp float;\n" + "uniform mat4 uMvp;\n" + "uniform int uDirSelect;\n" + "uniform vec3 uPosScale;\n" + "uniform vec3 uPosOffset;\n" + "attribute vec4 aPosition;\n" + "varying float vMapCoord;\n" + "void main() {\n" + "	gl_Position = uMvp * aPosition;\n" + "	vec3 p = aPosition.xyz * uPosScale + uPosOffset;\n" + "	float t = mod(abs(p[uDirSelect]),3.0)/3.0;\n" + "	vMapCoord = t * (255.0/256.0) + (0.5/256.0);\n" + "	gl_PointSize = 3.0;\n" + "}";
+	private static final ShaderVal[] gradientParamTypes = new ShaderVal[] { ShaderVal.POSITION, ShaderVal.MVP_MATRIX, ShaderVal.EXTRA, ShaderVal.EXTRA_2, ShaderVal.EXTRA_3, ShaderVal.TEXTURE, ShaderVal.COLORMAP_ROW };
+	private static final String[] gradientParamNames = new String[] { "aPosition", "uMvp", "uDirSelect", "uPosScale", "uPosOffset", "uColormap", "uColormapRow" };
 
 	private static final String fShader = "precision mediump float;\n" + "varying vec4 vColor;\n" + "void main()\n" + "{\n" + "	gl_FragColor = vColor;\n" + "}";
+	private static final String fColormapShader = "precision mediump float;\n" + "uniform sampler2D uColormap;\n" + "uniform float uColormapRow;\n" + "varying float vMapCoord;\n" + "void main()\n" + "{\n" + "	gl_FragColor = texture2D(uColormap, vec2(vMapCoord, uColormapRow));\n" + "}";
 
 	// This was originally done in an enum, but Dalvik seems to have some strange enum issues which caused exceptions
 	private static final GLSLProgram flatInstance = new GLSLProgram(vFlatColorShader, fShader);
-	private static final GLSLProgram gradientInstance = new GLSLProgram(vGradientShader, fShader);
-	private static final GLSLProgram channelInstance = new GLSLProgram(vChannelShader, fShader);
+	private static final GLSLProgram gradientInstance = new GLSLProgram(vGradientShader, fColormapShader);
+	private static final GLSLProgram channelInstance = new GLSLProgram(vChannelShader, fColormapShader);
 
 	static {
 		for(int i = 0; i < flatColorParamTypes.length; i++)
@@ -67,6 +69,13 @@ public class PCShaders {
 		return programs[cm.pos];
 	}
 
+	/**
+	 * @return true if the mode colors points with a {@link Colormap}
+	 */
+	public static boolean usesColormap(ColorMode cm) {
+		return cm.pos != ColorMode.FLAT_COLOR.pos;
+	}
+
 	public static enum ColorMode {
 		FLAT_COLOR("Flat Color", 0, -1), GRADIENT_X("Gradient X", 1, 0), GRADIENT_Y("Gradient Y", 1, 1), GRADIENT_Z("Gradient Z", 1, 2), CHANNEL("Channel", 2, -1);
 		public String name;
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
+
+import android.opengl.GLES20;
+
+/**
+ * A {@link TextureTile} holding raw 8 bit occupancy values, colored in the shader through an {@link OccupancyPalette}
+ */
+public class PaletteTile extends TextureTile {
+	private static final int PALETTE_UNIT = 1;
+	private final OccupancyPalette palette;
+
+	public PaletteTile(Camera cam, int width, int height, OccupancyPalette palette) {
+		super(cam, width, height, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE);
+		this.palette = palette;
+		super.setProgram(GLSLProgram.PaletteTextured());
+	}
+
+	@Override
+	protected void setExtraUniforms() {
+		palette.bind(PALETTE_UNIT);
+		GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), PALETTE_UNIT);
+		GLES20.glUniform1f(getUniform(ShaderVal.COLORMAP_ROW), OccupancyPalette.getRow(palette.getScheme()));
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.DynamicVertexBuffer;
+import com.nerd3c.renderer.shapes.BaseShape;
+import com.nerd3c.renderer.shapes.Cleanable;
+import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
+
+import geometry_msgs.Point;
+import geometry_msgs.PoseStamped;
+import android.opengl.GLES20;
+
+/**
+ * Draws a nav_msgs/Path as a line strip. Paths usually grow at the end, so each new path is compared to the previous one from the start and only the poses after the shared prefix are copied and uploaded.
+ */
+public class PathGL extends BaseShape implements Cleanable {
+	private static final int FLOATS_PER_POSE = 3;
+	private static final int BYTES_PER_POSE = FLOATS_PER_POSE * 4;
+
+	// Message thread state, the positions of the last path
+	private float[] positions = new float[0];
+	private int count = 0;
+
+	// Positions published to the GL thread, guarded by lock. Poses from dirtyFrom on haven't been uploaded yet.
+	private final Object lock = new Object();
+	private float[] published = new float[0];
+	private int publishedCount = 0;
+	private int dirtyFrom = 0;
+
+	// GL thread state
+	private final DynamicVertexBuffer vbo = new DynamicVertexBuffer();
+	private FloatBuffer mirror;
+	private int drawCount = 0;
+	private boolean cleanUp = false;
+
+	public PathGL(Camera cam) {
+		super(cam);
+		super.setProgram(GLSLProgram.FlatColor());
+	}
+
+	/**
+	 * Replace the drawn path. Poses matching the start of the previous path are not copied again. The poses are read without holding the lock, which is only held to publish the changed positions.
+	 */
+	public void setData(List<PoseStamped> poses) {
+		int n = poses.size();
+		if(positions.length < n * FLOATS_PER_POSE)
+			positions = Arrays.copyOf(positions, Math.max(n, 2 * positions.length / FLOATS_PER_POSE) * FLOATS_PER_POSE);
+
+		// Find the length of the prefix shared with the previous path
+		int shared = 0;
+		int limit = Math.min(n, count);
+		while(shared < limit) {
+			Point p = poses.get(shared).getPose().getPosition();
+			int idx = shared * FLOATS_PER_POSE;
+			if(positions[idx] != (float) p.getX() || positions[idx + 1] != (float) p.getY() || positions[idx + 2] != (float) p.getZ())
+				break;
+			shared++;
+		}
+
+		for(int i = shared; i < n; i++) {
+			Point p = poses.get(i).getPose().getPosition();
+			int idx = i * FLOATS_PER_POSE;
+			positions[idx] = (float) p.getX();
+			positions[idx + 1] = (float) p.getY();
+			positions[idx + 2] = (float) p.getZ();
+		}
+		count = n;
+
+		// The published positions always match the last path, so only the poses after the shared prefix are copied, along
+		// with any the GL thread hasn't picked up yet
+		synchronized(lock) {
+			if(published.length < positions.length)
+				published = Arrays.copyOf(published, positions.length);
+			dirtyFrom = Math.min(dirtyFrom, shared);
+			int from = Math.min(dirtyFrom, n);
+			System.arraycopy(positions, from * FLOATS_PER_POSE, published, from * FLOATS_PER_POSE, (n - from) * FLOATS_PER_POSE);
+			publishedCount = n;
+		}
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		if(cleanUp) {
+			vbo.cleanup();
+			return;
+		}
+
+		int uploadFrom;
+		synchronized(lock) {
+			drawCount = publishedCount;
+			uploadFrom = Math.min(dirtyFrom, drawCount);
+			if(mirror == null || mirror.capacity() < drawCount * FLOATS_PER_POSE) {
+				mirror = ByteBuffer.allocateDirect(Math.max(drawCount, 2 * (mirror == null ? 0 : mirror.capacity() / FLOATS_PER_POSE)) * BYTES_PER_POSE).order(ByteOrder.nativeOrder()).asFloatBuffer();
+				uploadFrom = 0;
+			}
+			mirror.position(uploadFrom * FLOATS_PER_POSE);
+			mirror.put(published, uploadFrom * FLOATS_PER_POSE, (drawCount - uploadFrom) * FLOATS_PER_POSE);
+			dirtyFrom = drawCount;
+		}
+
+		// Upload even a path too short to draw, since the next path's shared prefix is only skipped if the buffer holds it.
+		// A reallocated buffer has lost its contents.
+		if(vbo.reserve(drawCount * BYTES_PER_POSE))
+			uploadFrom = 0;
+		mirror.position(uploadFrom * FLOATS_PER_POSE);
+		vbo.write(mirror, uploadFrom * BYTES_PER_POSE, (drawCount - uploadFrom) * BYTES_PER_POSE);
+
+		if(drawCount < 2) {
+			vbo.unbind();
+			return;
+		}
+
+		super.draw(glUnused);
+		calcMVP();
+		GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
+		GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
+
+		GLES20.glEnableVertexAttribArray(ShaderVal.POSITION.loc);
+		GLES20.glVertexAttribPointer(ShaderVal.POSITION.loc, 3, GLES20.GL_FLOAT, false, 0, 0);
+		GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, 0, drawCount);
+		vbo.unbind();
+	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+	}
+}
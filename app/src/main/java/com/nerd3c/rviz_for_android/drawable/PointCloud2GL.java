@@ -17,15 +17,28 @@
 package com.nerd3c.rviz_for_android.drawable;
 
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.microedition.khronos.opengles.GL10;
 
+import org.ros.namespace.GraphName;
+import org.ros.rosjava_geometry.FrameTransformTree;
+import org.ros.rosjava_geometry.Transform;
+
 import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.GridIndexBuffer;
 import com.nerd3c.renderer.Utility;
-import com.nerd3c.renderer.Vertices;
+import com.nerd3c.renderer.VertexBufferRing;
 import com.nerd3c.renderer.shapes.BaseShape;
+import com.nerd3c.renderer.shapes.Cleanable;
 import com.nerd3c.renderer.shapes.Color;
 import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
 
@@ -34,33 +47,124 @@ import android.content.Context;
 import android.opengl.GLES20;
 import android.util.Log;
 
-public class PointCloud2GL extends BaseShape {
+public class PointCloud2GL extends BaseShape implements Cleanable {
 
 	private GLSLProgram program;
-
-	private ByteBuffer data;
+	private GLSLProgram surfaceProgram;
 
 	private boolean drawCloud = false;
 
-	private int xOffset = -1;
-	private int yOffset = -1;
-	private int zOffset = -1;
+	private volatile float minVal = 0f;
+	private volatile float maxVal = 1f;
 
-	private float minVal = 0f;
-	private float maxVal = 1f;
+	// Statistics of the most recent cloud, computed on the ingest thread and published by reference
+	private static final float AUTO_RANGE_LOW = 0.02f;
+	private static final float AUTO_RANGE_HIGH = 0.98f;
+	private volatile ChannelStatistics statistics = new ChannelStatistics();
+	private volatile boolean autoRange = false;
 
-	private int arrayOffset = 0;
-	private int currentChannel = 0;
-	private int drawOffset = 0;
+	private volatile int currentChannel = 0;
 	private volatile boolean flatColorMode = true;
-	private int stride = 0;
-	private int pointCount = 0;
-	private List<String> channelNames = new ArrayList<String>();
+	private volatile boolean rgbColorMode = false;
+	// Set by the ingest thread when RGB coloring is selected for a cloud without an rgb or rgba field
+	private volatile boolean missingRgb = false;
+
+	// Values of uColorMode in the shader
+	private static final int SHADER_CHANNEL = 0;
+	private static final int SHADER_FLAT = 1;
+	private static final int SHADER_RGB = 2;
+	private static final int SHADER_RGBA = 3;
+	private int vboColorMode = SHADER_CHANNEL;
+
+	// Channel values are colored by a lookup in the colormap texture
+	private final Colormap colormap = new Colormap();
+	private volatile int colormapIndex = Colormap.RAINBOW;
+	private volatile List<String> channelNames = new ArrayList<String>();
 
-	private Object dataSync = new Object();
+	/**
+	 * A cloud prepared for upload by the ingest thread. The packer holds the points repacked into a compact xyz + channel layout.
+	 */
+	private static class PreparedCloud {
+		final PointCloud2Packer packer = new PointCloud2Packer();
+		int pointCount;
+		PointOctree octree;
+		int colorMode;
+		boolean compact;
+		boolean inFixedFrame;
+		int gridWidth;
+		int gridHeight;
+		// The accumulated clouds are cleared before this one is drawn, so a reset always lands between the right two clouds
+		boolean reset;
+	}
+
+	// Prepared clouds are handed to the GL thread through a single slot mailbox, latest wins. The ingest thread publishes with an
+	// atomic swap and the GL thread takes the newest cloud at the start of a frame, so neither thread ever waits for the other. A
+	// cloud replaced before the GL thread picked it up is counted and recycled.
+	private final AtomicReference<PreparedCloud> mailbox = new AtomicReference<PreparedCloud>();
+	private final ConcurrentLinkedQueue<PreparedCloud> freeClouds = new ConcurrentLinkedQueue<PreparedCloud>();
+	private final AtomicInteger droppedClouds = new AtomicInteger();
+
+	private final VoxelGridFilter voxelFilter = new VoxelGridFilter();
+	private volatile float voxelSize = 0f;
+	private volatile sensor_msgs.PointCloud2 lastMessage;
+
+	// Messages are packed and filtered on a single ingest thread, never on the ROS callback thread. If messages arrive faster
+	// than they can be processed, only the newest pending message is kept and the others are counted as dropped.
+	private final ExecutorService ingestExecutor = Executors.newSingleThreadExecutor();
+	private final AtomicReference<sensor_msgs.PointCloud2> pendingMessage = new AtomicReference<sensor_msgs.PointCloud2>();
+	private final Runnable ingestTask = new Runnable() {
+		@Override
+		public void run() {
+			sensor_msgs.PointCloud2 msg = pendingMessage.getAndSet(null);
+			if(msg != null)
+				ingest(msg);
+		}
+	};
+
+	// The cloud is uploaded to the GPU once per message and drawn from a vertex buffer until the next message arrives
+	private static final int VBO_RING_SIZE = 3;
+	private final VertexBufferRing vbos = new VertexBufferRing(VBO_RING_SIZE);
+	private boolean cleanUp = false;
+
+	// When more than one message is kept, every cloud is transformed into the fixed frame at its own timestamp on the ingest
+	// thread and appended to the accumulator, the last maxMessages clouds are drawn together. A requested reset is carried to the
+	// GL thread by the next published cloud.
+	private final PointCloudAccumulator accumulator = new PointCloudAccumulator();
+	private volatile int maxMessages = 1;
+	private final AtomicBoolean resetAccumulator = new AtomicBoolean();
+	private volatile FrameTransformTree frameTransformTree;
+	private GraphName accumulationFrame;
+	private final float[] cloudTransform = new float[16];
+	private volatile boolean drawingInFixedFrame = false;
+
+	// Every cloud is ordered by an octree on the ingest thread, and each frame only the visible leaves are drawn, thinned out
+	// to stay within the point budget
+	private static final int DEFAULT_POINT_BUDGET = 1000000;
+	private final PointOctree.Builder octreeBuilder = new PointOctree.Builder();
+	private final PointCloudLod lod = new PointCloudLod();
+	private PointOctree vboOctree;
+	private volatile int pointBudget = DEFAULT_POINT_BUDGET;
+
+	// Positions can be stored as shorts relative to the bounds of each cloud's octree, which cuts a point from 16 to 12 bytes
+	private volatile boolean compactPositions = false;
+	private boolean vboCompact = false;
+
+	// Organized clouds can be drawn as a triangle mesh over their grid. The indices only depend on the grid size, so they're
+	// built once and every message only uploads its vertices. The ingest thread marks invalid points and the far point of every
+	// depth discontinuity by moving them to INVALID_X, and triangles touching a marked point are discarded in the fragment shader.
+	// GLSL ES doesn't guarantee how NaN compares, so the marker is a finite value the shader can test for, within the 2^62
+	// range highp is required to hold.
+	private static final float INVALID_X = 1e18f;
+	private static final float DEFAULT_MAX_DEPTH_JUMP = 0.05f;
+	private volatile boolean surfaceMode = false;
+	private volatile float maxDepthJump = DEFAULT_MAX_DEPTH_JUMP;
+	private float[] ranges = new float[0];
+	private final GridIndexBuffer gridIndices = new GridIndexBuffer();
+	private int vboGridWidth = 0;
+	private int vboGridHeight = 0;
 
 	private static final List<PointField> DEFAULT_LIST = new ArrayList<PointField>();
-	private List<PointField> fields = DEFAULT_LIST;
+	private volatile List<PointField> fields = DEFAULT_LIST;
 
 	public PointCloud2GL(Camera cam, Context context) {
 		super(cam);
@@ -68,17 +172,26 @@ public class PointCloud2GL extends BaseShape {
 		String fsh = Utility.assetToString(context, "PointCloud2Shader.fsh");
 
 		program = new GLSLProgram(vsh, fsh);
+		setShaderNames(program);
+		surfaceProgram = new GLSLProgram(vsh, Utility.assetToString(context, "PointCloud2Surface.fsh"));
+		setShaderNames(surfaceProgram);
+		super.setProgram(program);
+	}
+
+	private static void setShaderNames(GLSLProgram program) {
 		program.setAttributeName(ShaderVal.AX, "aX");
 		program.setAttributeName(ShaderVal.AY, "aY");
 		program.setAttributeName(ShaderVal.AZ, "aZ");
 		program.setAttributeName(ShaderVal.A_EXTRA, "aChannel");
+		program.setAttributeName(ShaderVal.ATTRIB_COLOR, "aRgb");
 
 		program.setAttributeName(ShaderVal.MVP_MATRIX, "uMvp");
 		program.setAttributeName(ShaderVal.UNIFORM_COLOR, "uColor");
 		program.setAttributeName(ShaderVal.EXTRA, "uColorMode");
 		program.setAttributeName(ShaderVal.EXTRA_2, "uMinVal");
 		program.setAttributeName(ShaderVal.EXTRA_3, "uMaxVal");
-		super.setProgram(program);
+		program.setAttributeName(ShaderVal.TEXTURE, "uColormap");
+		program.setAttributeName(ShaderVal.COLORMAP_ROW, "uColormapRow");
 	}
 
 	public void setFlatColorMode(Color color) {
@@ -90,116 +203,386 @@ public class PointCloud2GL extends BaseShape {
 	public void setChannelColorMode(int channel) {
 		if(channel >= 0 && channel < fields.size()) {
 			Log.i("PointCloud2", "Color mode set to channel " + channel);
-			currentChannel = channel;
 			flatColorMode = false;
-			drawOffset = arrayOffset + fields.get(channel).getOffset();
+			if(channel != currentChannel || rgbColorMode) {
+				currentChannel = channel;
+				rgbColorMode = false;
+				// Only the selected channel is packed, so the last cloud has to be repacked
+				resetAccumulator.set(true);
+				repackLastMessage();
+			}
 		} else {
 			currentChannel = 0;
 		}
 	}
 
+	/**
+	 * Color points by their packed rgb or rgba field. The four bytes of the field are passed to the shader untouched.
+	 */
+	public void setRgbColorMode() {
+		Log.i("PointCloud2", "Color mode set to RGB");
+		flatColorMode = false;
+		if(!rgbColorMode) {
+			rgbColorMode = true;
+			resetAccumulator.set(true);
+			repackLastMessage();
+		}
+	}
+
 	public List<String> getChannelNames() {
 		return channelNames;
 	}
 
-	public synchronized void setData(sensor_msgs.PointCloud2 msg) {
-		drawCloud = false;
-		channelNames.clear();
-		this.fields = msg.getFields();
-		this.stride = msg.getPointStep();
-		pointCount = (msg.getData().capacity() / stride);
-
-		Log.d("PointCloud", "Updated data with " + pointCount + " points. Data byte capacity is " + msg.getData().capacity() + " with offset " + msg.getData().arrayOffset());
-		arrayOffset = msg.getData().arrayOffset();
-		
-		synchronized(dataSync) {
-			if(data == null || data.capacity() < msg.getData().array().length) {
-				data = null;
-				data = Vertices.toByteBuffer(msg.getData().array());
+	/**
+	 * Set the edge length of the voxels used to downsample the cloud before it's uploaded. A size of zero disables downsampling.
+	 */
+	public void setVoxelSize(float voxelSize) {
+		if(voxelSize != this.voxelSize) {
+			this.voxelSize = Math.max(voxelSize, 0f);
+			repackLastMessage();
+		}
+	}
+
+	public void setFrameTransformTree(FrameTransformTree frameTransformTree) {
+		this.frameTransformTree = frameTransformTree;
+	}
+
+	/**
+	 * Set the number of messages to draw at once. Keeping more than one message accumulates clouds in the fixed frame.
+	 */
+	public void setMaxMessages(int maxMessages) {
+		maxMessages = Math.max(maxMessages, 1);
+		if(maxMessages != this.maxMessages) {
+			this.maxMessages = maxMessages;
+			resetAccumulator.set(true);
+			repackLastMessage();
+		}
+	}
+
+	/**
+	 * @return true if the cloud being drawn has been transformed into the fixed frame, false if it's in the frame of its message
+	 */
+	public boolean isInFixedFrame() {
+		return drawingInFixedFrame;
+	}
+
+	/**
+	 * Select the colormap used to color channel values, one of the {@link Colormap} constants
+	 */
+	public void setColormap(int colormapIndex) {
+		this.colormapIndex = Math.max(0, Math.min(colormapIndex, Colormap.NAMES.length - 1));
+	}
+
+	/**
+	 * Set the maximum number of points to draw per frame
+	 */
+	public void setPointBudget(int pointBudget) {
+		this.pointBudget = Math.max(pointBudget, 1);
+	}
+
+	/**
+	 * Store positions quantized to 16 bits relative to the bounding box of each cloud instead of as floats
+	 */
+	public void setCompactPositions(boolean compactPositions) {
+		if(compactPositions != this.compactPositions) {
+			this.compactPositions = compactPositions;
+			resetAccumulator.set(true);
+			repackLastMessage();
+		}
+	}
+
+	/**
+	 * Draw organized clouds as a surface over their grid instead of as points. Unorganized clouds are always drawn as points.
+	 */
+	public void setSurfaceMode(boolean surfaceMode) {
+		if(surfaceMode != this.surfaceMode) {
+			this.surfaceMode = surfaceMode;
+			repackLastMessage();
+		}
+	}
+
+	/**
+	 * Set the largest change in depth from one point of the grid to the next, relative to the depth, which is still drawn as part of a surface
+	 */
+	public void setMaxDepthJump(float maxDepthJump) {
+		if(maxDepthJump != this.maxDepthJump) {
+			this.maxDepthJump = maxDepthJump;
+			if(surfaceMode)
+				repackLastMessage();
+		}
+	}
+
+	private void repackLastMessage() {
+		if(lastMessage != null)
+			submit(lastMessage);
+	}
+
+	/**
+	 * Hand a message to the ingest thread. This never blocks, so it's safe to call from the ROS callback thread.
+	 */
+	public void setData(sensor_msgs.PointCloud2 msg) {
+		lastMessage = msg;
+		List<PointField> msgFields = msg.getFields();
+		if(!sameFieldNames(msgFields, channelNames)) {
+			// The channel names are replaced rather than modified, as they may be read from other threads
+			List<String> names = new ArrayList<String>(msgFields.size());
+			for(PointField pf : msgFields)
+				names.add(pf.getName());
+			channelNames = names;
+		}
+		this.fields = msgFields;
+
+		if(currentChannel >= msgFields.size()) {
+			currentChannel = 0;
+		}
+
+		submit(msg);
+	}
+
+	private static boolean sameFieldNames(List<PointField> fields, List<String> names) {
+		if(fields.size() != names.size())
+			return false;
+		for(int i = 0; i < fields.size(); i++)
+			if(!fields.get(i).getName().equals(names.get(i)))
+				return false;
+		return true;
+	}
+
+	private void submit(sensor_msgs.PointCloud2 msg) {
+		// Only schedule the ingest task if one isn't already waiting to pick up the pending message
+		sensor_msgs.PointCloud2 replaced = pendingMessage.getAndSet(msg);
+		if(replaced == null) {
+			if(!ingestExecutor.isShutdown())
+				ingestExecutor.execute(ingestTask);
+		} else if(replaced != msg) {
+			droppedClouds.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the number of messages which were replaced by a newer message before they could be drawn
+	 */
+	public int getDroppedCount() {
+		return droppedClouds.get();
+	}
+
+	/**
+	 * @return true if RGB coloring is selected but the last cloud had no rgb or rgba field, so it's drawn in the flat color
+	 */
+	public boolean isMissingRgb() {
+		return missingRgb;
+	}
+
+	/**
+	 * Pack and downsample a message. This runs on the ingest thread.
+	 */
+	private void ingest(sensor_msgs.PointCloud2 msg) {
+		int channel = currentChannel;
+		int colorMode = SHADER_CHANNEL;
+		boolean rgb = rgbColorMode;
+		if(!rgb)
+			missingRgb = false;
+		if(rgb) {
+			PointField rgbField = PointCloud2Packer.findField(msg.getFields(), "rgb");
+			if(rgbField == null)
+				rgbField = PointCloud2Packer.findField(msg.getFields(), "rgba");
+			missingRgb = (rgbField == null);
+			if(rgbField == null) {
+				// Drawn in the flat color rather than as black points
+				channel = -1;
+				colorMode = SHADER_FLAT;
 			} else {
-				data.position(0);
-				data.put(msg.getData().array());
+				channel = msg.getFields().indexOf(rgbField);
+				colorMode = rgbField.getName().equalsIgnoreCase("rgba") ? SHADER_RGBA : SHADER_RGB;
 			}
 		}
 
-		for(PointField pf : fields) {
-			channelNames.add(pf.getName());
-			String name = pf.getName().toLowerCase();
-			if(name.equals("x"))
-				xOffset = arrayOffset + pf.getOffset();
-			else if(name.equals("y"))
-				yOffset = arrayOffset + pf.getOffset();
-			else if(name.equals("z"))
-				zOffset = arrayOffset + pf.getOffset();
+		PreparedCloud cloud = freeClouds.poll();
+		if(cloud == null)
+			cloud = new PreparedCloud();
+		PointCloud2Packer packer = cloud.packer;
+
+		// The histogram of this cloud is binned over the channel range of the previous one
+		int count = packer.pack(msg, channel, rgb, statistics);
+		ChannelStatistics stats = packer.getStatistics();
+		statistics = stats;
+		if(autoRange)
+			applyAutoRange(stats);
+
+		// Surfaces keep the points in grid order, so they aren't filtered, accumulated or reordered
+		int width = msg.getWidth();
+		boolean surface = surfaceMode && msg.getHeight() > 1 && GridIndexBuffer.getRowsPerBand(width, msg.getHeight()) > 0;
+		PointOctree tree = null;
+		boolean inFixedFrame = false;
+		boolean compact = false;
+		if(surface) {
+			cutDepthJumps(packer.getFloatBuffer(), width, count / width, maxDepthJump);
+		} else {
+			float size = voxelSize;
+			if(size > 0f) {
+				count = voxelFilter.filter(packer.getFloatBuffer(), count, size, !rgb);
+				packer.setPointCount(count);
+			}
+
+			inFixedFrame = (maxMessages > 1);
+			if(inFixedFrame && !transformToFixedFrame(msg, packer.getFloatBuffer(), count)) {
+				Log.w("PointCloud2", "Dropping cloud, no transform from " + msg.getHeader().getFrameId() + " to the fixed frame at " + msg.getHeader().getStamp());
+				freeClouds.offer(cloud);
+				return;
+			}
+
+			tree = octreeBuilder.build(packer.getFloatBuffer(), count);
+			count = tree.getPointCount();
+			packer.setPointCount(count);
+			compact = compactPositions;
+			if(compact)
+				packer.quantize(tree);
 		}
-		
-		if(currentChannel >= fields.size()) {
-			currentChannel = 0;
+
+		cloud.pointCount = count;
+		cloud.octree = tree;
+		cloud.colorMode = colorMode;
+		cloud.compact = compact;
+		cloud.inFixedFrame = inFixedFrame;
+		cloud.gridWidth = surface ? width : 0;
+		cloud.gridHeight = surface ? count / width : 0;
+
+		// A reset of a cloud which is replaced before the GL thread took it is passed on to its replacement
+		boolean reset = resetAccumulator.getAndSet(false);
+		PreparedCloud stale;
+		do {
+			stale = mailbox.get();
+			cloud.reset = reset || (stale != null && stale.reset);
+		} while(!mailbox.compareAndSet(stale, cloud));
+		if(stale != null) {
+			droppedClouds.incrementAndGet();
+			stale.octree = null;
+			freeClouds.offer(stale);
 		}
 
-		data.position(0);
-		drawCloud = (pointCount > 0);
+		Log.d("PointCloud", "Updated data with " + count + " points, packed from " + msg.getPointStep() + " to " + (compact ? PointCloud2Packer.COMPACT_STRIDE : PointCloud2Packer.STRIDE) + " bytes per point, " + droppedClouds.get() + " clouds dropped so far");
 	}
 
 	/**
-	 * Iterate through the data for the latest received message and determine the range of the data for the selected channel. This sets the current range to the computed range.
+	 * Break a surface at depth discontinuities. Wherever the distance from the sensor changes by more than maxJump, relative to the nearer point, between two neighbors of the grid, the farther point is marked invalid so every triangle touching it is discarded. Only the background side of an edge loses a row of triangles, and the test doesn't depend on the viewpoint or on any shader extension. Points which were already NaN or infinite are marked too.
+	 */
+	private void cutDepthJumps(FloatBuffer points, int width, int height, float maxJump) {
+		final int fpp = PointCloud2Packer.FLOATS_PER_POINT;
+		int count = width * height;
+		if(ranges.length < count)
+			ranges = new float[count];
+		for(int i = 0; i < count; i++) {
+			float x = points.get(i * fpp);
+			float y = points.get(i * fpp + 1);
+			float z = points.get(i * fpp + 2);
+			ranges[i] = (float) Math.sqrt(x * x + y * y + z * z);
+		}
+
+		for(int i = 0; i < count; i++) {
+			if(Float.isNaN(ranges[i]) || Float.isInfinite(ranges[i]))
+				markInvalid(points, i);
+		}
+
+		// Ranges are read from the copy, so cutting a point doesn't change the tests of its other neighbors
+		for(int row = 0; row < height; row++) {
+			for(int col = 0; col < width; col++) {
+				int i = row * width + col;
+				if(col + 1 < width)
+					cutFarther(points, i, i + 1, maxJump);
+				if(row + 1 < height)
+					cutFarther(points, i, i + width, maxJump);
+			}
+		}
+	}
+
+	private void cutFarther(FloatBuffer points, int a, int b, float maxJump) {
+		float ra = ranges[a];
+		float rb = ranges[b];
+		// NaN ranges fail the comparison, those points are already marked
+		if(Math.abs(ra - rb) > maxJump * Math.min(ra, rb))
+			markInvalid(points, ra > rb ? a : b);
+	}
+
+	private static void markInvalid(FloatBuffer points, int i) {
+		int base = i * PointCloud2Packer.FLOATS_PER_POINT;
+		points.put(base, INVALID_X);
+		points.put(base + 1, 0f);
+		points.put(base + 2, 0f);
+	}
+
+	/**
+	 * Transform packed points in place from the frame of their message into the fixed frame, using the transform at the time the message was stamped. Changing the fixed frame invalidates all accumulated clouds.
+	 * 
+	 * @return false if the transform isn't available
+	 */
+	private boolean transformToFixedFrame(sensor_msgs.PointCloud2 msg, FloatBuffer points, int count) {
+		FrameTransformTree ftt = frameTransformTree;
+		GraphName fixedFrame = cam.getFixedFrame();
+		if(ftt == null || fixedFrame == null)
+			return false;
+		if(!fixedFrame.equals(accumulationFrame)) {
+			accumulationFrame = fixedFrame;
+			resetAccumulator.set(true);
+		}
+
+		Transform t = Utility.lookUpTransform(ftt, GraphName.of(msg.getHeader().getFrameId()), fixedFrame, msg.getHeader().getStamp());
+		if(t == null)
+			return false;
+
+		double[] m = t.toMatrix();
+		for(int i = 0; i < 16; i++)
+			cloudTransform[i] = (float) m[i];
+		float[] tf = cloudTransform;
+
+		final int fpp = PointCloud2Packer.FLOATS_PER_POINT;
+		for(int i = 0; i < count; i++) {
+			int base = i * fpp;
+			float x = points.get(base);
+			float y = points.get(base + 1);
+			float z = points.get(base + 2);
+			points.put(base, tf[0] * x + tf[4] * y + tf[8] * z + tf[12]);
+			points.put(base + 1, tf[1] * x + tf[5] * y + tf[9] * z + tf[13]);
+			points.put(base + 2, tf[2] * x + tf[6] * y + tf[10] * z + tf[14]);
+		}
+		return true;
+	}
+
+	/**
+	 * Return the range of the selected channel in the latest received message, which was computed when the message was packed. This sets the current range to the computed range.
 	 * 
 	 * @return two element float array [min, max]
 	 */
 	public float[] computeRange() {
-		if(fields == null || currentChannel < 0 || currentChannel >= fields.size())
+		ChannelStatistics stats = statistics;
+		if(!stats.hasData(ChannelStatistics.CHANNEL))
 			return new float[] { 0f, 1f };
 
-		byte datatype = fields.get(currentChannel).getDatatype();
-		int offset = fields.get(currentChannel).getOffset();
-
-		double max = Float.NEGATIVE_INFINITY;
-		double min = Float.POSITIVE_INFINITY;
-		double val = 0;
-
-		// Iterate through the data and find the range of the selected channel
-		synchronized(dataSync) {
-			for(int i = 0; i < pointCount; i++) {
-				int readPos = arrayOffset + offset + (i * stride);
-
-				switch(datatype) {
-				case PointField.FLOAT32:
-					val = data.getFloat(readPos);
-					break;
-				case PointField.FLOAT64:
-					val = data.getDouble(readPos);
-					break;
-				case PointField.INT8:
-					val = data.get(readPos);
-					break;
-				case PointField.INT16:
-					val = data.getInt(readPos) & 0x00ffff;
-					break;
-				case PointField.INT32:
-					val = data.getInt(readPos);
-					break;
-				case PointField.UINT8:
-					val = data.get(readPos) & 0xff;
-					break;
-				case PointField.UINT16:
-					val = data.getChar(readPos);
-					break;
-				case PointField.UINT32:
-					val = data.getInt(readPos) & 0xffffffffL;
-					break;
-				default:
-					val = 0;
-				}
-
-				max = Math.max(val, max);
-				min = Math.min(val, min);
-			}
-		}
-
-		minVal = (float) min;
-		maxVal = (float) max;
+		float min = stats.getMin(ChannelStatistics.CHANNEL);
+		float max = stats.getMax(ChannelStatistics.CHANNEL);
+		minVal = min;
+		maxVal = max;
 		Log.d("PointCloud2", "Computed data range: " + minVal + " -> " + maxVal);
-		return new float[] { (float) min, (float) max };
+		return new float[] { min, max };
+	}
+
+	/**
+	 * Enable/disable automatically setting the range to the 2nd to 98th percentile of the selected channel of every message
+	 */
+	public void setAutoRange(boolean autoRange) {
+		this.autoRange = autoRange;
+		if(autoRange)
+			applyAutoRange(statistics);
+	}
+
+	private void applyAutoRange(ChannelStatistics stats) {
+		if(!stats.hasData(ChannelStatistics.CHANNEL))
+			return;
+		float min = stats.getChannelPercentile(AUTO_RANGE_LOW);
+		float max = stats.getChannelPercentile(AUTO_RANGE_HIGH);
+		if(max <= min)
+			max = min + Float.MIN_NORMAL;
+		minVal = min;
+		maxVal = max;
 	}
 
 	public void setRange(float min, float max) {
@@ -207,41 +590,161 @@ public class PointCloud2GL extends BaseShape {
 		maxVal = max;
 	}
 
+	/**
+	 * Copy the most recently received cloud into the next vertex buffer of the ring, or append it to the accumulator if it was transformed into the fixed frame. This only happens once per message, redrawing an unchanged cloud doesn't transfer any data.
+	 */
+	private void uploadData(PreparedCloud cloud) {
+		if(cloud.reset) {
+			if(maxMessages > 1)
+				accumulator.setMaxMessages(maxMessages);
+			else
+				accumulator.cleanup();
+			accumulator.clear();
+		}
+
+		vboColorMode = cloud.colorMode;
+		vboCompact = cloud.compact;
+		vboGridWidth = cloud.gridWidth;
+		vboGridHeight = cloud.gridHeight;
+		ByteBuffer data = cloud.compact ? cloud.packer.getCompactBuffer() : cloud.packer.getBuffer();
+		int stride = cloud.compact ? PointCloud2Packer.COMPACT_STRIDE : PointCloud2Packer.STRIDE;
+		if(cloud.inFixedFrame) {
+			accumulator.append(data, cloud.pointCount, stride, cloud.octree);
+			drawCloud = true;
+		} else {
+			vboOctree = cloud.octree;
+			vbos.upload(data, cloud.pointCount * stride);
+			drawCloud = (cloud.pointCount > 0);
+		}
+		drawingInFixedFrame = cloud.inFixedFrame;
+	}
+
 	@Override
 	public void draw(GL10 glUnused) {
+		if(cleanUp) {
+			vbos.cleanup();
+			accumulator.cleanup();
+			gridIndices.cleanup();
+			colormap.cleanup();
+			return;
+		}
+
+		// Take the newest prepared cloud, its data is copied to the GPU so it can be recycled right away
+		PreparedCloud cloud = mailbox.getAndSet(null);
+		if(cloud != null) {
+			uploadData(cloud);
+			cloud.octree = null;
+			freeClouds.offer(cloud);
+		}
+
 		if(drawCloud) {
-			synchronized(dataSync) {
-				super.draw(glUnused);
-
-				calcMVP();
-				GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
-
-				GLES20.glEnableVertexAttribArray(ShaderVal.AX.loc);
-				data.position(xOffset);
-				GLES20.glVertexAttribPointer(ShaderVal.AX.loc, 1, GLES20.GL_FLOAT, false, stride, data);
-
-				GLES20.glEnableVertexAttribArray(ShaderVal.AY.loc);
-				data.position(yOffset);
-				GLES20.glVertexAttribPointer(ShaderVal.AY.loc, 1, GLES20.GL_FLOAT, false, stride, data);
-
-				GLES20.glEnableVertexAttribArray(ShaderVal.AZ.loc);
-				data.position(zOffset);
-				GLES20.glVertexAttribPointer(ShaderVal.AZ.loc, 1, GLES20.GL_FLOAT, false, stride, data);
-
-				if(flatColorMode) {
-					GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), 1);
-					GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
-				} else {
-					GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), 0);
-					GLES20.glEnableVertexAttribArray(ShaderVal.A_EXTRA.loc);
-					data.position(drawOffset);
-					GLES20.glVertexAttribPointer(ShaderVal.A_EXTRA.loc, 1, GLES20.GL_FLOAT, false, stride, data);
-					GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_2), minVal);
-					GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_3), maxVal);
-				}
-
-				GLES20.glDrawArrays(GLES20.GL_POINTS, 0, pointCount);
+
+			boolean surface = (vboGridWidth > 0);
+			super.setProgram(surface ? surfaceProgram : program);
+			super.draw(glUnused);
+
+			calcMVP();
+			setColorUniforms();
+
+			if(surface) {
+				drawSurface();
+				return;
 			}
+
+			boolean accumulated = drawingInFixedFrame;
+			if(accumulated)
+				accumulator.bind();
+			else
+				vbos.bind();
+			setAttributePointers(0);
+
+			lod.begin(MVP, MV);
+			if(accumulated)
+				accumulator.addTo(lod);
+			else
+				lod.add(vboOctree, 0);
+			lod.draw(GLES20.GL_POINTS, pointBudget, getUniform(ShaderVal.MVP_MATRIX), vboCompact);
+			vbos.unbind();
+		}
+	}
+
+	/**
+	 * Draw the grid in bands which can be indexed with shorts, pointing the attributes at the first vertex of each band
+	 */
+	private void drawSurface() {
+		GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
+
+		int rowsPerBand = GridIndexBuffer.getRowsPerBand(vboGridWidth, vboGridHeight);
+		vbos.bind();
+		gridIndices.bind(vboGridWidth, rowsPerBand);
+		for(int row = 0; row < vboGridHeight - 1; row += rowsPerBand - 1) {
+			setAttributePointers(row * vboGridWidth * PointCloud2Packer.STRIDE);
+			gridIndices.drawBand(Math.min(rowsPerBand, vboGridHeight - row));
+		}
+		gridIndices.unbind();
+		vbos.unbind();
+	}
+
+	private void setColorUniforms() {
+		if(flatColorMode || vboColorMode == SHADER_FLAT) {
+			GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), SHADER_FLAT);
+			GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
+		} else if(vboColorMode != SHADER_CHANNEL) {
+			GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), vboColorMode);
+		} else {
+			GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), SHADER_CHANNEL);
+			GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_2), minVal);
+			GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_3), maxVal);
+			colormap.bind(0);
+			GLES20.glUniform1i(getUniform(ShaderVal.TEXTURE), 0);
+			GLES20.glUniform1f(getUniform(ShaderVal.COLORMAP_ROW), Colormap.getRow(colormapIndex));
+		}
+	}
+
+	/**
+	 * Point the vertex attributes into the bound buffer
+	 * 
+	 * @param offset
+	 *            byte offset of the first vertex
+	 */
+	private void setAttributePointers(int offset) {
+		// Quantized positions are read as plain shorts, the dequantization is folded into the MVP matrix of each cloud
+		int stride, channelOffset;
+		if(vboCompact) {
+			stride = PointCloud2Packer.COMPACT_STRIDE;
+			channelOffset = PointCloud2Packer.COMPACT_CHANNEL_OFFSET;
+			GLES20.glEnableVertexAttribArray(ShaderVal.AX.loc);
+			GLES20.glVertexAttribPointer(ShaderVal.AX.loc, 1, GLES20.GL_SHORT, false, stride, offset + PointCloud2Packer.COMPACT_X_OFFSET);
+			GLES20.glEnableVertexAttribArray(ShaderVal.AY.loc);
+			GLES20.glVertexAttribPointer(ShaderVal.AY.loc, 1, GLES20.GL_SHORT, false, stride, offset + PointCloud2Packer.COMPACT_Y_OFFSET);
+			GLES20.glEnableVertexAttribArray(ShaderVal.AZ.loc);
+			GLES20.glVertexAttribPointer(ShaderVal.AZ.loc, 1, GLES20.GL_SHORT, false, stride, offset + PointCloud2Packer.COMPACT_Z_OFFSET);
+		} else {
+			stride = PointCloud2Packer.STRIDE;
+			channelOffset = PointCloud2Packer.CHANNEL_OFFSET;
+			GLES20.glEnableVertexAttribArray(ShaderVal.AX.loc);
+			GLES20.glVertexAttribPointer(ShaderVal.AX.loc, 1, GLES20.GL_FLOAT, false, stride, offset + PointCloud2Packer.X_OFFSET);
+			GLES20.glEnableVertexAttribArray(ShaderVal.AY.loc);
+			GLES20.glVertexAttribPointer(ShaderVal.AY.loc, 1, GLES20.GL_FLOAT, false, stride, offset + PointCloud2Packer.Y_OFFSET);
+			GLES20.glEnableVertexAttribArray(ShaderVal.AZ.loc);
+			GLES20.glVertexAttribPointer(ShaderVal.AZ.loc, 1, GLES20.GL_FLOAT, false, stride, offset + PointCloud2Packer.Z_OFFSET);
+		}
+
+		if(flatColorMode || vboColorMode == SHADER_FLAT)
+			return;
+		if(vboColorMode != SHADER_CHANNEL) {
+			// Packed colors go straight to the shader as normalized unsigned bytes
+			GLES20.glEnableVertexAttribArray(ShaderVal.ATTRIB_COLOR.loc);
+			GLES20.glVertexAttribPointer(ShaderVal.ATTRIB_COLOR.loc, 4, GLES20.GL_UNSIGNED_BYTE, true, stride, offset + channelOffset);
+		} else {
+			GLES20.glEnableVertexAttribArray(ShaderVal.A_EXTRA.loc);
+			GLES20.glVertexAttribPointer(ShaderVal.A_EXTRA.loc, 1, GLES20.GL_FLOAT, false, stride, offset + channelOffset);
 		}
 	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+		ingestExecutor.shutdownNow();
+	}
 }
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import sensor_msgs.PointField;
+import android.util.Log;
+
+/**
+ * Repacks the points of a PointCloud2 message into a tight interleaved layout of x, y, z and the selected channel, one float each. Padding and unused fields are never copied, and fields of every PointField datatype are converted to float while packing. A packed rgb/rgba field can instead be copied into the channel slot as its four raw bytes, to be read by the shader as normalized unsigned bytes.
+ *
+ * Packing is split into chunks of points which run in parallel on a fork/join pool. Each chunk records the range of every packed field and the channel histogram as it goes, so the statistics of a cloud are available from the single packing pass without scanning it again.
+ */
+public class PointCloud2Packer {
+	public static final int FLOATS_PER_POINT = 4;
+	public static final int STRIDE = FLOATS_PER_POINT * Float.SIZE / 8;
+	public static final int X_OFFSET = 0;
+	public static final int Y_OFFSET = 4;
+	public static final int Z_OFFSET = 8;
+	public static final int CHANNEL_OFFSET = 12;
+
+	// Compact layout: x, y, z quantized to shorts, two bytes of padding to keep the channel aligned, then the channel
+	public static final int COMPACT_STRIDE = 12;
+	public static final int COMPACT_X_OFFSET = 0;
+	public static final int COMPACT_Y_OFFSET = 2;
+	public static final int COMPACT_Z_OFFSET = 4;
+	public static final int COMPACT_CHANNEL_OFFSET = 8;
+
+	private static final int CHUNK_SIZE = 16384;
+	private static final ForkJoinPool pool = new ForkJoinPool();
+
+	private ByteBuffer packed;
+	private FloatBuffer packedFloats;
+	private IntBuffer packedInts;
+	private ByteBuffer compact;
+	private ShortBuffer compactShorts;
+	private IntBuffer compactInts;
+	private int pointCount = 0;
+	private ChannelStatistics statistics = new ChannelStatistics();
+
+	// Layout of the message being packed, read by the pack tasks
+	private ByteBuffer src;
+	private int pointStep;
+	private int rowStep;
+	private int width;
+	private int xOff, yOff, zOff, cOff;
+	private byte xType, yType, zType, cType;
+	private boolean hasChannel;
+	private boolean rawChannel;
+	private float histogramMin;
+	private float histogramScale;
+
+	/**
+	 * Pack a message into the internal buffer, which is grown if the message has more points than any previous message.
+	 *
+	 * @param msg
+	 *            message to pack
+	 * @param channel
+	 *            index of the field to pack as the color channel
+	 * @param rawChannel
+	 *            copy the bytes of a 4 byte channel field instead of converting it to float. Raw channels aren't included in the statistics.
+	 * @param previous
+	 *            statistics of the previous cloud, whose channel range is used as the range of the histogram bins. May be null.
+	 * @return the number of packed points
+	 */
+	public int pack(sensor_msgs.PointCloud2 msg, int channel, boolean rawChannel, ChannelStatistics previous) {
+		List<PointField> fields = msg.getFields();
+		ChannelBuffer raw = msg.getData();
+		src = ByteBuffer.wrap(raw.array(), raw.arrayOffset(), raw.capacity()).slice();
+		src.order(msg.getIsBigendian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+		// Rows may be padded beyond width * point_step, only whole rows which fit in the data are packed
+		pointStep = msg.getPointStep();
+		width = msg.getWidth();
+		rowStep = Math.max(msg.getRowStep(), width * pointStep);
+		int rows = 0;
+		if(pointStep > 0 && width > 0) {
+			rows = msg.getHeight();
+			if((long) (rows - 1) * rowStep + width * pointStep > src.capacity())
+				rows = src.capacity() / rowStep;
+		}
+		pointCount = rows * width;
+		ensureCapacity(pointCount);
+
+		// Statistics are handed out to other threads, so every cloud gets a new instance
+		statistics = new ChannelStatistics();
+
+		PointField xField = findField(fields, "x");
+		PointField yField = findField(fields, "y");
+		PointField zField = findField(fields, "z");
+		PointField cField = (channel >= 0 && channel < fields.size()) ? fields.get(channel) : null;
+
+		if(xField == null || yField == null || zField == null) {
+			Log.e("PointCloud2", "Point cloud is missing an x, y or z field!");
+			pointCount = 0;
+			src = null;
+			return 0;
+		}
+
+		xOff = xField.getOffset();
+		yOff = yField.getOffset();
+		zOff = zField.getOffset();
+		xType = xField.getDatatype();
+		yType = yField.getDatatype();
+		zType = zField.getDatatype();
+		hasChannel = (cField != null);
+		cOff = hasChannel ? cField.getOffset() : 0;
+		cType = hasChannel ? cField.getDatatype() : 0;
+		this.rawChannel = hasChannel && rawChannel;
+
+		float lo = 0f;
+		float hi = 0f;
+		if(previous != null && previous.hasData(ChannelStatistics.CHANNEL)) {
+			lo = previous.getMin(ChannelStatistics.CHANNEL);
+			hi = previous.getMax(ChannelStatistics.CHANNEL);
+		}
+		histogramMin = lo;
+		histogramScale = (hi > lo) ? ChannelStatistics.BINS / (hi - lo) : 0f;
+
+		PackTask packTask = new PackTask(0, pointCount);
+		pool.invoke(packTask);
+		statistics.mergeRange(packTask.stats);
+		if(!this.rawChannel && histogramScale > 0f) {
+			statistics.mergeHistogram(packTask.stats);
+			statistics.histogramMin = lo;
+			statistics.histogramMax = hi;
+		}
+
+		src = null;
+		packed.position(0);
+		return pointCount;
+	}
+
+	/**
+	 * Convert the packed points to the compact layout, quantizing positions relative to the bounding box of the tree they were ordered by. The channel is copied bit for bit.
+	 *
+	 * @return direct buffer holding the compact points, COMPACT_STRIDE bytes per point
+	 */
+	public ByteBuffer quantize(PointOctree tree) {
+		int bytes = pointCount * COMPACT_STRIDE;
+		if(compact == null || compact.capacity() < bytes) {
+			Log.i("PointCloud2", "Allocating a new compact buffer for " + pointCount + " points");
+			compact = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+			compactShorts = compact.asShortBuffer();
+			compactInts = compact.asIntBuffer();
+		}
+
+		final int shortsPerPoint = COMPACT_STRIDE / 2;
+		final int intsPerPoint = COMPACT_STRIDE / 4;
+		for(int axis = 0; axis < 3; axis++) {
+			float center = tree.getCenter(axis);
+			float invStep = 1f / tree.getQuantizationStep(axis);
+			for(int i = 0; i < pointCount; i++) {
+				float q = (packedFloats.get(i * FLOATS_PER_POINT + axis) - center) * invStep;
+				compactShorts.put(i * shortsPerPoint + axis, (short) Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, Math.round(q))));
+			}
+		}
+		for(int i = 0; i < pointCount; i++)
+			compactInts.put(i * intsPerPoint + COMPACT_CHANNEL_OFFSET / 4, packedInts.get(i * FLOATS_PER_POINT + 3));
+
+		compact.position(0);
+		return compact;
+	}
+
+	private void packRange(int from, int to, ChannelStatistics stats) {
+		float[] min = stats.min;
+		float[] max = stats.max;
+		int[] bins = stats.histogram;
+		int binned = 0;
+		int writePos = from * FLOATS_PER_POINT;
+		for(int i = from; i < to; i++) {
+			int readPos = (i / width) * rowStep + (i % width) * pointStep;
+			float x = readField(src, readPos + xOff, xType);
+			float y = readField(src, readPos + yOff, yType);
+			float z = readField(src, readPos + zOff, zType);
+			packedFloats.put(writePos++, x);
+			packedFloats.put(writePos++, y);
+			packedFloats.put(writePos++, z);
+
+			// A raw channel is read in message byte order and written in native order, so the shader always sees b, g, r, a on little
+			// endian devices. NaN is recorded instead of its value, which leaves it out of the range.
+			float c;
+			if(rawChannel) {
+				packedInts.put(writePos++, src.getInt(readPos + cOff));
+				c = Float.NaN;
+			} else {
+				c = hasChannel ? readField(src, readPos + cOff, cType) : 0f;
+				packedFloats.put(writePos++, c);
+			}
+
+			// NaN values fail both comparisons and are left out of the range
+			if(x < min[0]) min[0] = x;
+			if(x > max[0]) max[0] = x;
+			if(y < min[1]) min[1] = y;
+			if(y > max[1]) max[1] = y;
+			if(z < min[2]) min[2] = z;
+			if(z > max[2]) max[2] = z;
+			if(c < min[3]) min[3] = c;
+			if(c > max[3]) max[3] = c;
+
+			// Values outside the histogram range are counted in the end bins
+			if(!Float.isNaN(c) && histogramScale > 0f) {
+				float bin = (c - histogramMin) * histogramScale;
+				bins[bin <= 0f ? 0 : Math.min((int) bin, ChannelStatistics.BINS - 1)]++;
+				binned++;
+			}
+		}
+		stats.histogramCount = binned;
+	}
+
+	private class PackTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+		final ChannelStatistics stats = new ChannelStatistics();
+
+		PackTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= CHUNK_SIZE) {
+				packRange(from, to, stats);
+			} else {
+				int mid = (from + to) >>> 1;
+				PackTask left = new PackTask(from, mid);
+				PackTask right = new PackTask(mid, to);
+				invokeAll(left, right);
+				stats.mergeRange(left.stats);
+				stats.mergeRange(right.stats);
+				stats.mergeHistogram(left.stats);
+				stats.mergeHistogram(right.stats);
+			}
+		}
+	}
+
+	private void ensureCapacity(int points) {
+		int bytes = points * STRIDE;
+		if(packed == null || packed.capacity() < bytes) {
+			Log.i("PointCloud2", "Allocating a new packed buffer for " + points + " points");
+			packed = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+			packedFloats = packed.asFloatBuffer();
+			packedInts = packed.asIntBuffer();
+		}
+	}
+
+	/**
+	 * @return direct buffer holding the packed points, STRIDE bytes per point
+	 */
+	public ByteBuffer getBuffer() {
+		return packed;
+	}
+
+	/**
+	 * @return direct buffer holding the points converted by the last call to quantize(), COMPACT_STRIDE bytes per point
+	 */
+	public ByteBuffer getCompactBuffer() {
+		return compact;
+	}
+
+	/**
+	 * @return float view of the packed points, FLOATS_PER_POINT floats per point
+	 */
+	public FloatBuffer getFloatBuffer() {
+		return packedFloats;
+	}
+
+	public int getPointCount() {
+		return pointCount;
+	}
+
+	/**
+	 * Shrink the number of valid points after the packed data has been filtered in place
+	 */
+	public void setPointCount(int pointCount) {
+		if(pointCount > this.pointCount)
+			throw new IllegalArgumentException("Can't grow the number of packed points!");
+		this.pointCount = pointCount;
+	}
+
+	/**
+	 * @return statistics of the most recently packed cloud, computed before any filtering
+	 */
+	public ChannelStatistics getStatistics() {
+		return statistics;
+	}
+
+	public static PointField findField(List<PointField> fields, String name) {
+		for(PointField pf : fields)
+			if(pf.getName().equalsIgnoreCase(name))
+				return pf;
+		return null;
+	}
+
+	/**
+	 * Read a single value of any PointField datatype and convert it to a float
+	 */
+	public static float readField(ByteBuffer src, int pos, byte datatype) {
+		switch(datatype) {
+		case PointField.FLOAT32:
+			return src.getFloat(pos);
+		case PointField.FLOAT64:
+			return (float) src.getDouble(pos);
+		case PointField.INT8:
+			return src.get(pos);
+		case PointField.UINT8:
+			return src.get(pos) & 0xff;
+		case PointField.INT16:
+			return src.getShort(pos);
+		case PointField.UINT16:
+			return src.getChar(pos);
+		case PointField.INT32:
+			return src.getInt(pos);
+		case PointField.UINT32:
+			return src.getInt(pos) & 0xffffffffL;
+		default:
+			return 0f;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Keeps the last N packed clouds (see {@link PointCloud2Packer}) in one fixed-capacity vertex buffer used as a ring of points. Each cloud is written once with glBufferSubData after the newest cloud, wrapping to the start of the buffer when it doesn't fit, and the oldest clouds are evicted as they're overwritten. Every cloud keeps the octree it was ordered by, so the live clouds are drawn through a {@link PointCloudLod} against one shared point budget.
+ *
+ * Clouds must already be transformed into a common frame. All methods must be called from the GL thread.
+ */
+public class PointCloudAccumulator {
+	private final int[] handle = new int[1];
+	private int capacity = 0;
+	private int stride = PointCloud2Packer.STRIDE;
+	private int maxMessages = 1;
+
+	// Ring of clouds in the buffer, oldest first
+	private int[] starts = new int[1];
+	private PointOctree[] trees = new PointOctree[1];
+	private int oldest = 0;
+	private int cloudCount = 0;
+
+	private int writeHead = 0;
+
+	public void setMaxMessages(int maxMessages) {
+		if(maxMessages < 1)
+			throw new IllegalArgumentException("Must accumulate at least one message!");
+		if(maxMessages != this.maxMessages) {
+			this.maxMessages = maxMessages;
+			starts = new int[maxMessages];
+			trees = new PointOctree[maxMessages];
+			deleteBuffer();
+		}
+	}
+
+	/**
+	 * Discard all accumulated clouds
+	 */
+	public void clear() {
+		cloudCount = 0;
+		oldest = 0;
+		writeHead = 0;
+		Arrays.fill(trees, null);
+	}
+
+	/**
+	 * Append a cloud to the ring, evicting the oldest clouds as needed.
+	 *
+	 * @param data
+	 *            packed points, read from position 0
+	 * @param points
+	 *            number of points in the cloud
+	 * @param stride
+	 *            bytes per point. Changing the stride resets the history.
+	 * @param tree
+	 *            octree the points are ordered by
+	 */
+	public void append(ByteBuffer data, int points, int stride, PointOctree tree) {
+		if(points <= 0)
+			return;
+		if(stride != this.stride) {
+			deleteBuffer();
+			this.stride = stride;
+		}
+
+		// The buffer holds maxMessages clouds of the largest size seen so far. A larger cloud resets the history.
+		if(capacity < points * maxMessages) {
+			Log.i("PointCloud2", "Growing the accumulation buffer to " + maxMessages + " x " + points + " points");
+			deleteBuffer();
+			capacity = points * maxMessages;
+			GLES20.glGenBuffers(1, handle, 0);
+			GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, handle[0]);
+			GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, capacity * stride, null, GLES20.GL_DYNAMIC_DRAW);
+		} else {
+			GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, handle[0]);
+		}
+
+		int oldHead = writeHead;
+		int newStart = writeHead;
+		boolean wrapped = false;
+		if(newStart + points > capacity) {
+			newStart = 0;
+			wrapped = true;
+		}
+		int newEnd = newStart + points;
+
+		// Evict the oldest clouds until there's room for one more and none of them will be overwritten
+		while(cloudCount > 0) {
+			int s = starts[oldest];
+			boolean overwritten = (s >= newStart && s < newEnd) || (wrapped && s >= oldHead);
+			if(cloudCount < maxMessages && !overwritten)
+				break;
+			trees[oldest] = null;
+			oldest = (oldest + 1) % maxMessages;
+			cloudCount--;
+		}
+
+		data.position(0);
+		GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, newStart * stride, points * stride, data);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+		int slot = (oldest + cloudCount) % maxMessages;
+		starts[slot] = newStart;
+		trees[slot] = tree;
+		cloudCount++;
+		writeHead = newEnd;
+	}
+
+	public void bind() {
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, handle[0]);
+	}
+
+	/**
+	 * Add the visible leaves of every accumulated cloud to a frame's level of detail selection
+	 */
+	public void addTo(PointCloudLod lod) {
+		for(int i = 0; i < cloudCount; i++) {
+			int slot = (oldest + i) % maxMessages;
+			lod.add(trees[slot], starts[slot]);
+		}
+	}
+
+	private void deleteBuffer() {
+		if(capacity > 0)
+			GLES20.glDeleteBuffers(1, handle, 0);
+		capacity = 0;
+		clear();
+	}
+
+	public void cleanup() {
+		deleteBuffer();
+	}
+}
@@ -5,9 +5,9 @@
  * Willow Garage licenses this file to you under the Apache License,
  * Version 2.0 (the "License"); you may not use this file except in
  * compliance with the License.  You may obtain a copy of the License at
- * 
+ *
  *   http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
@@ -16,35 +16,36 @@
  */
 package com.nerd3c.rviz_for_android.drawable;
 
+import geometry_msgs.Point32;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.microedition.khronos.opengles.GL10;
 
 import com.nerd3c.renderer.Camera;
-import com.nerd3c.renderer.Utility;
-import com.nerd3c.renderer.Vertices;
+import com.nerd3c.renderer.VertexBufferRing;
 import com.nerd3c.renderer.shapes.BaseShape;
+import com.nerd3c.renderer.shapes.Cleanable;
 import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
 import com.nerd3c.rviz_for_android.drawable.PCShaders.ColorMode;
 
 import sensor_msgs.ChannelFloat32;
 import android.opengl.GLES20;
+import android.opengl.Matrix;
 import android.util.Log;
 
-public class PointCloudGL extends BaseShape {
-	// Point cloud data	
-	private FloatBuffer selectedChannelBuffer;
-	private static final float[][] DEFAULT_CHANNELS = new float[0][0];
-	private float[][] channels = DEFAULT_CHANNELS;
-	private float[] channelMin;
-	private float[] channelMax;
-	
+public class PointCloudGL extends BaseShape implements Cleanable {
 	private float minRange = 0f;
 	private float maxRange = 1f;
 	private boolean autoRange = true;
-	
+
 	public void setAutoRanging(boolean ar) {
 		autoRange = ar;
 	}
@@ -54,123 +55,296 @@ public class PointCloudGL extends BaseShape {
 		minRange = min;
 		maxRange = max;
 	}
-	
-	private int channelSelected = 0;
-	private List<String> channelNames = new ArrayList<String>();
-	private FloatBuffer points;
-	private int cloudSize;
-	private volatile boolean drawCloud = false;
-	private ColorMode mode = ColorMode.FLAT_COLOR;
-	
+
+	private volatile int channelSelected = 0;
+	private volatile List<String> channelNames = new ArrayList<String>();
+	private volatile ColorMode mode = ColorMode.FLAT_COLOR;
+	private final Colormap colormap = new Colormap();
+	private volatile int colormapIndex = Colormap.RAINBOW;
+
+	// Compact positions are stored as shorts relative to the bounding box of the cloud, the dequantization is folded into the MVP matrix
+	private volatile boolean compactPositions = false;
+	private final float[] dequantize = new float[16];
+	private final float[] dequantizedMVP = new float[16];
+
+	/**
+	 * A cloud staged for upload. Positions are followed by every channel, one after the other, so all channels are uploaded
+	 * once and switching channels only moves the channel attribute pointer. Buffers only grow, so a steady stream of clouds
+	 * doesn't allocate anything.
+	 */
+	private static class StagedCloud {
+		ByteBuffer data;
+		int pointCount;
+		int positionBytes;
+		int channelCount;
+		float[] channelMin = new float[0];
+		float[] channelMax = new float[0];
+		boolean compact;
+		final float[] quantCenter = new float[3];
+		final float[] quantStep = new float[3];
+
+		int getByteCount() {
+			return positionBytes + channelCount * pointCount * 4;
+		}
+	}
+
+	// Staged clouds are handed to the GL thread through a single slot mailbox, latest wins, and recycled once uploaded
+	private final AtomicReference<StagedCloud> mailbox = new AtomicReference<StagedCloud>();
+	private final ConcurrentLinkedQueue<StagedCloud> freeClouds = new ConcurrentLinkedQueue<StagedCloud>();
+
+	// State of the uploaded cloud, only touched by the GL thread
+	private final VertexBufferRing vbos = new VertexBufferRing(2);
+	private StagedCloud drawn;
+	private boolean cleanUp = false;
+
 	public PointCloudGL(Camera cam) {
 		super(cam);
 		super.setProgram(PCShaders.getProgram(mode));
 	}
-	
+
 	@Override
 	public void draw(GL10 glUnused) {
-		if(drawCloud) {
-			super.draw(glUnused);
-			
-			calcMVP();
-			
-			if(mode == ColorMode.CHANNEL) {
-				GLES20.glEnableVertexAttribArray(ShaderVal.ATTRIB_COLOR.loc);
-				GLES20.glVertexAttribPointer(ShaderVal.ATTRIB_COLOR.loc, 1, GLES20.GL_FLOAT, false, 0, selectedChannelBuffer);
-				if(autoRange) {
-					GLES20.glUniform1f(getUniform(ShaderVal.EXTRA), channelMin[channelSelected]);
-					GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_2), channelMax[channelSelected]);
-				} else {
-					GLES20.glUniform1f(getUniform(ShaderVal.EXTRA), minRange);
-					GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_2), maxRange);
-				}
+		if(cleanUp) {
+			vbos.cleanup();
+			colormap.cleanup();
+			return;
+		}
+
+		StagedCloud staged = mailbox.getAndSet(null);
+		if(staged != null) {
+			vbos.upload(staged.data, staged.getByteCount());
+			if(drawn != null)
+				freeClouds.offer(drawn);
+			drawn = staged;
+		}
+
+		if(drawn == null || drawn.pointCount == 0)
+			return;
+
+		// Clouds without channels can only be drawn with a flat color
+		ColorMode drawMode = mode;
+		if(drawMode == ColorMode.CHANNEL && drawn.channelCount == 0)
+			drawMode = ColorMode.FLAT_COLOR;
+		if(PCShaders.getProgram(drawMode) != null)
+			super.setProgram(PCShaders.getProgram(drawMode));
+
+		super.draw(glUnused);
+		calcMVP();
+		vbos.bind();
+
+		if(drawMode == ColorMode.CHANNEL) {
+			int channel = Math.min(channelSelected, drawn.channelCount - 1);
+			GLES20.glEnableVertexAttribArray(ShaderVal.ATTRIB_COLOR.loc);
+			GLES20.glVertexAttribPointer(ShaderVal.ATTRIB_COLOR.loc, 1, GLES20.GL_FLOAT, false, 0, drawn.positionBytes + channel * drawn.pointCount * 4);
+			if(autoRange) {
+				GLES20.glUniform1f(getUniform(ShaderVal.EXTRA), drawn.channelMin[channel]);
+				GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_2), drawn.channelMax[channel]);
 			} else {
-				GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
-				GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), mode.extraInfo);
+				GLES20.glUniform1f(getUniform(ShaderVal.EXTRA), minRange);
+				GLES20.glUniform1f(getUniform(ShaderVal.EXTRA_2), maxRange);
 			}
-			
+		} else {
+			GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
+			GLES20.glUniform1i(getUniform(ShaderVal.EXTRA), drawMode.extraInfo);
+		}
+		if(PCShaders.usesColormap(drawMode)) {
+			colormap.bind(0);
+			GLES20.glUniform1i(getUniform(ShaderVal.TEXTURE), 0);
+			GLES20.glUniform1f(getUniform(ShaderVal.COLORMAP_ROW), Colormap.getRow(colormapIndex));
+		}
+
+		GLES20.glEnableVertexAttribArray(ShaderVal.POSITION.loc);
+		if(drawn.compact) {
+			Matrix.setIdentityM(dequantize, 0);
+			Matrix.translateM(dequantize, 0, drawn.quantCenter[0], drawn.quantCenter[1], drawn.quantCenter[2]);
+			Matrix.scaleM(dequantize, 0, drawn.quantStep[0], drawn.quantStep[1], drawn.quantStep[2]);
+			Matrix.multiplyMM(dequantizedMVP, 0, MVP, 0, dequantize, 0);
+			GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, dequantizedMVP, 0);
+			GLES20.glVertexAttribPointer(ShaderVal.POSITION.loc, 3, GLES20.GL_SHORT, false, 0, 0);
+		} else {
 			GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
-			GLES20.glEnableVertexAttribArray(ShaderVal.POSITION.loc);
-			GLES20.glVertexAttribPointer(ShaderVal.POSITION.loc, 3, GLES20.GL_FLOAT, false, 0, points);
-			GLES20.glDrawArrays(GLES20.GL_POINTS, 0, cloudSize);
+			GLES20.glVertexAttribPointer(ShaderVal.POSITION.loc, 3, GLES20.GL_FLOAT, false, 0, 0);
+		}
+		if(drawMode.pos == ColorMode.GRADIENT_X.pos) {
+			// The gradient shaders color by the dequantized position
+			if(drawn.compact) {
+				GLES20.glUniform3f(getUniform(ShaderVal.EXTRA_2), drawn.quantStep[0], drawn.quantStep[1], drawn.quantStep[2]);
+				GLES20.glUniform3f(getUniform(ShaderVal.EXTRA_3), drawn.quantCenter[0], drawn.quantCenter[1], drawn.quantCenter[2]);
+			} else {
+				GLES20.glUniform3f(getUniform(ShaderVal.EXTRA_2), 1f, 1f, 1f);
+				GLES20.glUniform3f(getUniform(ShaderVal.EXTRA_3), 0f, 0f, 0f);
+			}
 		}
+		GLES20.glDrawArrays(GLES20.GL_POINTS, 0, drawn.pointCount);
+		vbos.unbind();
 	}
 
-	public void setData(float[] points, List<sensor_msgs.ChannelFloat32> channels) {
-		drawCloud = false;
-		if(points == null || points.length == 0) {
+	/**
+	 * Stage a cloud for upload. This doesn't block on the GL thread, and once the staging buffers have grown to fit the largest cloud it doesn't allocate either.
+	 */
+	public void setData(List<Point32> points, List<sensor_msgs.ChannelFloat32> channels) {
+		if(points == null)
 			return;
+
+		StagedCloud cloud = freeClouds.poll();
+		if(cloud == null)
+			cloud = new StagedCloud();
+
+		int pointCount = points.size();
+		int channelCount = 0;
+		if(channels != null) {
+			// Channels which don't have a value for every point can't share the vertex buffer
+			for(int c = 0; c < channels.size(); c++) {
+				if(channels.get(c).getValues().length < pointCount)
+					break;
+				channelCount++;
+			}
+		}
+		updateChannelNames(channels, channelCount);
+
+		cloud.pointCount = pointCount;
+		cloud.channelCount = channelCount;
+		cloud.compact = compactPositions;
+		// Shorts are padded so the channels stay 4 byte aligned
+		cloud.positionBytes = cloud.compact ? (pointCount * 6 + 3) & ~3 : pointCount * 12;
+		int bytes = cloud.getByteCount();
+		if(cloud.data == null || cloud.data.capacity() < bytes) {
+			Log.i("PointCloud", "Allocating a new staging buffer for " + pointCount + " points and " + channelCount + " channels");
+			cloud.data = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+		}
+		if(cloud.channelMin.length < channelCount) {
+			cloud.channelMin = new float[channelCount];
+			cloud.channelMax = new float[channelCount];
 		}
-		
-		// Determine which channels of data are available
-		if(channels != null && channels.size() > 0) {
-			channelNames.clear();
-			channelMin = new float[channels.size()];
-			channelMax = new float[channels.size()];
-			this.channels = new float[channels.size()][points.length/3];
-			int idx = 0;
-			for(ChannelFloat32 cf : channels) {
-				channelNames.add(cf.getName());
-				this.channels[idx] = cf.getValues();
-				channelMin[idx] = Utility.arrayMin(this.channels[idx]);
-				channelMax[idx] = Utility.arrayMax(this.channels[idx]);
-				idx++;
+
+		if(cloud.compact)
+			stageCompactPositions(cloud, points);
+		else
+			stagePositions(cloud, points);
+
+		FloatBuffer channelData = cloud.data.asFloatBuffer();
+		for(int c = 0; c < channelCount; c++) {
+			float[] values = channels.get(c).getValues();
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			for(int i = 0; i < pointCount; i++) {
+				float v = values[i];
+				if(v < min)
+					min = v;
+				if(v > max)
+					max = v;
 			}
-			selectedChannelBuffer = moveToBuffer(this.channels[channelSelected], selectedChannelBuffer);
-		} else {
-			// If no channels are available
-			this.channels = DEFAULT_CHANNELS;
-			mode = ColorMode.FLAT_COLOR;
-			channelSelected = 0;
-		}
-		
-		if(channelSelected > this.channels.length) {
-			mode = ColorMode.FLAT_COLOR;
-			channelSelected = 0;
-		}
-		
-		this.points = moveToBuffer(points, this.points);
-		cloudSize = points.length / 3;
-		drawCloud = (cloudSize > 0);
-	}
-	
-	private FloatBuffer moveToBuffer(float[] points, FloatBuffer buffer) {
-		if(buffer == null || points.length > buffer.capacity()) {
-			Log.i("PointCloud","Allocating a new buffer!");
-			buffer = null;
-			buffer = Vertices.toFloatBuffer(points);
-		} else {
-			buffer.position(0);
-			buffer.put(points);
-			buffer.position(0);
+			cloud.channelMin[c] = (min <= max) ? min : 0f;
+			cloud.channelMax[c] = (min < max) ? max : cloud.channelMin[c] + 1f;
+			channelData.position((cloud.positionBytes >> 2) + c * pointCount);
+			channelData.put(values, 0, pointCount);
+		}
+
+		cloud.data.position(0);
+		StagedCloud stale = mailbox.getAndSet(cloud);
+		if(stale != null)
+			freeClouds.offer(stale);
+	}
+
+	private void stagePositions(StagedCloud cloud, List<Point32> points) {
+		FloatBuffer positions = cloud.data.asFloatBuffer();
+		for(int i = 0; i < cloud.pointCount; i++) {
+			Point32 p = points.get(i);
+			positions.put(p.getX());
+			positions.put(p.getY());
+			positions.put(p.getZ());
+		}
+	}
+
+	private void stageCompactPositions(StagedCloud cloud, List<Point32> points) {
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+		for(int i = 0; i < cloud.pointCount; i++) {
+			Point32 p = points.get(i);
+			minX = Math.min(minX, p.getX());
+			minY = Math.min(minY, p.getY());
+			minZ = Math.min(minZ, p.getZ());
+			maxX = Math.max(maxX, p.getX());
+			maxY = Math.max(maxY, p.getY());
+			maxZ = Math.max(maxZ, p.getZ());
+		}
+		setQuantization(cloud, 0, minX, maxX);
+		setQuantization(cloud, 1, minY, maxY);
+		setQuantization(cloud, 2, minZ, maxZ);
+
+		ShortBuffer positions = cloud.data.asShortBuffer();
+		for(int i = 0; i < cloud.pointCount; i++) {
+			Point32 p = points.get(i);
+			positions.put(quantize(cloud, 0, p.getX()));
+			positions.put(quantize(cloud, 1, p.getY()));
+			positions.put(quantize(cloud, 2, p.getZ()));
+		}
+	}
+
+	private static void setQuantization(StagedCloud cloud, int axis, float min, float max) {
+		if(!(min <= max)) {
+			min = 0f;
+			max = 0f;
 		}
-		return buffer;
+		float half = (max - min) / 2f;
+		cloud.quantCenter[axis] = (min + max) / 2f;
+		cloud.quantStep[axis] = (half > 0f) ? half / Short.MAX_VALUE : 1f;
 	}
-	
+
+	private static short quantize(StagedCloud cloud, int axis, float v) {
+		float q = (v - cloud.quantCenter[axis]) / cloud.quantStep[axis];
+		return (short) Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, Math.round(q)));
+	}
+
+	private void updateChannelNames(List<ChannelFloat32> channels, int channelCount) {
+		List<String> names = channelNames;
+		boolean changed = (names.size() != channelCount);
+		for(int c = 0; !changed && c < channelCount; c++)
+			changed = !names.get(c).equals(channels.get(c).getName());
+		if(changed) {
+			// The names are replaced rather than modified, as they may be read from other threads
+			List<String> newNames = new ArrayList<String>(channelCount);
+			for(int c = 0; c < channelCount; c++)
+				newNames.add(channels.get(c).getName());
+			channelNames = newNames;
+		}
+	}
+
+	/**
+	 * Store positions quantized to 16 bits relative to the bounding box of the cloud instead of as floats. Takes effect with the next cloud.
+	 */
+	public void setCompactPositions(boolean compactPositions) {
+		this.compactPositions = compactPositions;
+	}
+
+	/**
+	 * Select the channel to color by. Every channel is already on the GPU, so this only changes which one the shader reads.
+	 */
 	public void setChannelSelection(int selected) {
-		channelSelected = selected;
-		selectedChannelBuffer = Vertices.toFloatBuffer(channels[channelSelected]);
+		channelSelected = Math.max(selected, 0);
 	}
-	
+
+	/**
+	 * Select the colormap used by the gradient and channel color modes, one of the {@link Colormap} constants
+	 */
+	public void setColormap(int colormapIndex) {
+		this.colormapIndex = Math.max(0, Math.min(colormapIndex, Colormap.NAMES.length - 1));
+	}
+
 	public void setColorMode(int selected) {
 		this.mode = ColorMode.values()[selected];
-		if(PCShaders.getProgram(mode) != null)
-			super.setProgram(PCShaders.getProgram(mode));
-		
-		if(channelSelected > channels.length)
-			channelSelected = 0;
-		
-		if(mode == ColorMode.CHANNEL && channels.length == 0) {
-			this.mode = ColorMode.FLAT_COLOR;
-			super.setProgram(PCShaders.getProgram(mode));
-		}
-	}
-	
+	}
+
 	public ColorMode getColorMode() {
 		return mode;
 	}
-	
+
 	public List<String> getChannelNames() {
 		return channelNames;
 	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+	}
 }
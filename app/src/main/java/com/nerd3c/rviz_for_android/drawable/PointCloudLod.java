@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+/**
+ * Chooses which parts of one or more octree-ordered clouds to draw in a frame. Leaves outside the view frustum are skipped, and when the visible leaves hold more points than the point budget, each leaf is drawn from a prefix sized by how large it appears from the camera, so distant parts of the cloud are thinned out first.
+ *
+ * Clouds stored with quantized positions are drawn with the dequantization of their tree folded into the MVP matrix.
+ *
+ * All methods must be called from the GL thread.
+ */
+public class PointCloudLod {
+	private final float[] planes = new float[24];
+	private final float[] invMv = new float[16];
+	private float[] mvp;
+	private final float[] dequantize = new float[16];
+	private final float[] groupMvp = new float[16];
+
+	// Trees added this frame
+	private PointOctree[] trees = new PointOctree[8];
+	private int treeCount = 0;
+	private float eyeX, eyeY, eyeZ;
+
+	// Visible leaves of every tree added this frame
+	private int[] leafStart = new int[256];
+	private int[] leafCount = new int[256];
+	private int[] leafTree = new int[256];
+	private float[] leafWeight = new float[256];
+	private int leaves = 0;
+	private long visiblePoints = 0;
+
+	private int[] stack = new int[64];
+
+	/**
+	 * Start a new frame
+	 *
+	 * @param mvp
+	 *            model view projection matrix of the cloud
+	 * @param mv
+	 *            model view matrix of the cloud
+	 */
+	public void begin(float[] mvp, float[] mv) {
+		this.mvp = mvp;
+		leaves = 0;
+		visiblePoints = 0;
+		Arrays.fill(trees, 0, treeCount, null);
+		treeCount = 0;
+
+		// Frustum planes in model coordinates, taken from the rows of the MVP matrix
+		for(int p = 0; p < 6; p++) {
+			int row = p / 2;
+			float sign = (p % 2 == 0) ? 1f : -1f;
+			for(int k = 0; k < 4; k++)
+				planes[p * 4 + k] = mvp[k * 4 + 3] + sign * mvp[k * 4 + row];
+		}
+
+		// Camera position in model coordinates
+		if(Matrix.invertM(invMv, 0, mv, 0)) {
+			eyeX = invMv[12];
+			eyeY = invMv[13];
+			eyeZ = invMv[14];
+		}
+	}
+
+	/**
+	 * Collect the visible leaves of a tree
+	 *
+	 * @param offset
+	 *            index of the first point of the tree in the bound vertex buffer
+	 */
+	public void add(PointOctree tree, int offset) {
+		if(tree == null || tree.pointCount == 0)
+			return;
+		if(treeCount == trees.length)
+			trees = Arrays.copyOf(trees, treeCount * 2);
+		trees[treeCount] = tree;
+
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int node = stack[--top];
+			if(!isVisible(tree.bounds, node * 6))
+				continue;
+			if(tree.isLeaf(node)) {
+				addLeaf(tree, treeCount, node, offset);
+			} else {
+				int first = tree.firstChild[node];
+				int n = tree.childCount[node];
+				if(top + n > stack.length)
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				// Push in reverse so leaves are visited in buffer order
+				for(int c = first + n - 1; c >= first; c--)
+					stack[top++] = c;
+			}
+		}
+		treeCount++;
+	}
+
+	private void addLeaf(PointOctree tree, int treeIndex, int node, int offset) {
+		if(leaves == leafStart.length) {
+			int size = leaves * 2;
+			leafStart = Arrays.copyOf(leafStart, size);
+			leafCount = Arrays.copyOf(leafCount, size);
+			leafTree = Arrays.copyOf(leafTree, size);
+			leafWeight = Arrays.copyOf(leafWeight, size);
+		}
+		float[] b = tree.bounds;
+		int nb = node * 6;
+		float dx = (b[nb + 3] - b[nb]) / 2f;
+		float dy = (b[nb + 4] - b[nb + 1]) / 2f;
+		float dz = (b[nb + 5] - b[nb + 2]) / 2f;
+		float radius = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		float ex = b[nb] + dx - eyeX;
+		float ey = b[nb + 1] + dy - eyeY;
+		float ez = b[nb + 2] + dz - eyeZ;
+		float dist = (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+
+		// Weight a leaf by its points times its angular size, leaves the camera is inside of are never thinned out
+		int n = tree.count[node];
+		leafStart[leaves] = offset + tree.start[node];
+		leafCount[leaves] = n;
+		leafTree[leaves] = treeIndex;
+		leafWeight[leaves] = (dist > radius) ? n * Math.max(radius, 1e-6f) / dist : n;
+		leaves++;
+		visiblePoints += n;
+	}
+
+	private boolean isVisible(float[] b, int nb) {
+		for(int p = 0; p < 24; p += 4) {
+			float a = planes[p], bb = planes[p + 1], c = planes[p + 2], d = planes[p + 3];
+			// Test the corner of the box furthest along the plane normal
+			float x = (a >= 0f) ? b[nb + 3] : b[nb];
+			float y = (bb >= 0f) ? b[nb + 4] : b[nb + 1];
+			float z = (c >= 0f) ? b[nb + 5] : b[nb + 2];
+			if(a * x + bb * y + c * z + d < 0f)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Draw the collected leaves with the current attribute pointers, merging adjacent ranges.
+	 *
+	 * @param budget
+	 *            maximum number of points to draw
+	 * @param mvpUniform
+	 *            location of the MVP matrix uniform
+	 * @param quantized
+	 *            positions are stored as shorts relative to the bounds of their tree
+	 * @return the number of points drawn
+	 */
+	public int draw(int mode, int budget, int mvpUniform, boolean quantized) {
+		// Find the scale that spends the budget, once over all leaves and once more over the leaves which weren't capped
+		float scale = Float.POSITIVE_INFINITY;
+		if(visiblePoints > budget) {
+			float totalWeight = 0f;
+			for(int i = 0; i < leaves; i++)
+				totalWeight += leafWeight[i];
+			scale = budget / totalWeight;
+
+			long capped = 0;
+			float uncappedWeight = 0f;
+			for(int i = 0; i < leaves; i++) {
+				if(leafWeight[i] * scale >= leafCount[i])
+					capped += leafCount[i];
+				else
+					uncappedWeight += leafWeight[i];
+			}
+			if(uncappedWeight > 0f)
+				scale = Math.max(scale, (budget - capped) / uncappedWeight);
+		}
+
+		if(!quantized)
+			GLES20.glUniformMatrix4fv(mvpUniform, 1, false, mvp, 0);
+
+		int drawn = 0;
+		int runStart = 0;
+		int runEnd = -1;
+		int group = -1;
+		for(int i = 0; i < leaves; i++) {
+			int n = (int) Math.min(leafCount[i], Math.ceil(leafWeight[i] * scale));
+			if(n <= 0)
+				continue;
+			if(quantized && leafTree[i] != group) {
+				// Every tree has its own quantization, so ranges can't be merged across trees
+				if(runEnd > runStart)
+					GLES20.glDrawArrays(mode, runStart, runEnd - runStart);
+				runEnd = -1;
+				group = leafTree[i];
+				loadDequantizedMvp(trees[group], mvpUniform);
+			}
+			if(runEnd != leafStart[i]) {
+				if(runEnd > runStart)
+					GLES20.glDrawArrays(mode, runStart, runEnd - runStart);
+				runStart = leafStart[i];
+				runEnd = runStart;
+			}
+			runEnd += n;
+			drawn += n;
+		}
+		if(runEnd > runStart)
+			GLES20.glDrawArrays(mode, runStart, runEnd - runStart);
+		return drawn;
+	}
+
+	private void loadDequantizedMvp(PointOctree tree, int mvpUniform) {
+		Matrix.setIdentityM(dequantize, 0);
+		Matrix.translateM(dequantize, 0, tree.getCenter(0), tree.getCenter(1), tree.getCenter(2));
+		Matrix.scaleM(dequantize, 0, tree.getQuantizationStep(0), tree.getQuantizationStep(1), tree.getQuantizationStep(2));
+		Matrix.multiplyMM(groupMvp, 0, mvp, 0, dequantize, 0);
+		GLES20.glUniformMatrix4fv(mvpUniform, 1, false, groupMvp, 0);
+	}
+}
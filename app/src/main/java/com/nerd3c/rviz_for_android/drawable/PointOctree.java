@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * An octree over a packed cloud (see {@link PointCloud2Packer}). Building the tree reorders the packed points so that the points of every node form one contiguous range, and the points within a leaf are shuffled so that any prefix of a leaf is an even subsample of it. A subset of the cloud can then be drawn as one range per leaf.
+ *
+ * Trees are immutable once built and can be handed to the GL thread. Building uses the scratch arrays of a {@link Builder}, which isn't thread safe.
+ */
+public class PointOctree {
+	public static final int LEAF_SIZE = 2048;
+	private static final int MAX_DEPTH = 12;
+
+	// Node storage, the children of a node are stored consecutively. Bounds are min x, y, z then max x, y, z.
+	final float[] bounds;
+	final int[] start;
+	final int[] count;
+	final int[] firstChild;
+	final int[] childCount;
+	final int nodeCount;
+	final int pointCount;
+
+	private PointOctree(Builder b) {
+		nodeCount = b.nodes;
+		pointCount = b.valid;
+		bounds = Arrays.copyOf(b.bounds, nodeCount * 6);
+		start = Arrays.copyOf(b.start, nodeCount);
+		count = Arrays.copyOf(b.count, nodeCount);
+		firstChild = Arrays.copyOf(b.firstChild, nodeCount);
+		childCount = Arrays.copyOf(b.childCount, nodeCount);
+	}
+
+	/**
+	 * @return the number of points in the tree, which can be less than the number of points it was built from if some were NaN
+	 */
+	public int getPointCount() {
+		return pointCount;
+	}
+
+	public boolean isLeaf(int node) {
+		return childCount[node] == 0;
+	}
+
+	/**
+	 * @return the center of the bounding box of the tree along an axis, which quantized positions are relative to
+	 */
+	public float getCenter(int axis) {
+		return (bounds[axis] + bounds[3 + axis]) / 2f;
+	}
+
+	/**
+	 * @return the size of one step of a position quantized to a short along an axis, so the bounding box spans the full range of a short
+	 */
+	public float getQuantizationStep(int axis) {
+		float half = (bounds[3 + axis] - bounds[axis]) / 2f;
+		return (half > 0f) ? half / Short.MAX_VALUE : 1f;
+	}
+
+	public static class Builder {
+		private int[] order = new int[0];
+		private int[] tmp = new int[0];
+		private byte[] octant = new byte[0];
+		private float[] points = new float[0];
+		private final int[] octantCount = new int[8];
+
+		private float[] bounds = new float[6 * 64];
+		private int[] start = new int[64];
+		private int[] count = new int[64];
+		private int[] firstChild = new int[64];
+		private int[] childCount = new int[64];
+		private int nodes;
+		private int valid;
+		private long shuffleSeed = 0x2545F4914F6CDD1DL;
+
+		/**
+		 * Build a tree over the packed points, reordering them in place. NaN points are dropped and the remaining points are moved to the start of the buffer.
+		 *
+		 * @param packed
+		 *            packed points, {@link PointCloud2Packer#FLOATS_PER_POINT} floats per point
+		 * @param pointCount
+		 *            number of points in the buffer
+		 */
+		public PointOctree build(FloatBuffer packed, int pointCount) {
+			final int fpp = PointCloud2Packer.FLOATS_PER_POINT;
+			ensureCapacity(pointCount);
+
+			packed.position(0);
+			packed.get(points, 0, pointCount * fpp);
+
+			// Find the valid points and the bounds of the cloud
+			float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+			float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+			valid = 0;
+			for(int i = 0; i < pointCount; i++) {
+				float x = points[i * fpp];
+				float y = points[i * fpp + 1];
+				float z = points[i * fpp + 2];
+				if(Float.isNaN(x) || Float.isNaN(y) || Float.isNaN(z))
+					continue;
+				order[valid++] = i;
+				minX = Math.min(minX, x);
+				minY = Math.min(minY, y);
+				minZ = Math.min(minZ, z);
+				maxX = Math.max(maxX, x);
+				maxY = Math.max(maxY, y);
+				maxZ = Math.max(maxZ, z);
+			}
+
+			nodes = 0;
+			int root = allocateNodes(1);
+			if(valid > 0) {
+				float half = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) / 2f;
+				buildNode(root, 0, valid, (minX + maxX) / 2f, (minY + maxY) / 2f, (minZ + maxZ) / 2f, half, 0);
+			} else {
+				start[root] = 0;
+				count[root] = 0;
+				childCount[root] = 0;
+				Arrays.fill(bounds, 0, 6, 0f);
+			}
+
+			// Write the points back in tree order
+			packed.position(0);
+			for(int i = 0; i < valid; i++)
+				packed.put(points, order[i] * fpp, fpp);
+			packed.position(0);
+
+			return new PointOctree(this);
+		}
+
+		private void buildNode(int node, int from, int to, float cx, float cy, float cz, float half, int depth) {
+			final int fpp = PointCloud2Packer.FLOATS_PER_POINT;
+			start[node] = from;
+			count[node] = to - from;
+
+			if(to - from <= LEAF_SIZE || depth == MAX_DEPTH || half <= 0f) {
+				childCount[node] = 0;
+				shuffle(from, to);
+				leafBounds(node, from, to);
+				return;
+			}
+
+			// Partition the range by octant
+			Arrays.fill(octantCount, 0);
+			for(int i = from; i < to; i++) {
+				int base = order[i] * fpp;
+				int o = (points[base] >= cx ? 1 : 0) | (points[base + 1] >= cy ? 2 : 0) | (points[base + 2] >= cz ? 4 : 0);
+				octant[i] = (byte) o;
+				octantCount[o]++;
+			}
+			int[] childStart = new int[9];
+			int nonEmpty = 0;
+			childStart[0] = from;
+			for(int o = 0; o < 8; o++) {
+				childStart[o + 1] = childStart[o] + octantCount[o];
+				if(octantCount[o] > 0)
+					nonEmpty++;
+			}
+			int[] fill = Arrays.copyOf(childStart, 8);
+			for(int i = from; i < to; i++)
+				tmp[fill[octant[i]]++] = order[i];
+			System.arraycopy(tmp, from, order, from, to - from);
+
+			// Children are allocated before recursing so they stay consecutive
+			int first = allocateNodes(nonEmpty);
+			firstChild[node] = first;
+			childCount[node] = nonEmpty;
+
+			float q = half / 2f;
+			int child = first;
+			for(int o = 0; o < 8; o++) {
+				if(octantCount[o] == 0)
+					continue;
+				float ccx = cx + (((o & 1) != 0) ? q : -q);
+				float ccy = cy + (((o & 2) != 0) ? q : -q);
+				float ccz = cz + (((o & 4) != 0) ? q : -q);
+				buildNode(child++, childStart[o], childStart[o + 1], ccx, ccy, ccz, q, depth + 1);
+			}
+
+			// Node bounds are the union of the child bounds
+			int nb = node * 6;
+			for(int k = 0; k < 3; k++) {
+				bounds[nb + k] = Float.POSITIVE_INFINITY;
+				bounds[nb + 3 + k] = Float.NEGATIVE_INFINITY;
+			}
+			for(int c = first; c < first + nonEmpty; c++) {
+				int cb = c * 6;
+				for(int k = 0; k < 3; k++) {
+					bounds[nb + k] = Math.min(bounds[nb + k], bounds[cb + k]);
+					bounds[nb + 3 + k] = Math.max(bounds[nb + 3 + k], bounds[cb + 3 + k]);
+				}
+			}
+		}
+
+		private void leafBounds(int node, int from, int to) {
+			final int fpp = PointCloud2Packer.FLOATS_PER_POINT;
+			int nb = node * 6;
+			for(int k = 0; k < 3; k++) {
+				bounds[nb + k] = Float.POSITIVE_INFINITY;
+				bounds[nb + 3 + k] = Float.NEGATIVE_INFINITY;
+			}
+			for(int i = from; i < to; i++) {
+				int base = order[i] * fpp;
+				for(int k = 0; k < 3; k++) {
+					float v = points[base + k];
+					if(v < bounds[nb + k])
+						bounds[nb + k] = v;
+					if(v > bounds[nb + 3 + k])
+						bounds[nb + 3 + k] = v;
+				}
+			}
+		}
+
+		// Fisher-Yates shuffle with a xorshift generator, java.util.Random is needlessly slow here
+		private void shuffle(int from, int to) {
+			long s = shuffleSeed;
+			for(int i = to - 1; i > from; i--) {
+				s ^= s << 13;
+				s ^= s >>> 7;
+				s ^= s << 17;
+				int j = from + (int) ((s >>> 33) % (i - from + 1));
+				int t = order[i];
+				order[i] = order[j];
+				order[j] = t;
+			}
+			shuffleSeed = s;
+		}
+
+		private int allocateNodes(int n) {
+			int first = nodes;
+			nodes += n;
+			if(nodes > start.length) {
+				int size = Math.max(nodes, start.length * 2);
+				bounds = Arrays.copyOf(bounds, size * 6);
+				start = Arrays.copyOf(start, size);
+				count = Arrays.copyOf(count, size);
+				firstChild = Arrays.copyOf(firstChild, size);
+				childCount = Arrays.copyOf(childCount, size);
+			}
+			return first;
+		}
+
+		private void ensureCapacity(int pointCount) {
+			if(order.length < pointCount) {
+				order = new int[pointCount];
+				tmp = new int[pointCount];
+				octant = new byte[pointCount];
+				points = new float[pointCount * PointCloud2Packer.FLOATS_PER_POINT];
+			}
+		}
+	}
+}
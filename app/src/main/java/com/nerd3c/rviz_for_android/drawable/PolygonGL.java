@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.DynamicVertexBuffer;
+import com.nerd3c.renderer.shapes.BaseShape;
+import com.nerd3c.renderer.shapes.Cleanable;
+import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
+
+import geometry_msgs.Point32;
+import android.opengl.GLES20;
+
+/**
+ * Draws a geometry_msgs/Polygon as a closed line loop. The outline is rewritten in place in one dynamic vertex buffer which only grows, so a stream of polygons doesn't allocate any GL buffers.
+ */
+public class PolygonGL extends BaseShape implements Cleanable {
+	private static final int FLOATS_PER_POINT = 3;
+
+	// Message thread state, guarded by lock
+	private final Object lock = new Object();
+	private FloatBuffer staged;
+	private int stagedCount = 0;
+	private boolean dirty = false;
+
+	// GL thread state
+	private final DynamicVertexBuffer vbo = new DynamicVertexBuffer();
+	private int drawCount = 0;
+	private boolean cleanUp = false;
+
+	public PolygonGL(Camera cam) {
+		super(cam);
+		super.setProgram(GLSLProgram.FlatColor());
+	}
+
+	public void setData(List<Point32> points) {
+		int n = points.size();
+		synchronized(lock) {
+			if(staged == null || staged.capacity() < n * FLOATS_PER_POINT)
+				staged = ByteBuffer.allocateDirect(Math.max(n, 2 * (staged == null ? 0 : staged.capacity() / FLOATS_PER_POINT)) * FLOATS_PER_POINT * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			staged.position(0);
+			for(int i = 0; i < n; i++) {
+				Point32 p = points.get(i);
+				staged.put(p.getX()).put(p.getY()).put(p.getZ());
+			}
+			stagedCount = n;
+			dirty = true;
+		}
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		if(cleanUp) {
+			vbo.cleanup();
+			return;
+		}
+
+		synchronized(lock) {
+			if(dirty) {
+				drawCount = stagedCount;
+				if(drawCount > 0) {
+					vbo.reserve(drawCount * FLOATS_PER_POINT * 4);
+					staged.position(0);
+					vbo.write(staged, 0, drawCount * FLOATS_PER_POINT * 4);
+					vbo.unbind();
+				}
+				dirty = false;
+			}
+		}
+
+		if(drawCount < 2)
+			return;
+
+		super.draw(glUnused);
+		calcMVP();
+		GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
+		GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
+
+		vbo.bind();
+		GLES20.glEnableVertexAttribArray(ShaderVal.POSITION.loc);
+		GLES20.glVertexAttribPointer(ShaderVal.POSITION.loc, 3, GLES20.GL_FLOAT, false, 0, 0);
+		GLES20.glDrawArrays(GLES20.GL_LINE_LOOP, 0, drawCount);
+		vbo.unbind();
+	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.DynamicVertexBuffer;
+import com.nerd3c.renderer.shapes.BaseShape;
+import com.nerd3c.renderer.shapes.Cleanable;
+import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
+
+import android.opengl.GLES20;
+
+/**
+ * Draws the cones of many Range sensors from one vertex buffer. Each sensor owns a fixed slice of the buffer holding its cone in the fixed frame, and a new range or a new sensor transform only rewrites that slice with glBufferSubData.
+ */
+public class RangeBatchGL extends BaseShape implements Cleanable {
+	private static final int SIDES = 16;
+	private static final int VERTICES_PER_CONE = SIDES * 3;
+	private static final int FLOATS_PER_CONE = VERTICES_PER_CONE * 3;
+	private static final int BYTES_PER_CONE = FLOATS_PER_CONE * 4;
+
+	private static final float[] COS = new float[SIDES + 1];
+	private static final float[] SIN = new float[SIDES + 1];
+	static {
+		for(int i = 0; i <= SIDES; i++) {
+			double theta = 2 * Math.PI * i / SIDES;
+			COS[i] = (float) Math.cos(theta);
+			SIN[i] = (float) Math.sin(theta);
+		}
+	}
+
+	// Sensor state and baked cones, guarded by lock
+	private final Object lock = new Object();
+	private int slotCount = 0;
+	private float[] vertices = new float[0];
+	private float[] ranges = new float[0];
+	private float[] fovs = new float[0];
+	private float[][] transforms = new float[0][];
+	private boolean[] dirty = new boolean[0];
+	private boolean anyDirty = false;
+
+	// GL thread state
+	private final DynamicVertexBuffer vbo = new DynamicVertexBuffer();
+	private final FloatBuffer scratch = ByteBuffer.allocateDirect(BYTES_PER_CONE).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	private int drawSlots = 0;
+	private boolean cleanUp = false;
+
+	public RangeBatchGL(Camera cam) {
+		super(cam);
+		super.setProgram(GLSLProgram.FlatColor());
+	}
+
+	/**
+	 * Add a sensor slot. Its cone is empty until it has both a range and a transform.
+	 * 
+	 * @return the index of the new slot
+	 */
+	public int addSlot() {
+		synchronized(lock) {
+			if(slotCount == ranges.length) {
+				int capacity = Math.max(8, slotCount * 2);
+				vertices = Arrays.copyOf(vertices, capacity * FLOATS_PER_CONE);
+				ranges = Arrays.copyOf(ranges, capacity);
+				fovs = Arrays.copyOf(fovs, capacity);
+				transforms = Arrays.copyOf(transforms, capacity);
+				dirty = Arrays.copyOf(dirty, capacity);
+			}
+			return slotCount++;
+		}
+	}
+
+	/**
+	 * Set a sensor's latest reading. A range of zero hides the cone.
+	 */
+	public void setRange(int slot, float range, float fieldOfView) {
+		synchronized(lock) {
+			ranges[slot] = range;
+			fovs[slot] = fieldOfView;
+			bake(slot);
+		}
+	}
+
+	/**
+	 * Set the transform from a sensor's frame to the fixed frame
+	 * 
+	 * @param m
+	 *            column major 4x4 matrix, or null if the transform isn't available, which hides the cone
+	 */
+	public void setTransform(int slot, float[] m) {
+		synchronized(lock) {
+			if(m == null) {
+				transforms[slot] = null;
+			} else {
+				if(transforms[slot] == null)
+					transforms[slot] = new float[16];
+				System.arraycopy(m, 0, transforms[slot], 0, 16);
+			}
+			bake(slot);
+		}
+	}
+
+	/**
+	 * Write the cone of one slot, apex at the sensor and opening along its X axis
+	 */
+	private void bake(int slot) {
+		int base = slot * FLOATS_PER_CONE;
+		float[] m = transforms[slot];
+		float range = ranges[slot];
+		if(m == null || !(range > 0f) || Float.isInfinite(range)) {
+			Arrays.fill(vertices, base, base + FLOATS_PER_CONE, 0f);
+		} else {
+			float radius = range * (float) Math.tan(fovs[slot] / 2f);
+			// Apex and circle center in the fixed frame
+			float ax = m[12], ay = m[13], az = m[14];
+			float cx = ax + m[0] * range, cy = ay + m[1] * range, cz = az + m[2] * range;
+			int idx = base;
+			for(int i = 0; i < SIDES; i++) {
+				float y0 = COS[i] * radius, z0 = SIN[i] * radius;
+				float y1 = COS[i + 1] * radius, z1 = SIN[i + 1] * radius;
+				vertices[idx++] = ax;
+				vertices[idx++] = ay;
+				vertices[idx++] = az;
+				vertices[idx++] = cx + m[4] * y0 + m[8] * z0;
+				vertices[idx++] = cy + m[5] * y0 + m[9] * z0;
+				vertices[idx++] = cz + m[6] * y0 + m[10] * z0;
+				vertices[idx++] = cx + m[4] * y1 + m[8] * z1;
+				vertices[idx++] = cy + m[5] * y1 + m[9] * z1;
+				vertices[idx++] = cz + m[6] * y1 + m[10] * z1;
+			}
+		}
+		dirty[slot] = true;
+		anyDirty = true;
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		if(cleanUp) {
+			vbo.cleanup();
+			return;
+		}
+
+		synchronized(lock) {
+			drawSlots = slotCount;
+			if(drawSlots == 0)
+				return;
+			// A reallocated buffer has lost its contents and every slice is written again
+			boolean all = vbo.reserve(drawSlots * BYTES_PER_CONE);
+			if(all || anyDirty) {
+				for(int slot = 0; slot < drawSlots; slot++) {
+					if(!all && !dirty[slot])
+						continue;
+					scratch.position(0);
+					scratch.put(vertices, slot * FLOATS_PER_CONE, FLOATS_PER_CONE);
+					scratch.position(0);
+					vbo.write(scratch, slot * BYTES_PER_CONE, BYTES_PER_CONE);
+					dirty[slot] = false;
+				}
+				anyDirty = false;
+			}
+		}
+
+		super.draw(glUnused);
+		calcMVP();
+		GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
+		GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
+
+		GLES20.glEnableVertexAttribArray(ShaderVal.POSITION.loc);
+		GLES20.glVertexAttribPointer(ShaderVal.POSITION.loc, 3, GLES20.GL_FLOAT, false, 0, 0);
+		// Cones are seen from inside and outside
+		GLES20.glDisable(GLES20.GL_CULL_FACE);
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, drawSlots * VERTICES_PER_CONE);
+		GLES20.glEnable(GLES20.GL_CULL_FACE);
+		vbo.unbind();
+	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.Vertices;
+import com.nerd3c.renderer.shapes.BaseShape;
+import com.nerd3c.renderer.shapes.Cleanable;
+import com.nerd3c.rviz_for_android.drawable.GLSLProgram.ShaderVal;
+
+import android.opengl.GLES20;
+
+/**
+ * A unit square with an uncompressed texture which can be updated while it's displayed. The pixels are kept in a direct buffer which producers write to while holding the tile's lock, then mark the changed rows dirty. Only the dirty band of rows is re-uploaded, with glTexSubImage2D, the next time the tile is drawn.
+ *
+ * Row 0 of the texture is at y = 0, so grids stored in row major order from their origin (like an OccupancyGrid) can be copied without flipping.
+ */
+public class TextureTile extends BaseShape implements Cleanable {
+	private static final float[] VERTICES = new float[] {
+		0f, 0f, 0f,
+		1f, 0f, 0f,
+		1f, 1f, 0f,
+
+		0f, 0f, 0f,
+		1f, 1f, 0f,
+		0f, 1f, 0f
+	};
+
+	private static final float[] UVS = new float[] {
+		0f, 0f,
+		1f, 0f,
+		1f, 1f,
+
+		0f, 0f,
+		1f, 1f,
+		0f, 1f
+	};
+
+	private static final FloatBuffer vertexBuffer = Vertices.toFloatBuffer(VERTICES);
+	private static final FloatBuffer uvBuffer = Vertices.toFloatBuffer(UVS);
+
+	private final int width;
+	private final int height;
+	private final int format;
+	private final int type;
+	private final int bytesPerPixel;
+	private final ByteBuffer pixels;
+
+	// Dirty band of rows, guarded by the tile's lock
+	private int dirtyStart;
+	private int dirtyEnd;
+
+	private final int[] texture = new int[1];
+	private boolean hasTexture = false;
+	private boolean nearest = true;
+	private volatile boolean visible = true;
+	private float xScale = 1f;
+	private float yScale = 1f;
+	private boolean cleanUp = false;
+
+	/**
+	 * @param format
+	 *            GL_LUMINANCE, GL_LUMINANCE_ALPHA, GL_RGB or GL_RGBA
+	 * @param type
+	 *            GL_UNSIGNED_BYTE, or GL_UNSIGNED_SHORT_5_6_5 for GL_RGB
+	 */
+	public TextureTile(Camera cam, int width, int height, int format, int type) {
+		super(cam);
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		this.type = type;
+		this.bytesPerPixel = getBytesPerPixel(format, type);
+		this.pixels = ByteBuffer.allocateDirect(width * height * bytesPerPixel).order(ByteOrder.nativeOrder());
+		this.dirtyStart = 0;
+		this.dirtyEnd = height;
+		super.setProgram(GLSLProgram.Textured());
+	}
+
+	private static int getBytesPerPixel(int format, int type) {
+		if(type == GLES20.GL_UNSIGNED_SHORT_5_6_5 || type == GLES20.GL_UNSIGNED_SHORT_4_4_4_4 || type == GLES20.GL_UNSIGNED_SHORT_5_5_5_1)
+			return 2;
+		switch(format) {
+		case GLES20.GL_LUMINANCE:
+		case GLES20.GL_ALPHA:
+			return 1;
+		case GLES20.GL_LUMINANCE_ALPHA:
+			return 2;
+		case GLES20.GL_RGB:
+			return 3;
+		case GLES20.GL_RGBA:
+			return 4;
+		default:
+			throw new IllegalArgumentException("Unsupported texture format " + format);
+		}
+	}
+
+	/**
+	 * The tile's pixels, row major from row 0. Only write to the buffer while synchronized on the tile, and call {@link #markDirty(int, int)} afterwards. Use absolute gets and puts, the buffer's position is used for uploads.
+	 */
+	public ByteBuffer getPixels() {
+		return pixels;
+	}
+
+	/**
+	 * Mark a band of rows to be uploaded on the next draw
+	 * 
+	 * @param startRow
+	 *            first changed row
+	 * @param endRow
+	 *            one past the last changed row
+	 */
+	public synchronized void markDirty(int startRow, int endRow) {
+		startRow = Math.max(0, startRow);
+		endRow = Math.min(height, endRow);
+		if(startRow >= endRow)
+			return;
+		if(dirtyStart >= dirtyEnd) {
+			dirtyStart = startRow;
+			dirtyEnd = endRow;
+		} else {
+			dirtyStart = Math.min(dirtyStart, startRow);
+			dirtyEnd = Math.max(dirtyEnd, endRow);
+		}
+	}
+
+	public void markAllDirty() {
+		markDirty(0, height);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getBytesPerPixel() {
+		return bytesPerPixel;
+	}
+
+	/**
+	 * Use nearest neighbor (true) or linear (false) texture filtering. This must be called before the tile is first drawn to have any effect.
+	 */
+	public void setNearestFiltering(boolean nearest) {
+		this.nearest = nearest;
+	}
+
+	/**
+	 * Hide the tile, for example until its pixels have been filled
+	 */
+	public void setVisible(boolean visible) {
+		this.visible = visible;
+	}
+
+	public boolean isVisible() {
+		return visible;
+	}
+
+	public void setScale(float xScale, float yScale) {
+		this.xScale = xScale;
+		this.yScale = yScale;
+	}
+
+	@Override
+	protected void scale(Camera cam) {
+		cam.scaleM(xScale, yScale, 1f);
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		if(cleanUp) {
+			if(hasTexture)
+				GLES20.glDeleteTextures(1, texture, 0);
+			hasTexture = false;
+			return;
+		}
+		if(!visible)
+			return;
+
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		upload();
+
+		cam.pushM();
+		super.draw(glUnused);
+		calcMVP();
+		GLES20.glUniformMatrix4fv(getUniform(ShaderVal.MVP_MATRIX), 1, false, MVP, 0);
+		GLES20.glUniform4f(getUniform(ShaderVal.UNIFORM_COLOR), getColor().getRed(), getColor().getGreen(), getColor().getBlue(), getColor().getAlpha());
+		GLES20.glUniform1i(getUniform(ShaderVal.TEXTURE), 0);
+		setExtraUniforms();
+
+		GLES20.glEnableVertexAttribArray(ShaderVal.POSITION.loc);
+		GLES20.glVertexAttribPointer(ShaderVal.POSITION.loc, 3, GLES20.GL_FLOAT, false, 0, vertexBuffer);
+		GLES20.glEnableVertexAttribArray(ShaderVal.TEXCOORD.loc);
+		GLES20.glVertexAttribPointer(ShaderVal.TEXCOORD.loc, 2, GLES20.GL_FLOAT, false, 0, uvBuffer);
+
+		// Draw double sided
+		GLES20.glDisable(GLES20.GL_CULL_FACE);
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
+		GLES20.glEnable(GLES20.GL_CULL_FACE);
+		GLES20.glDisableVertexAttribArray(ShaderVal.TEXCOORD.loc);
+		cam.popM();
+	}
+
+	/**
+	 * Called while drawing after the standard uniforms are set, for subclasses using a different program
+	 */
+	protected void setExtraUniforms() {
+	}
+
+	/**
+	 * Create the texture on the first draw, then re-upload the dirty rows. Leaves the texture bound.
+	 */
+	private synchronized void upload() {
+		GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+		if(!hasTexture) {
+			GLES20.glGenTextures(1, texture, 0);
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+			int filter = nearest ? GLES20.GL_NEAREST : GLES20.GL_LINEAR;
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, filter);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, filter);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+			pixels.position(0);
+			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0, format, type, pixels);
+			hasTexture = true;
+		} else {
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+			if(dirtyStart < dirtyEnd) {
+				pixels.position(dirtyStart * width * bytesPerPixel);
+				GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, dirtyStart, width, dirtyEnd - dirtyStart, format, type, pixels);
+			}
+		}
+		pixels.position(0);
+		dirtyStart = dirtyEnd = 0;
+		GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+	}
+
+	@Override
+	public void cleanup() {
+		cleanUp = true;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Downsamples packed points (see {@link PointCloud2Packer}) by replacing all points which fall in the same cubic voxel with their centroid.
+ *
+ * Voxels are looked up in an open-addressing hash table keyed on the packed voxel coordinates. All working arrays are kept between calls and only grow, so filtering a cloud doesn't allocate anything per point. This class isn't thread safe.
+ */
+public class VoxelGridFilter {
+	private static final long EMPTY = -1L;
+	private static final int COORD_BITS = 21;
+	private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+	private static final int COORD_BIAS = 1 << (COORD_BITS - 1);
+
+	private long[] keys = new long[0];
+	private int[] voxelIndex = new int[0];
+	private int mask = 0;
+
+	// Per-voxel accumulators
+	private float[] sums = new float[0];
+	private int[] counts = new int[0];
+
+	/**
+	 * Filter the packed points in place.
+	 *
+	 * @param points
+	 *            packed points, {@link PointCloud2Packer#FLOATS_PER_POINT} floats per point
+	 * @param pointCount
+	 *            number of points in the buffer
+	 * @param voxelSize
+	 *            edge length of a voxel in meters
+	 * @param averageChannel
+	 *            average the channel of the points in a voxel. Otherwise the channel of the first point is kept, which is needed for packed colors.
+	 * @return the number of points remaining at the start of the buffer
+	 */
+	public int filter(FloatBuffer points, int pointCount, float voxelSize, boolean averageChannel) {
+		if(voxelSize <= 0f || pointCount == 0)
+			return pointCount;
+
+		ensureCapacity(pointCount);
+		Arrays.fill(keys, EMPTY);
+
+		final int fpp = PointCloud2Packer.FLOATS_PER_POINT;
+		final float invSize = 1f / voxelSize;
+		int voxelCount = 0;
+
+		for(int i = 0; i < pointCount; i++) {
+			int base = i * fpp;
+			float x = points.get(base);
+			float y = points.get(base + 1);
+			float z = points.get(base + 2);
+			if(Float.isNaN(x) || Float.isNaN(y) || Float.isNaN(z))
+				continue;
+
+			long key = voxelKey(x * invSize, y * invSize, z * invSize);
+			int slot = (int) (mix(key) & mask);
+			while(keys[slot] != EMPTY && keys[slot] != key)
+				slot = (slot + 1) & mask;
+
+			int voxel;
+			if(keys[slot] == EMPTY) {
+				keys[slot] = key;
+				voxel = voxelCount++;
+				voxelIndex[slot] = voxel;
+				counts[voxel] = 0;
+				Arrays.fill(sums, voxel * fpp, (voxel + 1) * fpp, 0f);
+				if(!averageChannel)
+					sums[voxel * fpp + 3] = points.get(base + 3);
+			} else {
+				voxel = voxelIndex[slot];
+			}
+
+			int sumBase = voxel * fpp;
+			sums[sumBase] += x;
+			sums[sumBase + 1] += y;
+			sums[sumBase + 2] += z;
+			if(averageChannel)
+				sums[sumBase + 3] += points.get(base + 3);
+			counts[voxel]++;
+		}
+
+		// Write the voxel centroids back to the start of the buffer
+		for(int v = 0; v < voxelCount; v++) {
+			int base = v * fpp;
+			float inv = 1f / counts[v];
+			for(int f = 0; f < 3; f++)
+				points.put(base + f, sums[base + f] * inv);
+			points.put(base + 3, averageChannel ? sums[base + 3] * inv : sums[base + 3]);
+		}
+
+		return voxelCount;
+	}
+
+	private void ensureCapacity(int pointCount) {
+		// Keep the table at most half full
+		int tableSize = Integer.highestOneBit(Math.max(pointCount, 8) * 2 - 1) << 1;
+		if(keys.length < tableSize) {
+			keys = new long[tableSize];
+			voxelIndex = new int[tableSize];
+			mask = tableSize - 1;
+		}
+		if(counts.length < pointCount) {
+			counts = new int[pointCount];
+			sums = new float[pointCount * PointCloud2Packer.FLOATS_PER_POINT];
+		}
+	}
+
+	private static long voxelKey(float x, float y, float z) {
+		long ix = ((int) Math.floor(x) + COORD_BIAS) & COORD_MASK;
+		long iy = ((int) Math.floor(y) + COORD_BIAS) & COORD_MASK;
+		long iz = ((int) Math.floor(z) + COORD_BIAS) & COORD_MASK;
+		return (ix << (2 * COORD_BITS)) | (iy << COORD_BITS) | iz;
+	}
+
+	private static long mix(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return key ^ (key >>> 32);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.layers;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.VisualizationView;
+import com.nerd3c.renderer.layer.TfLayer;
+import com.nerd3c.rviz_for_android.drawable.ImageGL;
+import com.nerd3c.rviz_for_android.prop.FloatProperty;
+import com.nerd3c.rviz_for_android.prop.LayerWithProperties;
+import com.nerd3c.rviz_for_android.prop.ListProperty;
+import com.nerd3c.rviz_for_android.prop.Property;
+import com.nerd3c.rviz_for_android.prop.Property.PropertyUpdateListener;
+import com.nerd3c.rviz_for_android.prop.ReadOnlyProperty;
+import com.nerd3c.rviz_for_android.prop.ReadOnlyProperty.StatusColor;
+import org.ros.namespace.GraphName;
+import org.ros.node.Node;
+
+import android.content.Context;
+
+/**
+ * Displays a camera feed from a sensor_msgs/Image or sensor_msgs/CompressedImage topic, as a billboard in the image's optical frame or as an overlay on the screen.
+ */
+public abstract class AbstractImageLayer<T extends org.ros.internal.message.Message> extends EditableStatusSubscriberLayer<T> implements TfLayer, LayerWithProperties {
+	private static final String[] DISPLAY_MODES = new String[] { "Billboard", "Overlay" };
+	protected final ImageGL image;
+	// Frames dropped because every decoder was busy or a newer frame replaced them, refreshed with every message
+	private final ReadOnlyProperty propDropped = new ReadOnlyProperty("Dropped Frames", "0", null);
+
+	public AbstractImageLayer(GraphName topicName, String messageType, Camera cam, Context context) {
+		super(topicName, messageType, cam);
+
+		image = new ImageGL(cam, context);
+
+		// Billboard size and placement
+		final FloatProperty propWidth = new FloatProperty("Width", 1f, null).setValidRange(0.01f, 100f);
+		final FloatProperty propDistance = new FloatProperty("Distance", 1f, null).setValidRange(0f, 100f);
+		PropertyUpdateListener<Float> billboardListener = new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				image.setBillboardSize(propWidth.getValue(), propDistance.getValue());
+			}
+		};
+		propWidth.addUpdateListener(billboardListener);
+		propDistance.addUpdateListener(billboardListener);
+
+		// Overlay size, as a fraction of the screen width
+		final FloatProperty propOverlaySize = new FloatProperty("Overlay Size", 0.33f, new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				image.setOverlaySize(newval);
+			}
+		}).setValidRange(0.05f, 1f);
+
+		final ListProperty propDisplayMode = new ListProperty("Display", 0, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				boolean isOverlay = (newval == 1);
+				image.setOverlay(isOverlay);
+				propWidth.setVisible(!isOverlay);
+				propDistance.setVisible(!isOverlay);
+				propOverlaySize.setVisible(isOverlay);
+			}
+		}).setList(DISPLAY_MODES);
+
+		prop.addSubProperty(propDisplayMode);
+		prop.addSubProperty(propWidth);
+		prop.addSubProperty(propDistance);
+		prop.addSubProperty(propOverlaySize);
+		propOverlaySize.setVisible(false);
+		propDropped.setTextColor(StatusColor.NO_ICON);
+		prop.addSubProperty(propDropped);
+	}
+
+	@Override
+	protected void onMessageReceived(T msg) {
+		super.onMessageReceived(msg);
+		propDropped.setValue(Integer.toString(image.getDroppedCount()));
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		super.draw(glUnused);
+		image.draw(glUnused);
+	}
+
+	@Override
+	public GraphName getFrame() {
+		return frame;
+	}
+
+	@Override
+	public Property<?> getProperties() {
+		return prop;
+	}
+
+	@Override
+	public void onShutdown(VisualizationView view, Node node) {
+		super.onShutdown(view, node);
+		image.cleanup();
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return prop.getValue();
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.layers;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
+import org.ros.namespace.GraphName;
+
+import sensor_msgs.CompressedImage;
+import android.content.Context;
+
+/**
+ * Displays sensor_msgs/CompressedImage feeds, in any format BitmapFactory can decode
+ */
+public class CompressedImageLayer extends AbstractImageLayer<sensor_msgs.CompressedImage> {
+	public CompressedImageLayer(GraphName topicName, Camera cam, Context context) {
+		super(topicName, sensor_msgs.CompressedImage._TYPE, cam, context);
+	}
+
+	@Override
+	protected String getMessageFrameId(CompressedImage msg) {
+		return msg.getHeader().getFrameId();
+	}
+
+	@Override
+	public void onMessageReceived(CompressedImage msg) {
+		super.onMessageReceived(msg);
+		image.setData(msg);
+	}
+
+	@Override
+	public AvailableLayerType getType() {
+		return AvailableLayerType.CompressedImage;
+	}
+}
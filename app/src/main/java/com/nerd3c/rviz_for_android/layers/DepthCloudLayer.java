@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.layers;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.VisualizationView;
+import com.nerd3c.renderer.layer.TfLayer;
+import com.nerd3c.renderer.shapes.Color;
+import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
+import com.nerd3c.rviz_for_android.drawable.Colormap;
+import com.nerd3c.rviz_for_android.drawable.DepthCloudGL;
+import com.nerd3c.rviz_for_android.prop.ColorProperty;
+import com.nerd3c.rviz_for_android.prop.FloatProperty;
+import com.nerd3c.rviz_for_android.prop.LayerWithProperties;
+import com.nerd3c.rviz_for_android.prop.ListProperty;
+import com.nerd3c.rviz_for_android.prop.Property;
+import com.nerd3c.rviz_for_android.prop.Property.PropertyUpdateListener;
+import com.nerd3c.rviz_for_android.prop.ReadOnlyProperty.StatusColor;
+import com.nerd3c.rviz_for_android.prop.StringProperty;
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.topic.Subscriber;
+import org.ros.rosjava_geometry.FrameTransformTree;
+
+import sensor_msgs.CameraInfo;
+import sensor_msgs.Image;
+import android.content.Context;
+import android.os.Handler;
+
+/**
+ * Displays a 16UC1 or 32FC1 depth image as a point cloud, projected on the GPU with the intrinsics from a sensor_msgs/CameraInfo topic.
+ */
+public class DepthCloudLayer extends EditableStatusSubscriberLayer<sensor_msgs.Image> implements TfLayer, LayerWithProperties {
+	private static final String[] COLOR_MODES = new String[] { "Depth", "Flat Color" };
+	private DepthCloudGL depth;
+
+	private String infoTopic = "/camera/depth/camera_info";
+	private Subscriber<sensor_msgs.CameraInfo> infoSub;
+	private final MessageListener<sensor_msgs.CameraInfo> infoListener = new MessageListener<sensor_msgs.CameraInfo>() {
+		@Override
+		public void onNewMessage(CameraInfo msg) {
+			depth.setCameraInfo(msg);
+		}
+	};
+	private String unsupportedEncoding;
+
+	public DepthCloudLayer(GraphName topicName, Camera cam, Context context) {
+		super(topicName, sensor_msgs.Image._TYPE, cam);
+
+		depth = new DepthCloudGL(cam, context);
+		depth.setColor(new Color(1f, 1f, 1f, 1f));
+
+		final StringProperty propInfoTopic = new StringProperty("Camera Info Topic", infoTopic, new PropertyUpdateListener<String>() {
+			@Override
+			public void onPropertyChanged(String newval) {
+				changeInfoTopic(newval);
+			}
+		});
+
+		// Flat color selection
+		final ColorProperty propColorSelect = new ColorProperty("Flat Color", depth.getColor(), new PropertyUpdateListener<Color>() {
+			@Override
+			public void onPropertyChanged(Color newval) {
+				depth.setColor(newval);
+			}
+		});
+		// Colormap for depths
+		final ListProperty propColormap = new ListProperty("Colormap", Colormap.RAINBOW, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				depth.setColormap(newval);
+			}
+		}).setList(Colormap.NAMES);
+
+		// Depths at the ends of the colormap
+		final FloatProperty propMinDepth = new FloatProperty("Min Depth", 0f, null);
+		final FloatProperty propMaxDepth = new FloatProperty("Max Depth", 10f, null);
+		propMaxDepth.addUpdateListener(new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				propMinDepth.setValidRange(Float.NEGATIVE_INFINITY, newval - Float.MIN_NORMAL);
+				depth.setDepthRange(propMinDepth.getValue(), newval);
+			}
+		});
+		propMinDepth.addUpdateListener(new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				propMaxDepth.setValidRange(newval + Float.MIN_NORMAL, Float.POSITIVE_INFINITY);
+				depth.setDepthRange(newval, propMaxDepth.getValue());
+			}
+		});
+
+		final ListProperty propColorMode = new ListProperty("Color Mode", 0, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				boolean isDepth = (newval == 0);
+				depth.setDepthColorMode(isDepth);
+				propColorSelect.setVisible(!isDepth);
+				propColormap.setVisible(isDepth);
+				propMinDepth.setVisible(isDepth);
+				propMaxDepth.setVisible(isDepth);
+			}
+		}).setList(COLOR_MODES);
+
+		prop.addSubProperty(propInfoTopic);
+		prop.addSubProperty(propColorMode);
+		prop.addSubProperty(propColorSelect);
+		prop.addSubProperty(propColormap);
+		prop.addSubProperty(propMinDepth);
+		prop.addSubProperty(propMaxDepth);
+		propColorSelect.setVisible(false);
+	}
+
+	@Override
+	public void onStart(ConnectedNode connectedNode, Handler handler, FrameTransformTree frameTransformTree, Camera camera) {
+		super.onStart(connectedNode, handler, frameTransformTree, camera);
+		initInfoSubscriber();
+	}
+
+	private void initInfoSubscriber() {
+		if(infoSub != null)
+			infoSub.shutdown();
+		infoSub = null;
+		if(connectedNode == null || infoTopic == null)
+			return;
+		infoSub = connectedNode.newSubscriber(infoTopic, sensor_msgs.CameraInfo._TYPE);
+		infoSub.addMessageListener(infoListener);
+	}
+
+	private void changeInfoTopic(String topic) {
+		if(!topic.equals(infoTopic)) {
+			infoTopic = topic;
+			initInfoSubscriber();
+		}
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		super.draw(glUnused);
+		depth.draw(glUnused);
+	}
+
+	@Override
+	public GraphName getFrame() {
+		return frame;
+	}
+
+	@Override
+	public Property<?> getProperties() {
+		return prop;
+	}
+
+	@Override
+	protected String getMessageFrameId(Image msg) {
+		return msg.getHeader().getFrameId();
+	}
+
+	@Override
+	public void onMessageReceived(Image msg) {
+		super.onMessageReceived(msg);
+		if(depth.setData(msg)) {
+			if(unsupportedEncoding != null) {
+				unsupportedEncoding = null;
+				statusController.setFrameChecking(true);
+			}
+			if(!depth.hasCameraInfo() && statusController.getFrameChecking()) {
+				statusController.setFrameChecking(false);
+				statusController.setStatus("No CameraInfo received on " + infoTopic, StatusColor.WARN);
+			} else if(depth.hasCameraInfo() && !statusController.getFrameChecking()) {
+				statusController.setFrameChecking(true);
+			}
+		} else if(!msg.getEncoding().equals(unsupportedEncoding)) {
+			unsupportedEncoding = msg.getEncoding();
+			statusController.setFrameChecking(false);
+			statusController.setStatus("Unsupported depth encoding " + unsupportedEncoding, StatusColor.ERROR);
+		}
+	}
+
+	@Override
+	public void onShutdown(VisualizationView view, Node node) {
+		super.onShutdown(view, node);
+		if(infoSub != null)
+			infoSub.shutdown();
+		depth.cleanup();
+	}
+
+	@Override
+	public AvailableLayerType getType() {
+		return AvailableLayerType.DepthCloud;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return prop.getValue();
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.layers;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.VisualizationView;
+import com.nerd3c.renderer.layer.TfLayer;
+import com.nerd3c.renderer.shapes.Color;
+import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
+import com.nerd3c.rviz_for_android.drawable.GridCellsGL;
+import com.nerd3c.rviz_for_android.prop.ColorProperty;
+import com.nerd3c.rviz_for_android.prop.LayerWithProperties;
+import com.nerd3c.rviz_for_android.prop.Property;
+import com.nerd3c.rviz_for_android.prop.Property.PropertyUpdateListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.Node;
+
+import nav_msgs.GridCells;
+
+public class GridCellsLayer extends EditableStatusSubscriberLayer<nav_msgs.GridCells> implements TfLayer, LayerWithProperties {
+	private GridCellsGL cells;
+
+	public GridCellsLayer(GraphName topicName, Camera cam) {
+		super(topicName, nav_msgs.GridCells._TYPE, cam);
+
+		cells = new GridCellsGL(cam);
+		cells.setColor(new Color(1f, 0f, 0f, 1f));
+
+		prop.addSubProperty(new ColorProperty("Color", cells.getColor(), new PropertyUpdateListener<Color>() {
+			@Override
+			public void onPropertyChanged(Color newval) {
+				cells.setColor(newval);
+			}
+		}));
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		super.draw(glUnused);
+		cells.draw(glUnused);
+	}
+
+	@Override
+	public GraphName getFrame() {
+		return frame;
+	}
+
+	@Override
+	public Property<?> getProperties() {
+		return prop;
+	}
+
+	@Override
+	protected String getMessageFrameId(GridCells msg) {
+		return msg.getHeader().getFrameId();
+	}
+
+	@Override
+	public void onMessageReceived(GridCells msg) {
+		super.onMessageReceived(msg);
+		cells.setData(msg);
+	}
+
+	@Override
+	public void onShutdown(VisualizationView view, Node node) {
+		super.onShutdown(view, node);
+		cells.cleanup();
+	}
+
+	@Override
+	public AvailableLayerType getType() {
+		return AvailableLayerType.GridCells;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return prop.getValue();
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.layers;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
+import com.nerd3c.rviz_for_android.prop.ReadOnlyProperty.StatusColor;
+import org.ros.namespace.GraphName;
+
+import sensor_msgs.Image;
+import android.content.Context;
+
+/**
+ * Displays raw sensor_msgs/Image feeds
+ */
+public class ImageLayer extends AbstractImageLayer<sensor_msgs.Image> {
+	// Why the last image couldn't be shown, null while images are shown
+	private String imageProblem;
+
+	public ImageLayer(GraphName topicName, Camera cam, Context context) {
+		super(topicName, sensor_msgs.Image._TYPE, cam, context);
+	}
+
+	@Override
+	protected String getMessageFrameId(Image msg) {
+		return msg.getHeader().getFrameId();
+	}
+
+	@Override
+	public void onMessageReceived(Image msg) {
+		super.onMessageReceived(msg);
+		String problem = image.setData(msg);
+		if(problem == null) {
+			if(imageProblem != null) {
+				imageProblem = null;
+				statusController.setFrameChecking(true);
+			}
+		} else if(!problem.equals(imageProblem)) {
+			imageProblem = problem;
+			statusController.setFrameChecking(false);
+			statusController.setStatus(problem, StatusColor.ERROR);
+		}
+	}
+
+	@Override
+	public AvailableLayerType getType() {
+		return AvailableLayerType.Image;
+	}
+}
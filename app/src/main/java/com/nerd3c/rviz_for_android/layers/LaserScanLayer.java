@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.layers;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.VisualizationView;
+import com.nerd3c.renderer.layer.TfLayer;
+import com.nerd3c.renderer.shapes.Color;
+import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
+import com.nerd3c.rviz_for_android.drawable.Colormap;
+import com.nerd3c.rviz_for_android.drawable.LaserScanGL;
+import com.nerd3c.rviz_for_android.prop.BoolProperty;
+import com.nerd3c.rviz_for_android.prop.ColorProperty;
+import com.nerd3c.rviz_for_android.prop.FloatProperty;
+import com.nerd3c.rviz_for_android.prop.LayerWithProperties;
+import com.nerd3c.rviz_for_android.prop.ListProperty;
+import com.nerd3c.rviz_for_android.prop.Property;
+import com.nerd3c.rviz_for_android.prop.Property.PropertyUpdateListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.Node;
+
+import sensor_msgs.LaserScan;
+import android.content.Context;
+
+public class LaserScanLayer extends EditableStatusSubscriberLayer<sensor_msgs.LaserScan> implements TfLayer, LayerWithProperties {
+	private static final String[] COLOR_MODES = new String[] { "Flat Color", "Intensity" };
+	private LaserScanGL scan;
+
+	public LaserScanLayer(GraphName topicName, Camera cam, Context context) {
+		super(topicName, sensor_msgs.LaserScan._TYPE, cam);
+
+		scan = new LaserScanGL(cam, context);
+		scan.setColor(new Color(1f, 0f, 0f, 1f));
+
+		// Flat color selection
+		final ColorProperty propColorSelect = new ColorProperty("Flat Color", scan.getColor(), new PropertyUpdateListener<Color>() {
+			@Override
+			public void onPropertyChanged(Color newval) {
+				scan.setColor(newval);
+			}
+		});
+		// Colormap for intensities
+		final ListProperty propColormap = new ListProperty("Colormap", Colormap.RAINBOW, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				scan.setColormap(newval);
+			}
+		}).setList(Colormap.NAMES);
+
+		// Intensity coloring range bounds
+		final FloatProperty propMinRange = new FloatProperty("Min", 0f, null);
+		final FloatProperty propMaxRange = new FloatProperty("Max", 1f, null);
+		propMaxRange.addUpdateListener(new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				propMinRange.setValidRange(Float.NEGATIVE_INFINITY, newval - Float.MIN_NORMAL);
+				scan.setRange(propMinRange.getValue(), newval);
+			}
+		});
+		propMinRange.addUpdateListener(new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				propMaxRange.setValidRange(newval + Float.MIN_NORMAL, Float.POSITIVE_INFINITY);
+				scan.setRange(newval, propMaxRange.getValue());
+			}
+		});
+		final BoolProperty propAutoRange = new BoolProperty("Auto Range", true, new PropertyUpdateListener<Boolean>() {
+			@Override
+			public void onPropertyChanged(Boolean newval) {
+				propMinRange.setVisible(!newval);
+				propMaxRange.setVisible(!newval);
+				scan.setAutoRange(newval);
+			}
+		});
+
+		final ListProperty propColorMode = new ListProperty("Color Mode", 0, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				boolean isIntensity = (newval == 1);
+				scan.setIntensityColorMode(isIntensity);
+				propColorSelect.setVisible(!isIntensity);
+				propColormap.setVisible(isIntensity);
+				propAutoRange.setVisible(isIntensity);
+				propMinRange.setVisible(isIntensity && !propAutoRange.getValue());
+				propMaxRange.setVisible(isIntensity && !propAutoRange.getValue());
+			}
+		}).setList(COLOR_MODES);
+
+		prop.addSubProperty(propColorMode);
+		prop.addSubProperty(propColorSelect);
+		prop.addSubProperty(propColormap);
+		prop.addSubProperty(propAutoRange);
+		prop.addSubProperty(propMinRange);
+		prop.addSubProperty(propMaxRange);
+
+		// Set the initial visibilities
+		propColormap.setVisible(false);
+		propAutoRange.setVisible(false);
+		propMinRange.setVisible(false);
+		propMaxRange.setVisible(false);
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		super.draw(glUnused);
+		scan.draw(glUnused);
+	}
+
+	@Override
+	public GraphName getFrame() {
+		return frame;
+	}
+
+	@Override
+	public Property<?> getProperties() {
+		return prop;
+	}
+
+	@Override
+	protected String getMessageFrameId(LaserScan msg) {
+		return msg.getHeader().getFrameId();
+	}
+
+	@Override
+	public void onMessageReceived(LaserScan msg) {
+		super.onMessageReceived(msg);
+		scan.setData(msg);
+	}
+
+	@Override
+	public void onShutdown(VisualizationView view, Node node) {
+		super.onShutdown(view, node);
+		scan.cleanup();
+	}
+
+	@Override
+	public AvailableLayerType getType() {
+		return AvailableLayerType.LaserScan;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return prop.getValue();
+	}
+}
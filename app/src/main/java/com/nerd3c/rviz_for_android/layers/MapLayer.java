@@ -18,24 +18,39 @@ package com.nerd3c.rviz_for_android.layers;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.microedition.khronos.opengles.GL10;
 
+import map_msgs.OccupancyGridUpdate;
 import nav_msgs.OccupancyGrid;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+
 import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.Utility;
 import com.nerd3c.renderer.VisualizationView;
 import com.nerd3c.renderer.layer.TfLayer;
-import com.nerd3c.renderer.shapes.TexturedTrianglesShape;
+import com.nerd3c.renderer.shapes.Color;
 import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
-import com.nerd3c.rviz_for_android.drawable.Plane;
+import com.nerd3c.rviz_for_android.drawable.OccupancyGridRasterizer;
+import com.nerd3c.rviz_for_android.drawable.OccupancyPalette;
+import com.nerd3c.rviz_for_android.drawable.PaletteTile;
+import com.nerd3c.rviz_for_android.drawable.TextureTile;
+import com.nerd3c.rviz_for_android.prop.FloatProperty;
 import com.nerd3c.rviz_for_android.prop.LayerWithProperties;
+import com.nerd3c.rviz_for_android.prop.ListProperty;
 import com.nerd3c.rviz_for_android.prop.Property;
+import com.nerd3c.rviz_for_android.prop.Property.PropertyUpdateListener;
 import com.nerd3c.rviz_for_android.prop.ReadOnlyProperty.StatusColor;
+import org.ros.message.MessageListener;
 import org.ros.namespace.GraphName;
 import org.ros.node.ConnectedNode;
 import org.ros.node.Node;
+import org.ros.node.topic.Subscriber;
 import org.ros.rosjava_geometry.FrameTransformTree;
 import org.ros.rosjava_geometry.Quaternion;
 import org.ros.rosjava_geometry.Transform;
@@ -45,38 +60,86 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Rect;
-import android.opengl.ETC1;
-import android.opengl.ETC1Util.ETC1Texture;
+import android.graphics.Matrix;
+import android.opengl.GLES20;
 import android.os.Handler;
 import android.util.Log;
 
+/**
+ * Displays an OccupancyGrid as a grid of textured tiles. The tiles hold the raw occupancy bytes and are colored by a palette in the shader, so switching between the map, costmap and raw color schemes doesn't touch the tiles, and costmaps can be drawn with transparent free space over a map.
+ *
+ * The latest grid is kept on the CPU so map_msgs/OccupancyGridUpdate messages from the map topic's "_updates" topic can be applied to it, and only the rows of the tiles covered by an update are copied and re-uploaded.
+ */
 public class MapLayer extends EditableStatusSubscriberLayer<nav_msgs.OccupancyGrid> implements LayerWithProperties, TfLayer {
 
-	private static int MAX_TEXTURE_WIDTH = 1024;
-	private static int MAX_TEXTURE_HEIGHT = 1024;
-
-	private int wTileCount;
-	private int hTileCount;
-	private float wTileScale;
-	private float hTileScale;
+	private static final int TILE_SIZE = 1024;
+
+	private volatile TextureTile[][] tiles;
+	// Hash of the grid region each tile was last generated from, guarded by the tile. Only valid where tileHashed is set.
+	private volatile long[][] tileHashes;
+	private volatile boolean[][] tileHashed;
+	// Replaced tiles whose textures still have to be deleted on the GL thread
+	private final List<TextureTile> retiredTiles = new ArrayList<TextureTile>();
+
+	// The retained grid, guarded by gridLock
+	private final Object gridLock = new Object();
+	private byte[] grid;
+	private int gridWidth;
+	private int gridHeight;
+	private float gridResolution;
+	private Transform gridOrigin;
+
+	private final OccupancyGridRasterizer rasterizer = new OccupancyGridRasterizer();
+	// Incremented for every new grid, so queued tile jobs for an older grid are skipped
+	private final AtomicInteger generation = new AtomicInteger();
+	private final AtomicInteger pendingTiles = new AtomicInteger();
+
+	private String topic;
+	private Subscriber<map_msgs.OccupancyGridUpdate> updateSub;
+	private final MessageListener<map_msgs.OccupancyGridUpdate> updateListener = new MessageListener<map_msgs.OccupancyGridUpdate>() {
+		@Override
+		public void onNewMessage(OccupancyGridUpdate msg) {
+			applyUpdate(msg);
+		}
+	};
 
-	private Plane[][] tiles;
+	private final OccupancyPalette palette = new OccupancyPalette();
+	private volatile Color tileColor = new Color(1f, 1f, 1f, 1f);
+	private volatile boolean cleanUp = false;
 
 	private volatile boolean isReady = false;
 
 	private Context context;
 
-	private OccupancyGrid mostRecent;
-
 	private FrameTransformTree frameTransformTree;
 	
 	public MapLayer(Camera cam, GraphName topicName, Context context) {
 		super(topicName, nav_msgs.OccupancyGrid._TYPE, cam);
 		this.context = context;
+		this.topic = topicName.toString();
+
+		prop.addSubProperty(new ListProperty("Color Scheme", OccupancyPalette.MAP, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				palette.setScheme(newval);
+			}
+		}).setList(OccupancyPalette.NAMES));
+		prop.addSubProperty(new FloatProperty("Alpha", 1f, new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				setAlpha(newval);
+			}
+		}).setValidRange(0f, 1f));
+	}
+
+	private void setAlpha(float alpha) {
+		tileColor = new Color(1f, 1f, 1f, alpha);
+		TextureTile[][] current = tiles;
+		if(current == null)
+			return;
+		for(TextureTile[] row : current)
+			for(TextureTile t : row)
+				t.setColor(tileColor);
 	}
 
 	@Override
@@ -86,6 +149,26 @@ public class MapLayer extends EditableStatusSubscriberLayer<nav_msgs.OccupancyGr
 		this.frameTransformTree = frameTransformTree;
 
 		updateStatus(frameTransformTree, camera);
+		initUpdateSubscriber();
+	}
+
+	@Override
+	protected void changeTopic(String topic) {
+		super.changeTopic(topic);
+		if(!topic.equals(this.topic)) {
+			this.topic = topic;
+			initUpdateSubscriber();
+		}
+	}
+
+	private void initUpdateSubscriber() {
+		if(updateSub != null)
+			updateSub.shutdown();
+		updateSub = null;
+		if(connectedNode == null || topic == null)
+			return;
+		updateSub = connectedNode.newSubscriber(topic + "_updates", map_msgs.OccupancyGridUpdate._TYPE);
+		updateSub.addMessageListener(updateListener);
 	}
 
 	@Override
@@ -94,11 +177,16 @@ public class MapLayer extends EditableStatusSubscriberLayer<nav_msgs.OccupancyGr
 		
 		statusController.setFrameChecking(false);
 		statusController.setStatus("Map loading...", StatusColor.OK);
-		mostRecent = msg;
-		isReady = false;
-		generateMapTiles(msg);
-		isReady = true;
-		updateStatus(frameTransformTree, camera);
+		if(testLayerName()) {
+			loadHiddenTiles();
+		} else {
+			ChannelBuffer data = msg.getData();
+			Transform origin = Utility.correctTransform(Transform.fromPoseMessage(msg.getInfo().getOrigin()));
+			setGrid(msg.getInfo().getWidth(), msg.getInfo().getHeight(), msg.getInfo().getResolution(), origin, data.array(), data.arrayOffset());
+		}
+		isReady = (tiles != null);
+		if(pendingTiles.get() == 0)
+			updateStatus(frameTransformTree, camera);
 	}
 	
 	private void updateStatus(FrameTransformTree frameTransformTree, Camera camera) {
@@ -109,117 +197,221 @@ public class MapLayer extends EditableStatusSubscriberLayer<nav_msgs.OccupancyGr
 		}
 	}
 
-	private Bitmap mapImage;
-	private Bitmap tileImage;
-	private Canvas canvas;
-
-	private void generateMapTiles(OccupancyGrid msg) {
-		int u = msg.getInfo().getWidth();
-		int v = msg.getInfo().getHeight();
-		float density = msg.getInfo().getResolution();
-
-		wTileCount = (u / MAX_TEXTURE_WIDTH) + 1;
-		hTileCount = (v / MAX_TEXTURE_HEIGHT) + 1;
-
-		wTileScale = density * MAX_TEXTURE_WIDTH;
-		hTileScale = density * MAX_TEXTURE_HEIGHT;
-
-		Log.d("Map", "Tile grid is " + wTileCount + " x " + hTileCount + " with " + wTileScale + " x " + hTileScale + " tiles.");
-
-		tiles = new Plane[hTileCount][wTileCount];
-
-		initTextures(u, v, msg.getData().array());
+	/**
+	 * Replace the retained grid and regenerate its tiles. When the grid keeps its size, each tile's region is hashed straight from the message and compared with the region the tile was generated from, and only the regions which differ are copied into the retained grid, whose array is reused, so republishing the same map only costs a hash pass. Each changed tile is copied by its own job on the rasterizer's worker pool and shown as soon as it's done, so this returns without waiting for the tiles.
+	 */
+	private void setGrid(int width, int height, float resolution, Transform origin, byte[] data, int offset) {
+		if(width <= 0 || height <= 0)
+			return;
+		final int gen = generation.incrementAndGet();
+		final byte[] source;
+		final int stride;
+		final TextureTile[][] current;
+		final long[][] hashes;
+		final boolean[][] hashed;
+		final boolean[][] changed;
+		int changedCount = 0;
+		synchronized(gridLock) {
+			boolean sameSize = (grid != null && width == gridWidth && height == gridHeight);
+			boolean resized = (!sameSize || resolution != gridResolution);
+			// Jobs of the previous generation may still be reading the old grid, so a grid of a new size gets a new array. Otherwise
+			// the array is reused, a region is only overwritten after its tile's hash is cleared, and stale jobs skip the tile.
+			if(!sameSize)
+				grid = new byte[width * height];
+			gridWidth = width;
+			gridHeight = height;
+			gridResolution = resolution;
+
+			if(resized)
+				createTiles(width, height, resolution, origin, true);
+			else if(!origin.equals(gridOrigin))
+				placeTiles(tiles, resolution, origin);
+			gridOrigin = origin;
+			source = grid;
+			stride = gridWidth;
+			current = tiles;
+			hashes = tileHashes;
+			hashed = tileHashed;
+
+			changed = new boolean[current.length][current[0].length];
+			if(resized) {
+				System.arraycopy(data, offset, grid, 0, width * height);
+				for(boolean[] row : changed)
+					Arrays.fill(row, true);
+				changedCount = current.length * current[0].length;
+			} else {
+				for(int row = 0; row < current.length; row++) {
+					for(int col = 0; col < current[row].length; col++) {
+						TextureTile tile = current[row][col];
+						int x = col * TILE_SIZE;
+						int y = row * TILE_SIZE;
+						long hash = OccupancyGridRasterizer.hashRegion(data, offset, width, x, y, tile.getWidth(), tile.getHeight());
+						synchronized(tile) {
+							changed[row][col] = !(hashed[row][col] && hashes[row][col] == hash && tile.isVisible());
+							// The retained region no longer matches the tile until its job has run
+							if(changed[row][col])
+								hashed[row][col] = false;
+						}
+						if(changed[row][col]) {
+							for(int v = 0; v < tile.getHeight(); v++)
+								System.arraycopy(data, offset + (y + v) * width + x, grid, (y + v) * width + x, tile.getWidth());
+							changedCount++;
+						}
+					}
+				}
+			}
+			isReady = true;
+		}
 
-		for(int col = 0; col < wTileCount; col++) {
-			for(int row = 0; row < hTileCount; row++) {
-				tiles[row][col] = new Plane(super.camera, getTileTexture(row, col));
-				Transform tileTransform = new Transform(new Vector3(wTileScale * col, hTileScale * row, 0), Quaternion.identity());
-				tiles[row][col].setTransform(tileTransform);
-				tiles[row][col].setScale(wTileScale, hTileScale);
-				tiles[row][col].setTextureSmoothing(TexturedTrianglesShape.TextureSmoothing.Nearest);
+		pendingTiles.set(changedCount);
+		for(int row = 0; row < current.length; row++) {
+			for(int col = 0; col < current[row].length; col++) {
+				if(!changed[row][col])
+					continue;
+				final TextureTile tile = current[row][col];
+				final int r = row;
+				final int c = col;
+				Runnable job = new Runnable() {
+					@Override
+					public void run() {
+						generateTile(gen, tile, hashes[r], hashed[r], c, source, stride, c * TILE_SIZE, r * TILE_SIZE);
+					}
+				};
+				if(!rasterizer.submit(job))
+					job.run();
 			}
 		}
 	}
 
-	private static final int BLACK = Color.argb(255, 0, 0, 0);
-	private static final Paint paint = new Paint();
-
 	/**
-	 * Currently this uses ETC1 compressed textures with black for any unused portions of the tile. Transparency isn't supported by ETC1 compression, which is the only compression mode guaranteed to work on all Android devices with OpenGL ES 2.0 support
+	 * Copy a whole tile from the retained grid and publish it, unless a newer grid has arrived since the job was queued
 	 */
-	private ETC1Texture getTileTexture(int row, int col) {
-		// Fill the tile with black (background color)
-		canvas.clipRect(0, 0, canvas.getWidth(), canvas.getHeight());
-		canvas.drawColor(BLACK);
-
-		// Copy the section of the map image into the tile
-		int top = mapImage.getHeight() - Math.min((row + 1) * MAX_TEXTURE_HEIGHT, mapImage.getHeight());
-		int bottom = mapImage.getHeight() - row * MAX_TEXTURE_HEIGHT;
-		int left = col * MAX_TEXTURE_WIDTH;
-		int right = Math.min(left + MAX_TEXTURE_WIDTH, mapImage.getWidth());
-
-		Rect src = new Rect(left, top, right, bottom);
-		Rect dst = new Rect(0, 0, src.width(), src.height());
-		dst.offset(0, MAX_TEXTURE_HEIGHT - dst.height());
-
-		canvas.drawBitmap(mapImage, src, dst, paint);
-
-		// Compress the tile
-		return compressBitmap(tileImage);
+	private void generateTile(int gen, TextureTile tile, long[] hashes, boolean[] hashed, int col, byte[] source, int stride, int x, int y) {
+		// Stale jobs leave without waiting for the tile
+		if(gen != generation.get())
+			return;
+		synchronized(tile) {
+			if(gen != generation.get())
+				return;
+			// An update landing while this runs is safe because applyUpdate re-rasterizes its rows and clears tileHashed afterwards
+			OccupancyGridRasterizer.copyRows(source, 0, stride, x, y, tile.getWidth(), tile.getPixels(), 0, tile.getHeight());
+			hashes[col] = OccupancyGridRasterizer.hashRegion(source, 0, stride, x, y, tile.getWidth(), tile.getHeight());
+			hashed[col] = true;
+			tile.markAllDirty();
+		}
+		tile.setVisible(true);
+		if(gen == generation.get() && pendingTiles.decrementAndGet() == 0)
+			updateStatus(frameTransformTree, camera);
 	}
 
-	private ETC1Texture compressBitmap(Bitmap uncompressedBitmap) {
-		// Copy the bitmap to a byte buffer
-		ByteBuffer uncompressedBytes = ByteBuffer.allocateDirect(uncompressedBitmap.getByteCount()).order(ByteOrder.nativeOrder());
-		uncompressedBitmap.copyPixelsToBuffer(uncompressedBytes);
-		uncompressedBytes.position(0);
+	/**
+	 * Apply an update rectangle to the retained grid and refresh the rows of the tiles it covers
+	 */
+	private void applyUpdate(OccupancyGridUpdate msg) {
+		synchronized(gridLock) {
+			if(grid == null || testLayerName())
+				return;
+			int x0 = Math.max(0, msg.getX());
+			int y0 = Math.max(0, msg.getY());
+			int x1 = Math.min(gridWidth, msg.getX() + msg.getWidth());
+			int y1 = Math.min(gridHeight, msg.getY() + msg.getHeight());
+			ChannelBuffer data = msg.getData();
+			if(x0 >= x1 || y0 >= y1 || data.readableBytes() < msg.getWidth() * msg.getHeight()) {
+				Log.w("Map", "Ignoring an update which doesn't match the map");
+				return;
+			}
 
-		int width = uncompressedBitmap.getWidth();
-		int height = uncompressedBitmap.getHeight();
+			byte[] src = data.array();
+			int srcOffset = data.arrayOffset() + data.readerIndex();
+			for(int y = y0; y < y1; y++)
+				System.arraycopy(src, srcOffset + (y - msg.getY()) * msg.getWidth() + (x0 - msg.getX()), grid, y * gridWidth + x0, x1 - x0);
+
+			TextureTile[][] current = tiles;
+			boolean[][] hashed = tileHashed;
+			for(int row = y0 / TILE_SIZE; row <= (y1 - 1) / TILE_SIZE; row++) {
+				for(int col = x0 / TILE_SIZE; col <= (x1 - 1) / TILE_SIZE; col++) {
+					int tileY = row * TILE_SIZE;
+					TextureTile tile = current[row][col];
+					rasterizeTile(tile, col * TILE_SIZE, tileY, Math.max(y0, tileY) - tileY, Math.min(y1, tileY + TILE_SIZE) - tileY);
+					// The tile no longer matches the hash of the grid it was generated from
+					synchronized(tile) {
+						hashed[row][col] = false;
+					}
+				}
+			}
+		}
+	}
 
-		// Compress the texture
-		int encodedSize = ETC1.getEncodedDataSize(width, height);
-		ByteBuffer compressed = ByteBuffer.allocateDirect(encodedSize).order(ByteOrder.nativeOrder());
-		ETC1.encodeImage(uncompressedBytes, width, height, 2, 2 * width, compressed);
+	/**
+	 * Copy rows [startRow, endRow) of a tile from the retained grid and mark them dirty. Must hold gridLock.
+	 * 
+	 * The tile is only locked while each band is copied. Holding it while the rasterizer waits for its pool would deadlock if every worker was busy with a queued job waiting for the same tile.
+	 */
+	private void rasterizeTile(TextureTile tile, int x, int y, int startRow, int endRow) {
+		// A view starting at the first copied row, so the position of the tile's own buffer is never touched
+		ByteBuffer rows = tile.getPixels().duplicate();
+		rows.position(startRow * tile.getWidth() * tile.getBytesPerPixel());
+		rasterizer.rasterize(grid, 0, gridWidth, x, y + startRow, tile.getWidth(), endRow - startRow, rows.slice().order(rows.order()), tile);
+		tile.markDirty(startRow, endRow);
+	}
 
-		ETC1Texture retval = new ETC1Texture(width, height, compressed);
+	/**
+	 * Replace the tiles with a new set covering a grid. Edge tiles are only as large as the part of the grid they cover. The new tiles are hidden until their pixels are filled.
+	 * 
+	 * @param usePalette
+	 *            create 8 bit occupancy tiles colored by the palette, otherwise RGB565 tiles
+	 */
+	private void createTiles(int width, int height, float resolution, Transform origin, boolean usePalette) {
+		int wTileCount = (width + TILE_SIZE - 1) / TILE_SIZE;
+		int hTileCount = (height + TILE_SIZE - 1) / TILE_SIZE;
+		Log.d("Map", "Tile grid is " + wTileCount + " x " + hTileCount + " with " + (resolution * TILE_SIZE) + " m tiles.");
+
+		TextureTile[][] newTiles = new TextureTile[hTileCount][wTileCount];
+		for(int row = 0; row < hTileCount; row++) {
+			for(int col = 0; col < wTileCount; col++) {
+				int w = Math.min(TILE_SIZE, width - col * TILE_SIZE);
+				int h = Math.min(TILE_SIZE, height - row * TILE_SIZE);
+				TextureTile tile;
+				if(usePalette)
+					tile = new PaletteTile(super.camera, w, h, palette);
+				else
+					tile = new TextureTile(super.camera, w, h, GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5);
+				tile.setColor(tileColor);
+				tile.setScale(resolution * w, resolution * h);
+				tile.setVisible(false);
+				newTiles[row][col] = tile;
+			}
+		}
+		placeTiles(newTiles, resolution, origin);
+		retireTiles();
+		tileHashes = new long[hTileCount][wTileCount];
+		tileHashed = new boolean[hTileCount][wTileCount];
+		tiles = newTiles;
+	}
 
-		return retval;
+	/**
+	 * Position the tiles relative to the origin of the grid, the pose of cell (0, 0) in the map's frame. Rolling window costmaps move their origin with every message while their size stays the same.
+	 */
+	private void placeTiles(TextureTile[][] tileSet, float resolution, Transform origin) {
+		for(int row = 0; row < tileSet.length; row++) {
+			for(int col = 0; col < tileSet[row].length; col++) {
+				Transform offset = new Transform(new Vector3(resolution * TILE_SIZE * col, resolution * TILE_SIZE * row, 0), Quaternion.identity());
+				tileSet[row][col].setTransform(origin.multiply(offset));
+			}
+		}
 	}
 
-	private void initTextures(int width, int height, byte[] data) {
-		if(mapImage != null)
-			mapImage.recycle();
-		if(tileImage != null)
-			tileImage.recycle();
-
-		// Map image must be stored using 2 bytes/pixel because of compression constraints
-		mapImage = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-		tileImage = Bitmap.createBitmap(MAX_TEXTURE_WIDTH, MAX_TEXTURE_HEIGHT, Bitmap.Config.RGB_565);
-		canvas = new android.graphics.Canvas(tileImage);
-
-		// Copy the message data into a bitmap, flipping vertically
-		if(!testLayerName()) {
-			for(int u = 0; u < width; u++) {
-				for(int v = 0; v < height; v++) {
-					int color = data[v * width + u];
-					if(color == 100)
-						color = 0;
-					else if(color == 0)
-						color = 255;
-					else
-						color = 127;
-
-					mapImage.setPixel(u, height - v - 1, Color.argb(255, color, color, color));
+	private void retireTiles() {
+		TextureTile[][] old = tiles;
+		if(old == null)
+			return;
+		synchronized(retiredTiles) {
+			for(TextureTile[] row : old) {
+				for(TextureTile t : row) {
+					t.cleanup();
+					retiredTiles.add(t);
 				}
 			}
-		} else {
-			AssetManager am = context.getAssets();
-			try {
-				mapImage = BitmapFactory.decodeStream(am.open("hidden.dat"));
-			} catch(IOException e) {
-				e.printStackTrace();
-			}
 		}
 	}
 
@@ -230,12 +422,60 @@ public class MapLayer extends EditableStatusSubscriberLayer<nav_msgs.OccupancyGr
 		return super.layerName.equals("BRAINS");
 	}
 
+	private void loadHiddenTiles() {
+		AssetManager am = context.getAssets();
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		Bitmap image;
+		try {
+			image = BitmapFactory.decodeStream(am.open("hidden.dat"), null, options);
+		} catch(IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if(image == null)
+			return;
+
+		generation.incrementAndGet();
+		pendingTiles.set(0);
+		synchronized(gridLock) {
+			grid = null;
+			createTiles(image.getWidth(), image.getHeight(), 0.05f, Transform.identity(), false);
+			// Bitmap rows run top down, tile rows bottom up
+			Matrix flip = new Matrix();
+			flip.preScale(1f, -1f);
+			TextureTile[][] current = tiles;
+			for(int row = 0; row < current.length; row++) {
+				for(int col = 0; col < current[row].length; col++) {
+					TextureTile tile = current[row][col];
+					Bitmap part = Bitmap.createBitmap(image, col * TILE_SIZE, image.getHeight() - row * TILE_SIZE - tile.getHeight(), tile.getWidth(), tile.getHeight(), flip, false);
+					synchronized(tile) {
+						part.copyPixelsToBuffer(tile.getPixels());
+						tile.getPixels().position(0);
+					}
+					tile.markAllDirty();
+					tile.setVisible(true);
+					part.recycle();
+				}
+			}
+		}
+		image.recycle();
+	}
+
 	@Override
 	public void draw(GL10 glUnused) {
-		if(isReady) {
+		if(cleanUp)
+			palette.cleanup();
+		synchronized(retiredTiles) {
+			for(TextureTile t : retiredTiles)
+				t.draw(glUnused);
+			retiredTiles.clear();
+		}
+		TextureTile[][] current = tiles;
+		if(isReady && current != null) {
 			super.draw(glUnused);
-			for(Plane[] pRow : tiles) {
-				for(Plane p : pRow)
+			for(TextureTile[] pRow : current) {
+				for(TextureTile p : pRow)
 					p.draw(glUnused);
 			}
 		}
@@ -250,9 +490,8 @@ public class MapLayer extends EditableStatusSubscriberLayer<nav_msgs.OccupancyGr
 	public void setName(String name) {
 		super.setName(name);
 		if(testLayerName()) {
-			isReady = false;
-			generateMapTiles(mostRecent);
-			isReady = true;
+			loadHiddenTiles();
+			isReady = (tiles != null);
 		}
 	}
 
@@ -264,9 +503,14 @@ public class MapLayer extends EditableStatusSubscriberLayer<nav_msgs.OccupancyGr
 	@Override
 	public void onShutdown(VisualizationView view, Node node) {
 		super.onShutdown(view, node);
-		if(tiles != null) {
-			for(Plane[] pRow : tiles)
-				for(Plane p : pRow)
+		if(updateSub != null)
+			updateSub.shutdown();
+		rasterizer.shutdown();
+		cleanUp = true;
+		TextureTile[][] current = tiles;
+		if(current != null) {
+			for(TextureTile[] pRow : current)
+				for(TextureTile p : pRow)
 					p.cleanup();
 		}
 	}
@@ -285,4 +529,4 @@ public class MapLayer extends EditableStatusSubscriberLayer<nav_msgs.OccupancyGr
 	public AvailableLayerType getType() {
 		return AvailableLayerType.Map;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.layers;
+
+import java.util.ArrayDeque;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.VisualizationView;
+import com.nerd3c.renderer.layer.TfLayer;
+import com.nerd3c.renderer.shapes.Color;
+import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
+import com.nerd3c.rviz_for_android.drawable.ArrowBatchGL;
+import com.nerd3c.rviz_for_android.prop.ColorProperty;
+import com.nerd3c.rviz_for_android.prop.FloatProperty;
+import com.nerd3c.rviz_for_android.prop.IntProperty;
+import com.nerd3c.rviz_for_android.prop.LayerWithProperties;
+import com.nerd3c.rviz_for_android.prop.Property;
+import com.nerd3c.rviz_for_android.prop.Property.PropertyUpdateListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.Node;
+
+import geometry_msgs.Point;
+import geometry_msgs.Pose;
+import geometry_msgs.Quaternion;
+import nav_msgs.Odometry;
+
+/**
+ * Displays the recent history of an Odometry topic as arrows. A pose is only kept when it moved or turned more than the tolerances from the last kept pose, and the oldest poses are dropped past the history limit.
+ */
+public class OdometryLayer extends EditableStatusSubscriberLayer<nav_msgs.Odometry> implements TfLayer, LayerWithProperties {
+	private ArrowBatchGL arrows;
+	private final ArrayDeque<Pose> history = new ArrayDeque<Pose>();
+	private volatile int keep = 100;
+	private volatile float positionTolerance = 0.1f;
+	private volatile float angleTolerance = 0.1f;
+
+	public OdometryLayer(GraphName topicName, Camera cam) {
+		super(topicName, nav_msgs.Odometry._TYPE, cam);
+
+		arrows = new ArrowBatchGL(cam);
+		arrows.setLength(0.4f);
+		arrows.setColor(new Color(1f, 0.1f, 0f, 1f));
+
+		prop.addSubProperty(new ColorProperty("Color", arrows.getColor(), new PropertyUpdateListener<Color>() {
+			@Override
+			public void onPropertyChanged(Color newval) {
+				arrows.setColor(newval);
+			}
+		}));
+		prop.addSubProperty(new FloatProperty("Arrow Length", arrows.getLength(), new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				arrows.setLength(newval);
+				synchronized(history) {
+					arrows.setData(history);
+				}
+			}
+		}).setValidRange(0.001f, 100f));
+		prop.addSubProperty(new IntProperty("Keep", keep, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				keep = newval;
+			}
+		}).setValidRange(1, 100000));
+		prop.addSubProperty(new FloatProperty("Position Tolerance", positionTolerance, new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				positionTolerance = newval;
+			}
+		}).setValidRange(0f, 100f));
+		prop.addSubProperty(new FloatProperty("Angle Tolerance", angleTolerance, new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				angleTolerance = newval;
+			}
+		}).setValidRange(0f, (float) Math.PI));
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		super.draw(glUnused);
+		arrows.draw(glUnused);
+	}
+
+	@Override
+	public GraphName getFrame() {
+		return frame;
+	}
+
+	@Override
+	public Property<?> getProperties() {
+		return prop;
+	}
+
+	@Override
+	protected String getMessageFrameId(Odometry msg) {
+		return msg.getHeader().getFrameId();
+	}
+
+	@Override
+	public void onMessageReceived(Odometry msg) {
+		super.onMessageReceived(msg);
+		Pose pose = msg.getPose().getPose();
+		synchronized(history) {
+			if(!history.isEmpty() && !exceedsTolerance(history.peekLast(), pose))
+				return;
+			history.addLast(pose);
+			while(history.size() > keep)
+				history.removeFirst();
+			arrows.setData(history);
+		}
+	}
+
+	private boolean exceedsTolerance(Pose last, Pose pose) {
+		Point a = last.getPosition();
+		Point b = pose.getPosition();
+		double dx = a.getX() - b.getX();
+		double dy = a.getY() - b.getY();
+		double dz = a.getZ() - b.getZ();
+		if(dx * dx + dy * dy + dz * dz > positionTolerance * positionTolerance)
+			return true;
+
+		// Angle between the two orientations
+		Quaternion qa = last.getOrientation();
+		Quaternion qb = pose.getOrientation();
+		double dot = Math.abs(qa.getX() * qb.getX() + qa.getY() * qb.getY() + qa.getZ() * qb.getZ() + qa.getW() * qb.getW());
+		return 2 * Math.acos(Math.min(1.0, dot)) > angleTolerance;
+	}
+
+	@Override
+	public void onShutdown(VisualizationView view, Node node) {
+		super.onShutdown(view, node);
+		arrows.cleanup();
+	}
+
+	@Override
+	public AvailableLayerType getType() {
+		return AvailableLayerType.Odometry;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return prop.getValue();
+	}
+}
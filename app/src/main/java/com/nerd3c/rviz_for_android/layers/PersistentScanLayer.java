@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.layers;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.Utility;
+import com.nerd3c.renderer.VisualizationView;
+import com.nerd3c.renderer.layer.TfLayer;
+import com.nerd3c.renderer.shapes.Color;
+import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
+import com.nerd3c.rviz_for_android.drawable.HitCountGrid;
+import com.nerd3c.rviz_for_android.prop.ColorProperty;
+import com.nerd3c.rviz_for_android.prop.FloatProperty;
+import com.nerd3c.rviz_for_android.prop.IntProperty;
+import com.nerd3c.rviz_for_android.prop.LayerWithProperties;
+import com.nerd3c.rviz_for_android.prop.Property;
+import com.nerd3c.rviz_for_android.prop.Property.PropertyUpdateListener;
+import com.nerd3c.rviz_for_android.prop.ReadOnlyProperty.StatusColor;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.rosjava_geometry.FrameTransformTree;
+import org.ros.rosjava_geometry.Transform;
+
+import sensor_msgs.LaserScan;
+import android.os.Handler;
+
+/**
+ * Accumulates LaserScan hits in the fixed frame into a {@link HitCountGrid}. Every scan is transformed into the fixed frame at its timestamp, and the grid is drawn as textures, so the display cost doesn't grow with the number of scans. The grid is cleared when the fixed frame or the resolution changes.
+ */
+public class PersistentScanLayer extends EditableStatusSubscriberLayer<sensor_msgs.LaserScan> implements TfLayer, LayerWithProperties {
+	// Number of tiles along each side of the grid
+	private static final int TILE_COUNT = 2;
+
+	private HitCountGrid grid;
+	private FrameTransformTree frameTransformTree;
+	private volatile GraphName gridFrame;
+	private float[] points = new float[0];
+	private boolean missingTransform = false;
+
+	public PersistentScanLayer(GraphName topicName, Camera cam) {
+		super(topicName, sensor_msgs.LaserScan._TYPE, cam);
+
+		grid = new HitCountGrid(cam, TILE_COUNT);
+		grid.setColor(new Color(1f, 0f, 0f, 1f));
+
+		prop.addSubProperty(new ColorProperty("Color", grid.getColor(), new PropertyUpdateListener<Color>() {
+			@Override
+			public void onPropertyChanged(Color newval) {
+				grid.setColor(newval);
+			}
+		}));
+		prop.addSubProperty(new FloatProperty("Resolution", 0.05f, new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				grid.setResolution(newval);
+			}
+		}).setValidRange(0.005f, 10f));
+		prop.addSubProperty(new IntProperty("Hits To Saturate", 5, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				grid.setHitsToSaturate(newval);
+			}
+		}).setValidRange(1, 10000));
+	}
+
+	@Override
+	public void onStart(ConnectedNode connectedNode, Handler handler, FrameTransformTree frameTransformTree, Camera camera) {
+		super.onStart(connectedNode, handler, frameTransformTree, camera);
+		this.frameTransformTree = frameTransformTree;
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		super.draw(glUnused);
+		grid.draw(glUnused);
+	}
+
+	@Override
+	public GraphName getFrame() {
+		return gridFrame;
+	}
+
+	@Override
+	public Property<?> getProperties() {
+		return prop;
+	}
+
+	@Override
+	protected String getMessageFrameId(LaserScan msg) {
+		return msg.getHeader().getFrameId();
+	}
+
+	@Override
+	public void onMessageReceived(LaserScan msg) {
+		super.onMessageReceived(msg);
+		GraphName fixedFrame = camera.getFixedFrame();
+		if(frameTransformTree == null || fixedFrame == null)
+			return;
+
+		Transform t = Utility.lookUpTransform(frameTransformTree, GraphName.of(msg.getHeader().getFrameId()), fixedFrame, msg.getHeader().getStamp());
+		if(t == null) {
+			if(!missingTransform) {
+				missingTransform = true;
+				statusController.setFrameChecking(false);
+				statusController.setStatus("No transform from " + msg.getHeader().getFrameId() + " to " + fixedFrame, StatusColor.WARN);
+			}
+			return;
+		} else if(missingTransform) {
+			missingTransform = false;
+			statusController.setFrameChecking(true);
+		}
+
+		double[] m = t.toMatrix();
+		if(!fixedFrame.equals(gridFrame) || !grid.isReset()) {
+			grid.reset((float) m[12], (float) m[13], (float) m[14]);
+			gridFrame = fixedFrame;
+		}
+
+		// Beam end points in the fixed frame, as x, y pairs
+		float[] ranges = msg.getRanges();
+		if(points.length < ranges.length * 2)
+			points = new float[ranges.length * 2];
+		float rangeMin = msg.getRangeMin();
+		float rangeMax = msg.getRangeMax();
+		float angle = msg.getAngleMin();
+		float increment = msg.getAngleIncrement();
+		int count = 0;
+		for(int i = 0; i < ranges.length; i++, angle += increment) {
+			float r = ranges[i];
+			if(!(r >= rangeMin && r <= rangeMax))
+				continue;
+			double lx = r * Math.cos(angle);
+			double ly = r * Math.sin(angle);
+			points[2 * count] = (float) (m[0] * lx + m[4] * ly + m[12]);
+			points[2 * count + 1] = (float) (m[1] * lx + m[5] * ly + m[13]);
+			count++;
+		}
+		grid.addHits(points, count);
+	}
+
+	@Override
+	public void onShutdown(VisualizationView view, Node node) {
+		super.onShutdown(view, node);
+		grid.cleanup();
+	}
+
+	@Override
+	public AvailableLayerType getType() {
+		return AvailableLayerType.PersistentScan;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return prop.getValue();
+	}
+}
@@ -20,26 +20,40 @@ package com.nerd3c.rviz_for_android.layers;
 import javax.microedition.khronos.opengles.GL10;
 
 import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.VisualizationView;
 import com.nerd3c.renderer.layer.TfLayer;
 import com.nerd3c.renderer.shapes.Color;
 import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
+import com.nerd3c.rviz_for_android.drawable.Colormap;
 import com.nerd3c.rviz_for_android.drawable.PointCloud2GL;
+import com.nerd3c.rviz_for_android.prop.BoolProperty;
 import com.nerd3c.rviz_for_android.prop.ButtonProperty;
 import com.nerd3c.rviz_for_android.prop.ColorProperty;
 import com.nerd3c.rviz_for_android.prop.FloatProperty;
+import com.nerd3c.rviz_for_android.prop.IntProperty;
 import com.nerd3c.rviz_for_android.prop.LayerWithProperties;
 import com.nerd3c.rviz_for_android.prop.ListProperty;
 import com.nerd3c.rviz_for_android.prop.Property;
 import com.nerd3c.rviz_for_android.prop.Property.PropertyUpdateListener;
+import com.nerd3c.rviz_for_android.prop.ReadOnlyProperty;
+import com.nerd3c.rviz_for_android.prop.ReadOnlyProperty.StatusColor;
 import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.rosjava_geometry.FrameTransformTree;
 
 import sensor_msgs.PointCloud2;
 import android.content.Context;
+import android.os.Handler;
 
 public class PointCloud2Layer extends EditableStatusSubscriberLayer<sensor_msgs.PointCloud2> implements TfLayer, LayerWithProperties {
-	private static final String[] COLOR_MODES = new String[]{"Flat Color", "Channel"};
+	private static final String[] COLOR_MODES = new String[]{"Flat Color", "Channel", "RGB"};
+	private static final String[] RENDER_MODES = new String[]{"Points", "Surface"};
 	private ListProperty propChannelSelect;
+	// Clouds replaced by a newer one before they were drawn, refreshed with every message
+	private final ReadOnlyProperty propDropped = new ReadOnlyProperty("Dropped Clouds", "0", null);
 	private PointCloud2GL pc;
+	private boolean rgbWarning = false;
 	
 	public PointCloud2Layer(GraphName topicName, Camera cam, Context context) {
 		super(topicName, sensor_msgs.PointCloud2._TYPE, cam);
@@ -55,6 +69,14 @@ public class PointCloud2Layer extends EditableStatusSubscriberLayer<sensor_msgs.
 					pc.setChannelColorMode(newval);
 			}
 		});
+		// Colormap for channel values
+		final ListProperty propColormap = new ListProperty("Colormap", Colormap.RAINBOW, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				if(pc != null)
+					pc.setColormap(newval);
+			}
+		}).setList(Colormap.NAMES);
 		// Flat color selection
 		final ColorProperty propColorSelect = new ColorProperty("Flat Color", pc.getColor(), new PropertyUpdateListener<Color>() {
 			@Override
@@ -96,36 +118,123 @@ public class PointCloud2Layer extends EditableStatusSubscriberLayer<sensor_msgs.
 			}
 		});
 		
+		// Percentile auto ranging, updated with every message
+		final BoolProperty propAutoRange = new BoolProperty("Auto Range (2%-98%)", false, new PropertyUpdateListener<Boolean>() {
+			@Override
+			public void onPropertyChanged(Boolean newval) {
+				propCalcRange.setVisible(!newval);
+				propMinRange.setVisible(!newval);
+				propMaxRange.setVisible(!newval);
+				if(pc != null)
+					pc.setAutoRange(newval);
+			}
+		});
+
+		// Voxel grid downsampling
+		final FloatProperty propVoxelSize = new FloatProperty("Voxel Size", 0f, new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				if(pc != null)
+					pc.setVoxelSize(newval);
+			}
+		}).setValidRange(0f, 100f);
+
+		// Number of messages to accumulate in the fixed frame
+		final IntProperty propMaxMessages = new IntProperty("Max Messages", 1, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				if(pc != null)
+					pc.setMaxMessages(newval);
+			}
+		}).setValidRange(1, 1000);
+
+		// Maximum number of points drawn per frame
+		final IntProperty propPointBudget = new IntProperty("Point Budget", 1000000, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				if(pc != null)
+					pc.setPointBudget(newval);
+			}
+		}).setValidRange(1000, 50000000);
+
+		// 16 bit quantized positions
+		final BoolProperty propCompact = new BoolProperty("Compact Positions", false, new PropertyUpdateListener<Boolean>() {
+			@Override
+			public void onPropertyChanged(Boolean newval) {
+				if(pc != null)
+					pc.setCompactPositions(newval);
+			}
+		});
+
+		// Surface rendering of organized clouds
+		final FloatProperty propMaxDepthJump = new FloatProperty("Max Depth Jump", 0.05f, new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				if(pc != null)
+					pc.setMaxDepthJump(newval);
+			}
+		}).setValidRange(0f, 10f);
+		final ListProperty propRenderMode = new ListProperty("Render Mode", 0, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				boolean isSurface = (newval == 1);
+				propMaxDepthJump.setVisible(isSurface);
+				if(pc != null)
+					pc.setSurfaceMode(isSurface);
+			}
+		}).setList(RENDER_MODES);
+		propMaxDepthJump.setVisible(false);
+
 		propColorMode.addUpdateListener(new PropertyUpdateListener<Integer>() {
 			@Override
 			public void onPropertyChanged(Integer newval) {
+				boolean isFlatColor = (newval == 0);
 				boolean isChannelColor = (newval == 1);
-				propColorSelect.setVisible(!isChannelColor);
-				if(!isChannelColor && pc != null) {
-					pc.setFlatColorMode(propColorSelect.getValue());
-				} else {
-					propChannelSelect.setValue(0);
-					pc.setChannelColorMode(0);
+				propColorSelect.setVisible(isFlatColor);
+				if(pc != null) {
+					if(isFlatColor) {
+						pc.setFlatColorMode(propColorSelect.getValue());
+					} else if(isChannelColor) {
+						propChannelSelect.setValue(0);
+						pc.setChannelColorMode(0);
+					} else {
+						pc.setRgbColorMode();
+					}
 				}
-				propCalcRange.setVisible(isChannelColor);
+				boolean isManualRange = isChannelColor && !propAutoRange.getValue();
+				propCalcRange.setVisible(isManualRange);
 				propChannelSelect.setVisible(isChannelColor);
-				propMinRange.setVisible(isChannelColor);
-				propMaxRange.setVisible(isChannelColor);
+				propColormap.setVisible(isChannelColor);
+				propAutoRange.setVisible(isChannelColor);
+				propMinRange.setVisible(isManualRange);
+				propMaxRange.setVisible(isManualRange);
 			}
 		});		
 
+		prop.addSubProperty(propRenderMode);
+		prop.addSubProperty(propMaxDepthJump);
 		prop.addSubProperty(propColorMode);
 		prop.addSubProperty(propChannelSelect);
+		prop.addSubProperty(propColormap);
 		prop.addSubProperty(propColorSelect);
+		prop.addSubProperty(propAutoRange);
 		prop.addSubProperty(propCalcRange);
 		prop.addSubProperty(propMinRange);
 		prop.addSubProperty(propMaxRange);
+		prop.addSubProperty(propVoxelSize);
+		prop.addSubProperty(propMaxMessages);
+		prop.addSubProperty(propPointBudget);
+		prop.addSubProperty(propCompact);
+		propDropped.setTextColor(StatusColor.NO_ICON);
+		prop.addSubProperty(propDropped);
 		
 		// Set the initial visibilities
 		boolean isChannelColor = false;
 		propColorSelect.setVisible(!isChannelColor);
 		propCalcRange.setVisible(isChannelColor);
 		propChannelSelect.setVisible(isChannelColor);
+		propColormap.setVisible(isChannelColor);
+		propAutoRange.setVisible(isChannelColor);
 		propMinRange.setVisible(isChannelColor);
 		propMaxRange.setVisible(isChannelColor);
 	}
@@ -136,8 +245,17 @@ public class PointCloud2Layer extends EditableStatusSubscriberLayer<sensor_msgs.
 		pc.draw(glUnused);
 	}
 
+	@Override
+	public void onStart(ConnectedNode connectedNode, Handler handler, FrameTransformTree frameTransformTree, Camera camera) {
+		super.onStart(connectedNode, handler, frameTransformTree, camera);
+		pc.setFrameTransformTree(frameTransformTree);
+	}
+
 	@Override
 	public GraphName getFrame() {
+		// Accumulated clouds have already been transformed into the fixed frame
+		if(pc.isInFixedFrame())
+			return camera.getFixedFrame();
 		return frame;
 	}
 
@@ -156,6 +274,21 @@ public class PointCloud2Layer extends EditableStatusSubscriberLayer<sensor_msgs.
 		super.onMessageReceived(msg);
 		pc.setData(msg);
 		propChannelSelect.setList(pc.getChannelNames());
+		propDropped.setValue(Integer.toString(pc.getDroppedCount()));
+
+		// Clouds are packed on another thread, so this reflects the previous message
+		if(pc.isMissingRgb() != rgbWarning) {
+			rgbWarning = !rgbWarning;
+			statusController.setFrameChecking(!rgbWarning);
+			if(rgbWarning)
+				statusController.setStatus("No rgb or rgba field, drawing a flat color", StatusColor.WARN);
+		}
+	}
+
+	@Override
+	public void onShutdown(VisualizationView view, Node node) {
+		super.onShutdown(view, node);
+		pc.cleanup();
 	}
 
 	@Override
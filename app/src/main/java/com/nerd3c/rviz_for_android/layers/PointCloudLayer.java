@@ -16,14 +16,16 @@
  */
 package com.nerd3c.rviz_for_android.layers;
 
-import geometry_msgs.Point32;
+import java.util.List;
 
 import javax.microedition.khronos.opengles.GL10;
 
 import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.VisualizationView;
 import com.nerd3c.renderer.layer.TfLayer;
 import com.nerd3c.renderer.shapes.Color;
 import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
+import com.nerd3c.rviz_for_android.drawable.Colormap;
 import com.nerd3c.rviz_for_android.drawable.PCShaders;
 import com.nerd3c.rviz_for_android.drawable.PointCloudGL;
 import com.nerd3c.rviz_for_android.prop.BoolProperty;
@@ -36,6 +38,7 @@ import com.nerd3c.rviz_for_android.prop.Property.PropertyUpdateListener;
 import com.nerd3c.rviz_for_android.prop.StringProperty;
 import com.nerd3c.rviz_for_android.prop.StringProperty.StringPropertyValidator;
 import org.ros.namespace.GraphName;
+import org.ros.node.Node;
 
 import sensor_msgs.PointCloud;
 
@@ -43,6 +46,7 @@ public class PointCloudLayer extends EditableStatusSubscriberLayer<sensor_msgs.P
 
 	private int pointCount = -1;
 	private PointCloudGL pc;
+	private List<String> channelNames;
 
 	public PointCloudLayer(Camera cam, GraphName topicName) {
 		super(topicName, sensor_msgs.PointCloud._TYPE, cam);
@@ -69,6 +73,13 @@ public class PointCloudLayer extends EditableStatusSubscriberLayer<sensor_msgs.P
 				return true;
 			}
 		});
+		// Colormap used by the gradient and channel color modes
+		final ListProperty propColormap = new ListProperty("Colormap", Colormap.RAINBOW, new PropertyUpdateListener<Integer>() {
+			@Override
+			public void onPropertyChanged(Integer newval) {
+				pc.setColormap(newval);
+			}
+		}).setList(Colormap.NAMES);
 		// Flat color selection property
 		final ColorProperty propFlatColor = new ColorProperty("Flat Color", new Color(1f, 1f, 1f, 1f), new PropertyUpdateListener<Color>() {
 			@Override
@@ -124,20 +135,29 @@ public class PointCloudLayer extends EditableStatusSubscriberLayer<sensor_msgs.P
 					propMaxRange.setVisible(false);
 				}
 				propFlatColor.setVisible(PCShaders.ColorMode.values()[newval] == PCShaders.ColorMode.FLAT_COLOR);
+				propColormap.setVisible(PCShaders.usesColormap(PCShaders.ColorMode.values()[newval]));
 			}
 		}).setList(PCShaders.shaderNames);
 		
 		propChannels.setVisible(PCShaders.ColorMode.values()[propChannels.getValue()] == PCShaders.ColorMode.CHANNEL);
 		propFlatColor.setVisible(PCShaders.ColorMode.values()[propChannels.getValue()] == PCShaders.ColorMode.FLAT_COLOR);
+		propColormap.setVisible(PCShaders.usesColormap(PCShaders.ColorMode.values()[propChannels.getValue()]));
 		propMinRange.setVisible(!propEnableAutorange.getValue());
 		propMaxRange.setVisible(!propEnableAutorange.getValue());
 		
 		prop.addSubProperty(propColorMode);
 		prop.addSubProperty(propChannels);
+		prop.addSubProperty(propColormap);
 		prop.addSubProperty(propFlatColor);
 		prop.addSubProperty(propEnableAutorange);
 		prop.addSubProperty(propMinRange);
 		prop.addSubProperty(propMaxRange);
+		prop.addSubProperty(new BoolProperty("Compact Positions", false, new PropertyUpdateListener<Boolean>() {
+			@Override
+			public void onPropertyChanged(Boolean newval) {
+				pc.setCompactPositions(newval);
+			}
+		}));
 		
 		pc.setColor(propFlatColor.getValue());
 	}
@@ -172,15 +192,20 @@ public class PointCloudLayer extends EditableStatusSubscriberLayer<sensor_msgs.P
 		super.onMessageReceived(msg);
 		
 		pointCount = msg.getPoints().size();
-		float[] vertices = new float[pointCount * 3];
-		int i = 0;
-		for(Point32 p : msg.getPoints()) {
-			vertices[i++] = p.getX();
-			vertices[i++] = p.getY();
-			vertices[i++] = p.getZ();
+		pc.setData(msg.getPoints(), msg.getChannels());
+
+		// The channel name list is only replaced when the names change
+		List<String> names = pc.getChannelNames();
+		if(names != channelNames) {
+			channelNames = names;
+			prop.<ListProperty> getProperty("Channels").setList(names);
 		}
-		pc.setData(vertices, msg.getChannels());
-		prop.<ListProperty> getProperty("Channels").setList(pc.getChannelNames());
+	}
+
+	@Override
+	public void onShutdown(VisualizationView view, Node node) {
+		super.onShutdown(view, node);
+		pc.cleanup();
 	}
 
 	@Override
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.layers;
+
+import java.util.List;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.VisualizationView;
+import com.nerd3c.renderer.layer.TfLayer;
+import com.nerd3c.renderer.shapes.Color;
+import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
+import com.nerd3c.rviz_for_android.drawable.ArrowBatchGL;
+import com.nerd3c.rviz_for_android.prop.ColorProperty;
+import com.nerd3c.rviz_for_android.prop.FloatProperty;
+import com.nerd3c.rviz_for_android.prop.LayerWithProperties;
+import com.nerd3c.rviz_for_android.prop.Property;
+import com.nerd3c.rviz_for_android.prop.Property.PropertyUpdateListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.Node;
+
+import geometry_msgs.Pose;
+import geometry_msgs.PoseArray;
+
+public class PoseArrayLayer extends EditableStatusSubscriberLayer<geometry_msgs.PoseArray> implements TfLayer, LayerWithProperties {
+	private ArrowBatchGL arrows;
+	private volatile List<Pose> lastPoses;
+
+	public PoseArrayLayer(GraphName topicName, Camera cam) {
+		super(topicName, geometry_msgs.PoseArray._TYPE, cam);
+
+		arrows = new ArrowBatchGL(cam);
+		arrows.setColor(new Color(1f, 0.1f, 0f, 1f));
+
+		prop.addSubProperty(new ColorProperty("Color", arrows.getColor(), new PropertyUpdateListener<Color>() {
+			@Override
+			public void onPropertyChanged(Color newval) {
+				arrows.setColor(newval);
+			}
+		}));
+		prop.addSubProperty(new FloatProperty("Arrow Length", arrows.getLength(), new PropertyUpdateListener<Float>() {
+			@Override
+			public void onPropertyChanged(Float newval) {
+				arrows.setLength(newval);
+				// Rebake the current poses at the new length
+				List<Pose> poses = lastPoses;
+				if(poses != null)
+					arrows.setData(poses);
+			}
+		}).setValidRange(0.001f, 100f));
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		super.draw(glUnused);
+		arrows.draw(glUnused);
+	}
+
+	@Override
+	public GraphName getFrame() {
+		return frame;
+	}
+
+	@Override
+	public Property<?> getProperties() {
+		return prop;
+	}
+
+	@Override
+	protected String getMessageFrameId(PoseArray msg) {
+		return msg.getHeader().getFrameId();
+	}
+
+	@Override
+	public void onMessageReceived(PoseArray msg) {
+		super.onMessageReceived(msg);
+		lastPoses = msg.getPoses();
+		arrows.setData(lastPoses);
+	}
+
+	@Override
+	public void onShutdown(VisualizationView view, Node node) {
+		super.onShutdown(view, node);
+		arrows.cleanup();
+	}
+
+	@Override
+	public AvailableLayerType getType() {
+		return AvailableLayerType.PoseArray;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return prop.getValue();
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.layers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import com.nerd3c.renderer.AvailableFrameTracker.TransformUpdateListener;
+import com.nerd3c.renderer.Camera;
+import com.nerd3c.renderer.VisualizationView;
+import com.nerd3c.renderer.layer.TfLayer;
+import com.nerd3c.renderer.shapes.Color;
+import com.nerd3c.rviz_for_android.MainActivity.AvailableLayerType;
+import com.nerd3c.rviz_for_android.drawable.RangeBatchGL;
+import com.nerd3c.rviz_for_android.prop.ColorProperty;
+import com.nerd3c.rviz_for_android.prop.LayerWithProperties;
+import com.nerd3c.rviz_for_android.prop.Property;
+import com.nerd3c.rviz_for_android.prop.Property.PropertyUpdateListener;
+import com.nerd3c.rviz_for_android.prop.StringProperty;
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.topic.Subscriber;
+import org.ros.rosjava_geometry.FrameTransform;
+import org.ros.rosjava_geometry.FrameTransformTree;
+
+import sensor_msgs.Range;
+import android.os.Handler;
+
+/**
+ * Displays the cones of any number of Range sensors with one subscriber per topic and one draw call. Sensors are told apart by their frame ID, so many sensors can share a topic, and more topics can be listed in the Extra Topics property.
+ *
+ * The cones are kept in the fixed frame. Each sensor's transform is looked up once per TF message instead of once per rendered frame, and a new reading only rewrites that sensor's cone.
+ */
+public class RangeLayer extends EditableStatusSubscriberLayer<sensor_msgs.Range> implements TfLayer, LayerWithProperties {
+	private RangeBatchGL cones;
+	private FrameTransformTree frameTransformTree;
+
+	// Sensor frame IDs and their slots in the batch, guarded by slots
+	private final Map<String, Integer> slots = new HashMap<String, Integer>();
+	private final List<String> sensorFrames = new ArrayList<String>();
+	private final float[] matrix = new float[16];
+
+	private String extraTopics = "";
+	private final List<Subscriber<sensor_msgs.Range>> extraSubs = new ArrayList<Subscriber<sensor_msgs.Range>>();
+	private final MessageListener<sensor_msgs.Range> extraListener = new MessageListener<sensor_msgs.Range>() {
+		@Override
+		public void onNewMessage(Range msg) {
+			onMessageReceived(msg);
+		}
+	};
+
+	private final TransformUpdateListener tfListener = new TransformUpdateListener() {
+		@Override
+		public void informTransformsUpdated() {
+			synchronized(slots) {
+				for(int i = 0; i < sensorFrames.size(); i++)
+					updateTransform(i, sensorFrames.get(i));
+			}
+		}
+	};
+
+	public RangeLayer(GraphName topicName, Camera cam) {
+		super(topicName, sensor_msgs.Range._TYPE, cam);
+
+		cones = new RangeBatchGL(cam);
+		cones.setColor(new Color(1f, 1f, 1f, 0.5f));
+
+		prop.addSubProperty(new StringProperty("Extra Topics", extraTopics, new PropertyUpdateListener<String>() {
+			@Override
+			public void onPropertyChanged(String newval) {
+				if(!newval.equals(extraTopics)) {
+					extraTopics = newval;
+					initExtraSubscribers();
+				}
+			}
+		}));
+		prop.addSubProperty(new ColorProperty("Color", cones.getColor(), new PropertyUpdateListener<Color>() {
+			@Override
+			public void onPropertyChanged(Color newval) {
+				cones.setColor(newval);
+			}
+		}));
+	}
+
+	@Override
+	public void onStart(ConnectedNode connectedNode, Handler handler, FrameTransformTree frameTransformTree, Camera camera) {
+		super.onStart(connectedNode, handler, frameTransformTree, camera);
+		this.frameTransformTree = frameTransformTree;
+		camera.getFrameTracker().addUpdateListener(tfListener);
+		initExtraSubscribers();
+	}
+
+	/**
+	 * Subscribe to each topic in the comma separated Extra Topics list
+	 */
+	private void initExtraSubscribers() {
+		for(Subscriber<sensor_msgs.Range> sub : extraSubs)
+			sub.shutdown();
+		extraSubs.clear();
+		if(connectedNode == null)
+			return;
+		for(String topic : extraTopics.split(",")) {
+			topic = topic.trim();
+			if(topic.length() == 0)
+				continue;
+			Subscriber<sensor_msgs.Range> sub = connectedNode.newSubscriber(topic, sensor_msgs.Range._TYPE);
+			sub.addMessageListener(extraListener);
+			extraSubs.add(sub);
+		}
+	}
+
+	/**
+	 * Look up one sensor's transform into the fixed frame. Must hold the slots lock.
+	 */
+	private void updateTransform(int slot, String sensorFrame) {
+		GraphName fixedFrame = camera.getFixedFrame();
+		FrameTransform ft = null;
+		if(frameTransformTree != null && fixedFrame != null)
+			ft = frameTransformTree.transform(GraphName.of(sensorFrame), fixedFrame);
+		if(ft == null) {
+			cones.setTransform(slot, null);
+			return;
+		}
+		double[] m = ft.getTransform().toMatrix();
+		for(int i = 0; i < 16; i++)
+			matrix[i] = (float) m[i];
+		cones.setTransform(slot, matrix);
+	}
+
+	@Override
+	public void draw(GL10 glUnused) {
+		super.draw(glUnused);
+		cones.draw(glUnused);
+	}
+
+	@Override
+	public GraphName getFrame() {
+		// Cones are already in the fixed frame
+		return camera == null ? null : camera.getFixedFrame();
+	}
+
+	@Override
+	public Property<?> getProperties() {
+		return prop;
+	}
+
+	@Override
+	protected String getMessageFrameId(Range msg) {
+		return msg.getHeader().getFrameId();
+	}
+
+	@Override
+	public void onMessageReceived(Range msg) {
+		super.onMessageReceived(msg);
+		String sensorFrame = msg.getHeader().getFrameId();
+		int slot;
+		synchronized(slots) {
+			Integer existing = slots.get(sensorFrame);
+			if(existing == null) {
+				slot = cones.addSlot();
+				slots.put(sensorFrame, slot);
+				sensorFrames.add(sensorFrame);
+				updateTransform(slot, sensorFrame);
+			} else {
+				slot = existing;
+			}
+		}
+
+		float range = msg.getRange();
+		if(!(range >= msg.getMinRange() && range <= msg.getMaxRange()))
+			range = 0f;
+		cones.setRange(slot, range, msg.getFieldOfView());
+	}
+
+	@Override
+	public void onShutdown(VisualizationView view, Node node) {
+		super.onShutdown(view, node);
+		if(camera != null)
+			camera.getFrameTracker().removeUpdateListener(tfListener);
+		for(Subscriber<sensor_msgs.Range> sub : extraSubs)
+			sub.shutdown();
+		extraSubs.clear();
+		cones.cleanup();
+	}
+
+	@Override
+	public AvailableLayerType getType() {
+		return AvailableLayerType.Range;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return prop.getValue();
+	}
+}
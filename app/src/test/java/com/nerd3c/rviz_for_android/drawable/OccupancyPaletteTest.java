@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class OccupancyPaletteTest {
+	// Occupancy grids store unknown cells as the signed byte -1, which the tiles hold and the shader reads as 255
+	private static final int UNKNOWN = ((byte) -1) & 0xff;
+
+	private static int[] sample(int scheme, int value) {
+		int[] rgba = new int[4];
+		OccupancyPalette.sample(scheme, value, rgba);
+		return rgba;
+	}
+
+	private static void assertColor(int r, int g, int b, int a, int[] rgba) {
+		assertEquals(r, rgba[0]);
+		assertEquals(g, rgba[1]);
+		assertEquals(b, rgba[2]);
+		assertEquals(a, rgba[3]);
+	}
+
+	@Test
+	public void unknownIsReadAs255() {
+		assertEquals(255, UNKNOWN);
+		assertColor(127, 127, 127, 255, sample(OccupancyPalette.MAP, UNKNOWN));
+		assertColor(0x70, 0x89, 0x86, 255, sample(OccupancyPalette.COSTMAP, UNKNOWN));
+		assertColor(255, 255, 255, 255, sample(OccupancyPalette.RAW, UNKNOWN));
+	}
+
+	@Test
+	public void mapSchemeIsWhiteFreeBlackOccupied() {
+		assertColor(255, 255, 255, 255, sample(OccupancyPalette.MAP, 0));
+		assertColor(0, 0, 0, 255, sample(OccupancyPalette.MAP, 100));
+		assertColor(127, 127, 127, 255, sample(OccupancyPalette.MAP, 50));
+	}
+
+	@Test
+	public void costmapFreeSpaceIsTransparent() {
+		assertEquals(0, sample(OccupancyPalette.COSTMAP, 0)[3]);
+		for(int value = 1; value < 256; value++)
+			assertEquals("value " + value, 255, sample(OccupancyPalette.COSTMAP, value)[3]);
+	}
+
+	@Test
+	public void costmapObstaclesHaveTheirOwnColors() {
+		assertColor(0, 255, 255, 255, sample(OccupancyPalette.COSTMAP, 99));
+		assertColor(255, 0, 255, 255, sample(OccupancyPalette.COSTMAP, 100));
+	}
+
+	@Test
+	public void costmapCostsRunFromBlueToRed() {
+		int[] low = sample(OccupancyPalette.COSTMAP, 1);
+		int[] high = sample(OccupancyPalette.COSTMAP, 98);
+		assertTrue(low[2] > low[0]);
+		assertTrue(high[0] > high[2]);
+		for(int value = 2; value <= 98; value++)
+			assertTrue(sample(OccupancyPalette.COSTMAP, value)[0] >= sample(OccupancyPalette.COSTMAP, value - 1)[0]);
+	}
+
+	@Test
+	public void rawSchemeIsGray() {
+		assertColor(42, 42, 42, 255, sample(OccupancyPalette.RAW, 42));
+	}
+
+	@Test
+	public void schemeRowsAreSeparateTexels() {
+		for(int scheme = 0; scheme < OccupancyPalette.NAMES.length; scheme++) {
+			float row = OccupancyPalette.getRow(scheme);
+			assertTrue(row > 0f && row < 1f);
+			if(scheme > 0)
+				assertTrue(row > OccupancyPalette.getRow(scheme - 1));
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+import org.ros.message.MessageFactory;
+import org.ros.node.NodeConfiguration;
+
+import sensor_msgs.PointCloud2;
+import sensor_msgs.PointField;
+
+public class PointCloud2PackerTest {
+	private static final float EPSILON = 1e-6f;
+	// Fields are read at an odd position to make sure nothing assumes aligned data
+	private static final int POS = 3;
+
+	private final MessageFactory messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory();
+
+	private static ByteBuffer buffer(ByteOrder order) {
+		return ByteBuffer.allocate(16).order(order);
+	}
+
+	private static void checkEveryDatatype(ByteOrder order) {
+		ByteBuffer b = buffer(order);
+		b.put(POS, (byte) -5);
+		assertEquals(-5f, PointCloud2Packer.readField(b, POS, PointField.INT8), EPSILON);
+
+		b.put(POS, (byte) 250);
+		assertEquals(250f, PointCloud2Packer.readField(b, POS, PointField.UINT8), EPSILON);
+
+		b.putShort(POS, (short) -30000);
+		assertEquals(-30000f, PointCloud2Packer.readField(b, POS, PointField.INT16), EPSILON);
+
+		b.putShort(POS, (short) 60000);
+		assertEquals(60000f, PointCloud2Packer.readField(b, POS, PointField.UINT16), EPSILON);
+
+		b.putInt(POS, -2000000000);
+		assertEquals(-2000000000f, PointCloud2Packer.readField(b, POS, PointField.INT32), EPSILON);
+
+		b.putInt(POS, (int) 4000000000L);
+		assertEquals(4000000000f, PointCloud2Packer.readField(b, POS, PointField.UINT32), EPSILON);
+
+		b.putFloat(POS, 1.5f);
+		assertEquals(1.5f, PointCloud2Packer.readField(b, POS, PointField.FLOAT32), EPSILON);
+
+		b.putDouble(POS, -2.25);
+		assertEquals(-2.25f, PointCloud2Packer.readField(b, POS, PointField.FLOAT64), EPSILON);
+
+		assertEquals(0f, PointCloud2Packer.readField(b, POS, (byte) 0), EPSILON);
+	}
+
+	@Test
+	public void readsEveryDatatypeLittleEndian() {
+		checkEveryDatatype(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Test
+	public void readsEveryDatatypeBigEndian() {
+		checkEveryDatatype(ByteOrder.BIG_ENDIAN);
+	}
+
+	@Test
+	public void bigEndianBytesAreNotReadAsLittleEndian() {
+		ByteBuffer b = buffer(ByteOrder.BIG_ENDIAN);
+		b.putShort(POS, (short) 0x0102);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(0x0201, PointCloud2Packer.readField(b, POS, PointField.UINT16), EPSILON);
+	}
+
+	private PointField field(String name, int offset, byte datatype) {
+		PointField f = messageFactory.newFromType(PointField._TYPE);
+		f.setName(name);
+		f.setOffset(offset);
+		f.setDatatype(datatype);
+		f.setCount(1);
+		return f;
+	}
+
+	// Points of 16 bytes with a field of a different datatype at each non-zero offset, and 8 bytes of padding after every row
+	private static final int POINT_STEP = 16;
+	private static final int ROW_STEP = 2 * POINT_STEP + 8;
+
+	private PointCloud2 paddedCloud(ByteOrder order, int rows, int dataRows) {
+		List<PointField> fields = new ArrayList<PointField>();
+		fields.add(field("intensity", 8, PointField.FLOAT64));
+		fields.add(field("x", 2, PointField.INT16));
+		fields.add(field("y", 4, PointField.FLOAT32));
+		fields.add(field("z", 1, PointField.UINT8));
+
+		ByteBuffer data = ByteBuffer.allocate(dataRows * ROW_STEP).order(order);
+		for(int i = 0; i < 2 * dataRows; i++) {
+			int pos = (i / 2) * ROW_STEP + (i % 2) * POINT_STEP;
+			data.putShort(pos + 2, (short) -i);
+			data.putFloat(pos + 4, i + 0.5f);
+			data.put(pos + 1, (byte) (200 + i));
+			data.putDouble(pos + 8, 10.0 * i);
+		}
+		// Padding the packer must skip
+		for(int row = 0; row < dataRows; row++)
+			for(int p = 2 * POINT_STEP; p < ROW_STEP; p++)
+				data.put(row * ROW_STEP + p, (byte) 0x7f);
+
+		PointCloud2 msg = messageFactory.newFromType(PointCloud2._TYPE);
+		msg.setFields(fields);
+		msg.setIsBigendian(order == ByteOrder.BIG_ENDIAN);
+		msg.setWidth(2);
+		msg.setHeight(rows);
+		msg.setPointStep(POINT_STEP);
+		msg.setRowStep(ROW_STEP);
+		msg.setData(ChannelBuffers.wrappedBuffer(data.array()));
+		return msg;
+	}
+
+	private static void checkPoints(FloatBuffer packed, int count) {
+		for(int i = 0; i < count; i++) {
+			int base = i * PointCloud2Packer.FLOATS_PER_POINT;
+			assertEquals(-i, packed.get(base), EPSILON);
+			assertEquals(i + 0.5f, packed.get(base + 1), EPSILON);
+			assertEquals(200 + i, packed.get(base + 2), EPSILON);
+			assertEquals(10f * i, packed.get(base + 3), EPSILON);
+		}
+	}
+
+	@Test
+	public void packSkipsRowPaddingLittleEndian() {
+		PointCloud2Packer packer = new PointCloud2Packer();
+		PointCloud2 msg = paddedCloud(ByteOrder.LITTLE_ENDIAN, 3, 3);
+		assertEquals(6, packer.pack(msg, 0, false, null));
+		checkPoints(packer.getFloatBuffer(), 6);
+	}
+
+	@Test
+	public void packSkipsRowPaddingBigEndian() {
+		PointCloud2Packer packer = new PointCloud2Packer();
+		PointCloud2 msg = paddedCloud(ByteOrder.BIG_ENDIAN, 3, 3);
+		assertEquals(6, packer.pack(msg, 0, false, null));
+		checkPoints(packer.getFloatBuffer(), 6);
+	}
+
+	@Test
+	public void packRecordsTheRangeOfEveryField() {
+		PointCloud2Packer packer = new PointCloud2Packer();
+		packer.pack(paddedCloud(ByteOrder.LITTLE_ENDIAN, 3, 3), 0, false, null);
+		ChannelStatistics stats = packer.getStatistics();
+		assertEquals(-5f, stats.getMin(0), EPSILON);
+		assertEquals(0f, stats.getMax(0), EPSILON);
+		assertEquals(0.5f, stats.getMin(1), EPSILON);
+		assertEquals(5.5f, stats.getMax(1), EPSILON);
+		assertEquals(200f, stats.getMin(2), EPSILON);
+		assertEquals(205f, stats.getMax(2), EPSILON);
+		assertEquals(0f, stats.getMin(ChannelStatistics.CHANNEL), EPSILON);
+		assertEquals(50f, stats.getMax(ChannelStatistics.CHANNEL), EPSILON);
+	}
+
+	@Test
+	public void packOnlyReadsRowsPresentInTheData() {
+		PointCloud2Packer packer = new PointCloud2Packer();
+		PointCloud2 msg = paddedCloud(ByteOrder.LITTLE_ENDIAN, 3, 2);
+		assertEquals(4, packer.pack(msg, 0, false, null));
+		checkPoints(packer.getFloatBuffer(), 4);
+	}
+}
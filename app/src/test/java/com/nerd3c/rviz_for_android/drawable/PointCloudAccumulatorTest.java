@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The GL calls of the accumulator do nothing on the host, these tests only check which clouds are live and where they start in the buffer
+ */
+public class PointCloudAccumulatorTest {
+	private static final int STRIDE = PointCloud2Packer.STRIDE;
+
+	/**
+	 * Records the clouds the accumulator hands out for drawing
+	 */
+	private static class RecordingLod extends PointCloudLod {
+		final List<PointOctree> trees = new ArrayList<PointOctree>();
+		final List<Integer> offsets = new ArrayList<Integer>();
+
+		@Override
+		public void add(PointOctree tree, int offset) {
+			trees.add(tree);
+			offsets.add(offset);
+		}
+	}
+
+	private final PointOctree.Builder builder = new PointOctree.Builder();
+
+	private PointOctree tree() {
+		FloatBuffer point = FloatBuffer.wrap(new float[] { 0f, 0f, 0f, 0f });
+		return builder.build(point, 1);
+	}
+
+	private static ByteBuffer data(int points) {
+		return ByteBuffer.allocateDirect(points * STRIDE).order(ByteOrder.nativeOrder());
+	}
+
+	private static void assertLive(PointCloudAccumulator accumulator, PointOctree[] trees, int[] offsets) {
+		RecordingLod lod = new RecordingLod();
+		accumulator.addTo(lod);
+		assertEquals(trees.length, lod.trees.size());
+		for(int i = 0; i < trees.length; i++) {
+			assertSame(trees[i], lod.trees.get(i));
+			assertEquals(offsets[i], (int) lod.offsets.get(i));
+		}
+	}
+
+	@Test
+	public void cloudsAreAppendedAfterEachOther() {
+		PointCloudAccumulator accumulator = new PointCloudAccumulator();
+		accumulator.setMaxMessages(3);
+		PointOctree a = tree(), b = tree(), c = tree();
+		accumulator.append(data(10), 10, STRIDE, a);
+		accumulator.append(data(10), 10, STRIDE, b);
+		accumulator.append(data(10), 10, STRIDE, c);
+		assertLive(accumulator, new PointOctree[] { a, b, c }, new int[] { 0, 10, 20 });
+	}
+
+	@Test
+	public void oldestCloudIsEvictedWhenTheRingIsFull() {
+		PointCloudAccumulator accumulator = new PointCloudAccumulator();
+		accumulator.setMaxMessages(3);
+		PointOctree a = tree(), b = tree(), c = tree(), d = tree();
+		accumulator.append(data(10), 10, STRIDE, a);
+		accumulator.append(data(10), 10, STRIDE, b);
+		accumulator.append(data(10), 10, STRIDE, c);
+		accumulator.append(data(10), 10, STRIDE, d);
+		assertLive(accumulator, new PointOctree[] { b, c, d }, new int[] { 10, 20, 0 });
+	}
+
+	@Test
+	public void wrappingEvictsOnlyTheCloudsItOverwrites() {
+		PointCloudAccumulator accumulator = new PointCloudAccumulator();
+		accumulator.setMaxMessages(3);
+		PointOctree a = tree(), b = tree(), c = tree(), d = tree(), e = tree();
+		// The buffer is sized for three clouds of the first size, 30 points
+		accumulator.append(data(10), 10, STRIDE, a);
+		accumulator.append(data(8), 8, STRIDE, b);
+		accumulator.append(data(8), 8, STRIDE, c);
+
+		// Doesn't fit after c, wraps to the start and overwrites a
+		accumulator.append(data(8), 8, STRIDE, d);
+		assertLive(accumulator, new PointOctree[] { b, c, d }, new int[] { 10, 18, 0 });
+
+		// Overwrites the start of b
+		accumulator.append(data(8), 8, STRIDE, e);
+		assertLive(accumulator, new PointOctree[] { c, d, e }, new int[] { 18, 0, 8 });
+	}
+
+	@Test
+	public void largerCloudResetsTheHistory() {
+		PointCloudAccumulator accumulator = new PointCloudAccumulator();
+		accumulator.setMaxMessages(2);
+		PointOctree a = tree(), b = tree(), c = tree();
+		accumulator.append(data(10), 10, STRIDE, a);
+		accumulator.append(data(10), 10, STRIDE, b);
+		accumulator.append(data(15), 15, STRIDE, c);
+		assertLive(accumulator, new PointOctree[] { c }, new int[] { 0 });
+	}
+
+	@Test
+	public void strideChangeResetsTheHistory() {
+		PointCloudAccumulator accumulator = new PointCloudAccumulator();
+		accumulator.setMaxMessages(2);
+		PointOctree a = tree(), b = tree();
+		accumulator.append(data(10), 10, STRIDE, a);
+		accumulator.append(data(10), 10, PointCloud2Packer.COMPACT_STRIDE, b);
+		assertLive(accumulator, new PointOctree[] { b }, new int[] { 0 });
+	}
+
+	@Test
+	public void emptyCloudsAreIgnored() {
+		PointCloudAccumulator accumulator = new PointCloudAccumulator();
+		accumulator.setMaxMessages(2);
+		PointOctree a = tree();
+		accumulator.append(data(10), 10, STRIDE, a);
+		accumulator.append(data(0), 0, STRIDE, tree());
+		assertLive(accumulator, new PointOctree[] { a }, new int[] { 0 });
+	}
+
+	@Test
+	public void clearDropsEveryCloud() {
+		PointCloudAccumulator accumulator = new PointCloudAccumulator();
+		accumulator.setMaxMessages(2);
+		accumulator.append(data(10), 10, STRIDE, tree());
+		accumulator.clear();
+		assertLive(accumulator, new PointOctree[0], new int[0]);
+
+		PointOctree b = tree();
+		accumulator.append(data(10), 10, STRIDE, b);
+		assertLive(accumulator, new PointOctree[] { b }, new int[] { 0 });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void atLeastOneMessageIsKept() {
+		new PointCloudAccumulator().setMaxMessages(0);
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+
+import org.junit.Test;
+
+/**
+ * With an identity MVP matrix the view frustum is the cube from -1 to 1 on every axis. The GL calls do nothing on the host, so only the number of points drawn is checked.
+ */
+public class PointCloudLodTest {
+	private static final float[] IDENTITY = new float[] { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1 };
+	private static final int NO_BUDGET = Integer.MAX_VALUE;
+
+	private static int draw(PointOctree tree, int budget) {
+		PointCloudLod lod = new PointCloudLod();
+		lod.begin(IDENTITY, IDENTITY);
+		lod.add(tree, 0);
+		return lod.draw(0, budget, -1, false);
+	}
+
+	private static PointOctree build(FloatBuffer points, int count) {
+		return new PointOctree.Builder().build(points, count);
+	}
+
+	@Test
+	public void visibleCloudIsDrawnWhole() {
+		PointOctree tree = build(PointOctreeTest.cube(20, -0.9f, -0.9f, -0.9f, 0.09f), 8000);
+		assertEquals(8000, draw(tree, NO_BUDGET));
+	}
+
+	@Test
+	public void leavesOutsideTheFrustumAreCulled() {
+		// One cube inside the frustum and one well outside it along x, each larger than a leaf
+		FloatBuffer inside = PointOctreeTest.cube(16, 0f, 0f, 0f, 0.05f);
+		FloatBuffer outside = PointOctreeTest.cube(16, -4f, 0f, 0f, 0.05f);
+		FloatBuffer both = FloatBuffer.allocate(inside.capacity() + outside.capacity());
+		both.put(inside).put(outside);
+		PointOctree tree = build(both, 2 * 4096);
+
+		assertEquals(4096, draw(tree, NO_BUDGET));
+	}
+
+	@Test
+	public void cloudBehindTheCameraIsCulled() {
+		PointOctree tree = build(PointOctreeTest.cube(10, 0f, 0f, 2f, 0.1f), 1000);
+		assertEquals(0, draw(tree, NO_BUDGET));
+	}
+
+	@Test
+	public void budgetLimitsThePointsDrawn() {
+		PointOctree tree = build(PointOctreeTest.cube(20, -0.9f, -0.9f, -0.9f, 0.09f), 8000);
+		int leaves = 0;
+		for(int node = 0; node < tree.nodeCount; node++)
+			if(tree.isLeaf(node))
+				leaves++;
+
+		// Every leaf's share is rounded up, so the budget can be exceeded by at most one point per leaf
+		int drawn = draw(tree, 1000);
+		assertTrue("drew " + drawn, drawn >= 1000 && drawn <= 1000 + leaves);
+	}
+
+	@Test
+	public void budgetIsSharedBetweenTrees() {
+		PointOctree a = build(PointOctreeTest.cube(20, -0.9f, -0.9f, -0.9f, 0.045f), 8000);
+		PointOctree b = build(PointOctreeTest.cube(20, 0f, 0f, 0f, 0.045f), 8000);
+		PointCloudLod lod = new PointCloudLod();
+		lod.begin(IDENTITY, IDENTITY);
+		lod.add(a, 0);
+		lod.add(b, 8000);
+		assertEquals(16000, lod.draw(0, NO_BUDGET, -1, false));
+
+		lod.begin(IDENTITY, IDENTITY);
+		lod.add(a, 0);
+		lod.add(b, 8000);
+		int drawn = lod.draw(0, 2000, -1, false);
+		assertTrue("drew " + drawn, drawn >= 2000 && drawn < 2200);
+	}
+}
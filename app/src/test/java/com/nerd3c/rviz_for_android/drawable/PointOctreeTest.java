@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+
+import org.junit.Test;
+
+public class PointOctreeTest {
+	private static final int FPP = PointCloud2Packer.FLOATS_PER_POINT;
+
+	/**
+	 * A cube of n^3 points with the given spacing, the channel holds the index of each point
+	 */
+	static FloatBuffer cube(int n, float originX, float originY, float originZ, float spacing) {
+		float[] values = new float[n * n * n * FPP];
+		int i = 0;
+		for(int x = 0; x < n; x++) {
+			for(int y = 0; y < n; y++) {
+				for(int z = 0; z < n; z++) {
+					values[i * FPP] = originX + x * spacing;
+					values[i * FPP + 1] = originY + y * spacing;
+					values[i * FPP + 2] = originZ + z * spacing;
+					values[i * FPP + 3] = i;
+					i++;
+				}
+			}
+		}
+		return FloatBuffer.wrap(values);
+	}
+
+	@Test
+	public void everyPointEndsUpInExactlyOneLeaf() {
+		FloatBuffer points = cube(20, -1f, -1f, -1f, 0.1f);
+		PointOctree tree = new PointOctree.Builder().build(points, 8000);
+		assertEquals(8000, tree.getPointCount());
+
+		int leaves = 0;
+		for(int node = 0; node < tree.nodeCount; node++) {
+			if(!tree.isLeaf(node))
+				continue;
+			leaves++;
+			assertTrue(tree.count[node] <= PointOctree.LEAF_SIZE);
+		}
+		assertTrue("a cloud larger than a leaf must be split", leaves > 1);
+		// Leaves are visited in buffer order, so they must tile the buffer without gaps
+		assertEquals(8000, checkRanges(tree, 0, 0));
+
+		// Reordering only moves points around
+		boolean[] seen = new boolean[8000];
+		for(int i = 0; i < 8000; i++)
+			seen[(int) points.get(i * FPP + 3)] = true;
+		for(boolean s : seen)
+			assertTrue(s);
+	}
+
+	/**
+	 * Walk the tree depth first, checking every node's children cover its range in order
+	 */
+	private static int checkRanges(PointOctree tree, int node, int expectedStart) {
+		assertEquals(expectedStart, tree.start[node]);
+		if(tree.isLeaf(node))
+			return expectedStart + tree.count[node];
+		int next = expectedStart;
+		for(int c = tree.firstChild[node]; c < tree.firstChild[node] + tree.childCount[node]; c++)
+			next = checkRanges(tree, c, next);
+		assertEquals(expectedStart + tree.count[node], next);
+		return next;
+	}
+
+	@Test
+	public void pointsLieInsideTheBoundsOfTheirLeaf() {
+		FloatBuffer points = cube(20, 3f, -2f, 0.5f, 0.25f);
+		PointOctree tree = new PointOctree.Builder().build(points, 8000);
+		for(int node = 0; node < tree.nodeCount; node++) {
+			if(!tree.isLeaf(node))
+				continue;
+			for(int i = tree.start[node]; i < tree.start[node] + tree.count[node]; i++) {
+				for(int k = 0; k < 3; k++) {
+					float v = points.get(i * FPP + k);
+					assertTrue(v >= tree.bounds[node * 6 + k] && v <= tree.bounds[node * 6 + 3 + k]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void nanPointsAreDropped() {
+		FloatBuffer points = FloatBuffer.wrap(new float[] {
+				1f, 2f, 3f, 0f,
+				Float.NaN, 0f, 0f, 1f,
+				4f, 5f, 6f, 2f });
+		PointOctree tree = new PointOctree.Builder().build(points, 3);
+		assertEquals(2, tree.getPointCount());
+		assertEquals(2.5f, tree.getCenter(0), 1e-6f);
+	}
+
+	@Test
+	public void quantizationSpansTheBoundingBox() {
+		PointOctree tree = new PointOctree.Builder().build(cube(2, -2f, 0f, 1f, 4f), 8);
+		assertEquals(0f, tree.getCenter(0), 1e-6f);
+		assertEquals(2f, tree.getCenter(1), 1e-6f);
+		assertEquals(3f, tree.getCenter(2), 1e-6f);
+		assertEquals(2f / Short.MAX_VALUE, tree.getQuantizationStep(0), 1e-9f);
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2012, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Willow Garage licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.nerd3c.rviz_for_android.drawable;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.FloatBuffer;
+
+import org.junit.Test;
+
+public class VoxelGridFilterTest {
+	private static final float EPSILON = 1e-5f;
+	private static final int FPP = PointCloud2Packer.FLOATS_PER_POINT;
+
+	private static FloatBuffer points(float... values) {
+		return FloatBuffer.wrap(values.clone());
+	}
+
+	private static void assertPoint(FloatBuffer buffer, int index, float x, float y, float z, float c) {
+		assertEquals(x, buffer.get(index * FPP), EPSILON);
+		assertEquals(y, buffer.get(index * FPP + 1), EPSILON);
+		assertEquals(z, buffer.get(index * FPP + 2), EPSILON);
+		assertEquals(c, buffer.get(index * FPP + 3), EPSILON);
+	}
+
+	@Test
+	public void pointsInOneVoxelAreReplacedByTheirCentroid() {
+		FloatBuffer buffer = points(
+				0.1f, 0.2f, 0.3f, 1f,
+				0.3f, 0.4f, 0.5f, 2f,
+				0.5f, 0.6f, 0.7f, 6f,
+				1.5f, 0.5f, 0.5f, 4f);
+		int count = new VoxelGridFilter().filter(buffer, 4, 1f, true);
+
+		assertEquals(2, count);
+		assertPoint(buffer, 0, 0.3f, 0.4f, 0.5f, 3f);
+		assertPoint(buffer, 1, 1.5f, 0.5f, 0.5f, 4f);
+	}
+
+	@Test
+	public void channelOfTheFirstPointIsKeptWhenNotAveraging() {
+		FloatBuffer buffer = points(
+				0.1f, 0.1f, 0.1f, 7f,
+				0.3f, 0.3f, 0.3f, 9f);
+		int count = new VoxelGridFilter().filter(buffer, 2, 1f, false);
+
+		assertEquals(1, count);
+		assertPoint(buffer, 0, 0.2f, 0.2f, 0.2f, 7f);
+	}
+
+	@Test
+	public void negativeCoordinatesFallInTheVoxelBelowZero() {
+		FloatBuffer buffer = points(
+				-0.2f, 0f, 0f, 0f,
+				-0.8f, 0f, 0f, 0f,
+				0.2f, 0f, 0f, 0f,
+				-1.2f, -0.5f, -3.5f, 0f);
+		int count = new VoxelGridFilter().filter(buffer, 4, 1f, true);
+
+		assertEquals(3, count);
+		assertPoint(buffer, 0, -0.5f, 0f, 0f, 0f);
+		assertPoint(buffer, 1, 0.2f, 0f, 0f, 0f);
+		assertPoint(buffer, 2, -1.2f, -0.5f, -3.5f, 0f);
+	}
+
+	@Test
+	public void nanPointsAreDropped() {
+		FloatBuffer buffer = points(
+				Float.NaN, 0f, 0f, 0f,
+				0.5f, 0.5f, 0.5f, 1f);
+		int count = new VoxelGridFilter().filter(buffer, 2, 1f, true);
+
+		assertEquals(1, count);
+		assertPoint(buffer, 0, 0.5f, 0.5f, 0.5f, 1f);
+	}
+
+	@Test
+	public void nonPositiveVoxelSizeLeavesThePointsAlone() {
+		FloatBuffer buffer = points(
+				0.1f, 0.1f, 0.1f, 1f,
+				0.2f, 0.2f, 0.2f, 2f);
+		assertEquals(2, new VoxelGridFilter().filter(buffer, 2, 0f, true));
+		assertPoint(buffer, 1, 0.2f, 0.2f, 0.2f, 2f);
+	}
+
+	@Test
+	public void tableGrowsForLargerClouds() {
+		VoxelGridFilter filter = new VoxelGridFilter();
+		assertEquals(1, filter.filter(points(0.5f, 0.5f, 0.5f, 1f), 1, 1f, true));
+
+		// Every point in a voxel of its own, far more than the first table could hold
+		int n = 10000;
+		float[] values = new float[n * FPP];
+		for(int i = 0; i < n; i++) {
+			values[i * FPP] = (i % 100) - 50.5f;
+			values[i * FPP + 1] = (i / 100) - 50.5f;
+			values[i * FPP + 2] = 0.5f;
+			values[i * FPP + 3] = i;
+		}
+		FloatBuffer buffer = FloatBuffer.wrap(values);
+		assertEquals(n, filter.filter(buffer, n, 1f, true));
+		for(int i = 0; i < n; i++)
+			assertPoint(buffer, i, (i % 100) - 50.5f, (i / 100) - 50.5f, 0.5f, i);
+
+		// Results don't depend on what the reused table held before
+		FloatBuffer small = points(
+				0.1f, 0.1f, 0.1f, 1f,
+				0.3f, 0.3f, 0.3f, 3f);
+		assertEquals(1, filter.filter(small, 2, 1f, true));
+		assertPoint(small, 0, 0.2f, 0.2f, 0.2f, 2f);
+	}
+}